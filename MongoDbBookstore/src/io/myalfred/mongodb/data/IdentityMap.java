@@ -0,0 +1,111 @@
+package io.myalfred.mongodb.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Identity map used while decoding query results: objects with the same id (e.g. the author that a $lookup embeds into each of their books) are decoded once and shared, equal
+ * strings are deduplicated.
+ */
+public class IdentityMap {
+
+	/** identity map that shares nothing, decoding with it creates a new object for every document */
+	public static final IdentityMap NONE = new IdentityMap(false);
+
+	private final boolean enabled;
+
+	/** the decoded objects per class and id */
+	private final ConcurrentMap<Class<?>, ConcurrentMap<ObjectId, MongoObject>> objects = new ConcurrentHashMap<>();
+
+	/** the deduplicated strings */
+	private final ConcurrentMap<String, String> strings = new ConcurrentHashMap<>();
+
+	public IdentityMap() {
+		this(true);
+	}
+
+	private IdentityMap(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Returns the already decoded object of the provided class with the provided id, or null if there is none.
+	 *
+	 * @param type
+	 *            the class of the object
+	 * @param id
+	 *            the id of the object
+	 * @return the shared instance, or null
+	 */
+	public <T extends MongoObject> T get(Class<T> type, ObjectId id) {
+
+		if (!enabled || id == null)
+			return null;
+
+		ConcurrentMap<ObjectId, MongoObject> byId = objects.get(type);
+		return byId == null ? null : type.cast(byId.get(id));
+	}
+
+	/**
+	 * Registers the provided decoded object. If an object of the same class and id was registered concurrently, that one is returned.
+	 *
+	 * @param object
+	 *            the decoded object
+	 * @return the shared instance
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends MongoObject> T put(T object) {
+
+		if (!enabled || object.getObjectId() == null)
+			return object;
+
+		ConcurrentMap<ObjectId, MongoObject> byId = objects.get(object.getClass());
+
+		if (byId == null) {
+			objects.putIfAbsent(object.getClass(), new ConcurrentHashMap<ObjectId, MongoObject>());
+			byId = objects.get(object.getClass());
+		}
+
+		MongoObject existing = byId.putIfAbsent(object.getObjectId(), object);
+		return existing == null ? object : (T) existing;
+	}
+
+	/**
+	 * Returns the shared instance of the provided string.
+	 *
+	 * @param string
+	 * @return a string equal to the provided one
+	 */
+	public String intern(String string) {
+
+		if (!enabled || string == null)
+			return string;
+
+		String existing = strings.putIfAbsent(string, string);
+		return existing == null ? string : existing;
+	}
+
+	/**
+	 * Returns the number of shared objects.
+	 *
+	 * @return
+	 */
+	public int size() {
+
+		int size = 0;
+		for (ConcurrentMap<ObjectId, MongoObject> byId : objects.values()) {
+			size += byId.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all shared objects and strings.
+	 */
+	public void clear() {
+		objects.clear();
+		strings.clear();
+	}
+}
@@ -1,5 +1,15 @@
 package io.myalfred.mongodb.data;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
 /**
  * Baseclass of all classes stored in MongoDb collections.
  * 
@@ -8,33 +18,79 @@ package io.myalfred.mongodb.data;
  */
 public abstract class MongoObject {
 
-	/** the unique id created by MongoDb */
-	protected String id;
+	/** the bit of the "_id" field in field masks, subclasses number their fields from 1 << 1 on */
+	protected static final int FIELD_ID = 1;
+
+	/** the unique id created by MongoDb, kept in its compact binary form (12 bytes) */
+	protected ObjectId id;
+
+	/** the raw BSON the fields of this object are decoded from on first access, null if the object was decoded eagerly or created locally */
+	protected RawBsonDocument raw;
+
+	/** the fields that were already decoded from the raw BSON (or set) */
+	private int decodedFields;
+
+	/** the fields that were modified since the object was loaded or stored */
+	private int dirtyFields;
 
 	public MongoObject() {
 
 	}
 
 	public MongoObject(String id) {
+		setId(id);
+	}
+
+	public MongoObject(ObjectId id) {
 		this.id = id;
 	}
 
 	/**
-	 * Returns the MongoDb ObjectId as a hex-String.
+	 * Creates an object that decodes its fields from the provided raw BSON on first access. Lazy objects are not thread-safe until all fields were accessed once.
+	 * 
+	 * @param raw
+	 */
+	public MongoObject(RawBsonDocument raw) {
+		this.raw = raw;
+	}
+
+	/**
+	 * Returns the MongoDb ObjectId as a hex-String. The String is created on every call, use {@link #getObjectId()} where possible.
 	 * 
 	 * @return
 	 */
 	public String getId() {
-		return id;
+		return id == null ? null : id.toHexString();
 	}
 
 	/**
-	 * Sets the MongoDb ObjectId (as hex-String).
+	 * Sets the MongoDb ObjectId (as hex-String). Strings that are not a valid ObjectId (e.g. empty ones) clear the id, {@link #hasValidObjectId()} returns false then.
 	 * 
 	 * @param id
 	 */
 	public void setId(String id) {
+		setObjectId(id != null && ObjectId.isValid(id) ? new ObjectId(id) : null);
+	}
+
+	/**
+	 * Returns the MongoDb ObjectId.
+	 * 
+	 * @return
+	 */
+	public ObjectId getObjectId() {
+		if (decodeLazily(FIELD_ID))
+			id = rawObjectId(raw, "_id");
+		return id;
+	}
+
+	/**
+	 * Sets the MongoDb ObjectId.
+	 * 
+	 * @param id
+	 */
+	public void setObjectId(ObjectId id) {
 		this.id = id;
+		markDecoded(FIELD_ID);
 	}
 
 	/**
@@ -43,6 +99,140 @@ public abstract class MongoObject {
 	 * @return
 	 */
 	public boolean hasValidObjectId() {
-		return this.id != null && !this.id.isEmpty() && this.id.length() >= 24; // MongoDb object-id length is 24
+		return getObjectId() != null;
+	}
+
+	/**
+	 * Returns true if the provided field has to be decoded from the raw BSON now (on its first access) and marks it as decoded.
+	 * 
+	 * @param field
+	 *            the bit of the field
+	 * @return true if the field has to be decoded
+	 */
+	protected boolean decodeLazily(int field) {
+
+		if (raw == null || (decodedFields & field) != 0)
+			return false;
+
+		decodedFields |= field;
+		return true;
+	}
+
+	/**
+	 * Marks the provided field as decoded, e.g. because it was set and must not be overwritten by the raw BSON anymore.
+	 * 
+	 * @param field
+	 *            the bit of the field
+	 */
+	protected void markDecoded(int field) {
+		decodedFields |= field;
+	}
+
+	/**
+	 * Marks the provided fields as modified, so they are sent with the next update.
+	 * 
+	 * @param fields
+	 *            the bits of the fields
+	 */
+	protected void markDirty(int fields) {
+		decodedFields |= fields;
+		dirtyFields |= fields;
+	}
+
+	/**
+	 * Returns true if the provided field was modified since the object was loaded or stored.
+	 * 
+	 * @param field
+	 *            the bit of the field
+	 * @return
+	 */
+	protected boolean isDirty(int field) {
+		return (dirtyFields & field) != 0;
+	}
+
+	/**
+	 * Returns true if any field was modified since the object was loaded or stored.
+	 * 
+	 * @return
+	 */
+	public boolean isDirty() {
+		return dirtyFields != 0;
+	}
+
+	/**
+	 * Marks all fields as unmodified, called once the object was written to the database. Subclasses that track more than the modified fields (e.g. appended list elements)
+	 * override this method to reset that state as well.
+	 */
+	public void markClean() {
+		dirtyFields = 0;
+	}
+
+	/**
+	 * Creates the update operators for the provided modified fields and appended array elements: $set for modified fields, $unset for fields set to null and $push for array
+	 * elements appended to an otherwise unmodified array.
+	 * 
+	 * @param changed
+	 *            the modified fields with their new values
+	 * @param appended
+	 *            the appended elements per array field
+	 * @return the update document, empty if nothing was modified
+	 */
+	protected static Document updateOperators(Document changed, Map<String, ? extends List<?>> appended) {
+
+		Document set = new Document();
+		Document unset = new Document();
+		Document push = new Document();
+
+		for (Map.Entry<String, Object> field : changed.entrySet()) {
+			if (field.getValue() == null)
+				unset.append(field.getKey(), "");
+			else
+				set.append(field.getKey(), field.getValue());
+		}
+
+		for (Map.Entry<String, ? extends List<?>> field : appended.entrySet()) {
+			if (!field.getValue().isEmpty())
+				push.append(field.getKey(), new Document("$each", field.getValue()));
+		}
+
+		Document update = new Document();
+
+		if (!set.isEmpty())
+			update.append("$set", set);
+		if (!unset.isEmpty())
+			update.append("$unset", unset);
+		if (!push.isEmpty())
+			update.append("$push", push);
+
+		return update;
+	}
+
+	protected static String rawString(BsonDocument raw, String key) {
+		BsonValue value = raw.get(key);
+		return value != null && value.isString() ? value.asString().getValue() : null;
+	}
+
+	protected static ObjectId rawObjectId(BsonDocument raw, String key) {
+		BsonValue value = raw.get(key);
+		return value != null && value.isObjectId() ? value.asObjectId().getValue() : null;
+	}
+
+	protected static RawBsonDocument rawDocument(BsonDocument raw, String key) {
+		BsonValue value = raw.get(key);
+		return value instanceof RawBsonDocument ? (RawBsonDocument) value : null;
+	}
+
+	protected static List<Double> rawDoubles(BsonDocument raw, String key) {
+
+		BsonValue value = raw.get(key);
+
+		if (value == null || !value.isArray())
+			return null;
+
+		List<Double> doubles = new ArrayList<>();
+		for (BsonValue element : value.asArray()) {
+			doubles.add(element.isNumber() ? element.asNumber().doubleValue() : null);
+		}
+		return doubles;
 	}
 }
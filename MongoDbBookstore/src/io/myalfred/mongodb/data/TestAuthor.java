@@ -1,9 +1,16 @@
 package io.myalfred.mongodb.data;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 
 public class TestAuthor extends MongoObject {
 
+	private static final int FIELD_FIRST_NAME = 1 << 1;
+	private static final int FIELD_LAST_NAME = 1 << 2;
+
 	private String firstName;
 	private String lastName;
 
@@ -11,38 +18,85 @@ public class TestAuthor extends MongoObject {
 	}
 	
 	public TestAuthor(Document document) {
-		
-		this.firstName = document.getString("firstName");
-		this.lastName = document.getString("lastName");
-		this.id = document.getObjectId("_id").toHexString();
+		this(document, IdentityMap.NONE);
+	}
+
+	public TestAuthor(Document document, IdentityMap identities) {
+
+		this.firstName = identities.intern(document.getString("firstName"));
+		this.lastName = identities.intern(document.getString("lastName"));
+		this.id = document.getObjectId("_id");
+	}
+
+	public TestAuthor(RawBsonDocument raw) {
+		super(raw);
+	}
+
+	/**
+	 * Returns the author with the id of the provided document from the identity map, decodes and registers it if it is not there yet.
+	 * 
+	 * @param document
+	 *            the author document
+	 * @param identities
+	 *            the identity map of the current query
+	 * @return the shared author instance
+	 */
+	public static TestAuthor resolve(Document document, IdentityMap identities) {
+
+		TestAuthor author = identities.get(TestAuthor.class, document.getObjectId("_id"));
+		return author != null ? author : identities.put(new TestAuthor(document, identities));
 	}
 
 	public TestAuthor(String first, String last) {
 		this.firstName = first;
 		this.lastName = last;
+		markDirty(FIELD_FIRST_NAME | FIELD_LAST_NAME);
 	}
 
 	public String getFirstName() {
+		if (decodeLazily(FIELD_FIRST_NAME))
+			firstName = rawString(raw, "firstName");
 		return firstName;
 	}
 
 	public void setFirstName(String firstName) {
 		this.firstName = firstName;
+		markDirty(FIELD_FIRST_NAME);
 	}
 
 	public String getLastName() {
+		if (decodeLazily(FIELD_LAST_NAME))
+			lastName = rawString(raw, "lastName");
 		return lastName;
 	}
 
 	public void setLastName(String lastName) {
 		this.lastName = lastName;
+		markDirty(FIELD_LAST_NAME);
 	}
 
 	public Document toDocument() {
 
 		Document document = new Document();
-		document.append("firstName", firstName);
-		document.append("lastName", lastName);
+		document.append("firstName", getFirstName());
+		document.append("lastName", getLastName());
 		return document;
 	}
+
+	/**
+	 * Returns the update operators for the fields modified since this author was loaded or stored.
+	 * 
+	 * @return the update document, empty if nothing was modified
+	 */
+	public Document toUpdateDocument() {
+
+		Document changed = new Document();
+
+		if (isDirty(FIELD_FIRST_NAME))
+			changed.append("firstName", firstName);
+		if (isDirty(FIELD_LAST_NAME))
+			changed.append("lastName", lastName);
+
+		return updateOperators(changed, Collections.<String, List<Object>> emptyMap());
+	}
 }
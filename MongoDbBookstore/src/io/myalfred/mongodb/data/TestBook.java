@@ -1,66 +1,149 @@
 package io.myalfred.mongodb.data;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.bson.Document;
-import org.bson.types.ObjectId;
+import org.bson.RawBsonDocument;
 
 public class TestBook extends MongoObject {
 
+	private static final int FIELD_AUTHOR = 1 << 1;
+	private static final int FIELD_PRICES = 1 << 2;
+
 	private TestAuthor author;
 	private List<Double> prices;
 
+	/** the prices appended via {@link #addPrice(Double)} since the book was loaded or stored */
+	private List<Double> appendedPrices = new ArrayList<>();
+
 	public TestBook() {
 	}
 
-	@SuppressWarnings("unchecked")
 	public TestBook(Document document) {
+		this(document, IdentityMap.NONE);
+	}
 
-		ObjectId objectId = document.getObjectId("_id");
+	@SuppressWarnings("unchecked")
+	public TestBook(Document document, IdentityMap identities) {
 
-		if (objectId != null)
-			this.id = objectId.toHexString();
+		this.id = document.getObjectId("_id");
 
 		Document authorDoc = (Document) document.get("author");
-		TestAuthor address = new TestAuthor(authorDoc);
-		this.author = address;
+		this.author = TestAuthor.resolve(authorDoc, identities);
 		this.prices = (List<Double>) document.get("prices");
 	}
 
+	public TestBook(RawBsonDocument raw) {
+		super(raw);
+	}
+
+	/**
+	 * Returns the book with the id of the provided document from the identity map, decodes and registers it if it is not there yet.
+	 * 
+	 * @param document
+	 *            the book document (with embedded author)
+	 * @param identities
+	 *            the identity map of the current query
+	 * @return the shared book instance
+	 */
+	public static TestBook resolve(Document document, IdentityMap identities) {
+
+		TestBook book = identities.get(TestBook.class, document.getObjectId("_id"));
+		return book != null ? book : identities.put(new TestBook(document, identities));
+	}
+
 	public TestBook(TestAuthor address, Double... prices) {
 		this.author = address;
 		this.prices = Arrays.asList(prices);
+		markDirty(FIELD_AUTHOR | FIELD_PRICES);
 	}
 
 	public TestBook(String id, TestAuthor address, Double... prices) {
-		this.id = id;
+		setId(id);
 		this.author = address;
 		this.prices = Arrays.asList(prices);
+		markDirty(FIELD_AUTHOR | FIELD_PRICES);
 	}
 
 	public TestAuthor getAuthor() {
+		if (decodeLazily(FIELD_AUTHOR)) {
+			RawBsonDocument authorDoc = rawDocument(raw, "author");
+			author = authorDoc == null ? null : new TestAuthor(authorDoc);
+		}
 		return author;
 	}
 
 	public void setAuthor(TestAuthor author) {
 		this.author = author;
+		markDirty(FIELD_AUTHOR);
 	}
 
+	/**
+	 * Returns the prices of this book as an unmodifiable list: changing it throws an UnsupportedOperationException, as the change would not be tracked and so never be
+	 * updated. Callers that used to add to the returned list have to call {@link #addPrice(Double)} (or replace the list by {@link #setPrices(List)}) instead.
+	 * 
+	 * @return
+	 */
 	public List<Double> getPrices() {
-		return prices;
+		if (decodeLazily(FIELD_PRICES))
+			prices = rawDoubles(raw, "prices");
+		return prices == null ? null : Collections.unmodifiableList(prices);
 	}
 
 	public void setPrices(List<Double> prices) {
 		this.prices = prices;
+		this.appendedPrices = new ArrayList<>(); // superseded by the replaced list
+		markDirty(FIELD_PRICES);
+	}
+
+	/**
+	 * Appends a price. Unless all prices were replaced, the next update only pushes the appended prices instead of rewriting the whole list.
+	 * 
+	 * @param price
+	 */
+	public void addPrice(Double price) {
+
+		List<Double> current = getPrices();
+		List<Double> updated = current == null ? new ArrayList<Double>() : new ArrayList<>(current);
+		updated.add(price);
+		this.prices = updated;
+
+		if (!isDirty(FIELD_PRICES))
+			appendedPrices.add(price);
 	}
 
 	public Document toDocument() {
 
 		Document document = new Document();
-		document.append("author", new ObjectId(author.getId()));
-		document.append("prices", prices);
+		document.append("author", getAuthor().getObjectId());
+		document.append("prices", getPrices());
 
 		return document;
 	}
+
+	/**
+	 * Returns the update operators for the fields modified since this book was loaded or stored.
+	 * 
+	 * @return the update document, empty if nothing was modified
+	 */
+	public Document toUpdateDocument() {
+
+		Document changed = new Document();
+
+		if (isDirty(FIELD_AUTHOR))
+			changed.append("author", author == null ? null : author.getObjectId());
+		if (isDirty(FIELD_PRICES))
+			changed.append("prices", prices);
+
+		return updateOperators(changed, Collections.singletonMap("prices", appendedPrices));
+	}
+
+	@Override
+	public void markClean() {
+		super.markClean();
+		appendedPrices = new ArrayList<>();
+	}
 }
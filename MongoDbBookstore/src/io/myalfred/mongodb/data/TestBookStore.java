@@ -1,66 +1,166 @@
 package io.myalfred.mongodb.data;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
 
 public class TestBookStore extends MongoObject {
 
+	private static final int FIELD_NAME = 1 << 1;
+	private static final int FIELD_BOOKS = 1 << 2;
+
 	private String name;
 	private List<TestBook> books;
+
+	/** the books appended via {@link #addBook(TestBook)} since the bookstore was loaded or stored */
+	private List<ObjectId> appendedBookIds = new ArrayList<>();
 	
 	public TestBookStore() {
 		
 	}
 	
 	public TestBookStore(Document document) {
+		this(document, IdentityMap.NONE);
+	}
+
+	public TestBookStore(Document document, IdentityMap identities) {
 		
-		this.id = document.getObjectId("_id").toHexString();
-		this.name = document.getString("name");
+		this.id = document.getObjectId("_id");
+		this.name = identities.intern(document.getString("name"));
 		this.books = new ArrayList<>();
 		
 		@SuppressWarnings("unchecked")
 		List<Document> bookDocs = (List<Document>) document.get("books");
 		
 		for(Document book : bookDocs) {
-			this.books.add(new TestBook(book));
+			this.books.add(TestBook.resolve(book, identities));
 		}
 	} 
+
+	public TestBookStore(RawBsonDocument raw) {
+		super(raw);
+	}
 	
+	/**
+	 * Returns the bookstore with the id of the provided document from the identity map, decodes and registers it if it is not there yet.
+	 * 
+	 * @param document
+	 *            the bookstore document (with embedded books and authors)
+	 * @param identities
+	 *            the identity map of the current query
+	 * @return the shared bookstore instance
+	 */
+	public static TestBookStore resolve(Document document, IdentityMap identities) {
+
+		TestBookStore store = identities.get(TestBookStore.class, document.getObjectId("_id"));
+		return store != null ? store : identities.put(new TestBookStore(document, identities));
+	}
+
 	public String getName() {
+		if (decodeLazily(FIELD_NAME))
+			name = rawString(raw, "name");
 		return name;
 	}
 	
 	
 	public void setName(String name) {
 		this.name = name;
+		markDirty(FIELD_NAME);
 	}
 	
 	
+	/**
+	 * Returns the books of this bookstore as an unmodifiable list: changing it throws an UnsupportedOperationException, as the change would not be tracked and so never be
+	 * updated. Callers that used to add to the returned list have to call {@link #addBook(TestBook)} (or replace the list by {@link #setBooks(List)}) instead.
+	 * 
+	 * @return
+	 */
 	public List<TestBook> getBooks() {
-		return books;
+		if (decodeLazily(FIELD_BOOKS) && raw.containsKey("books")) {
+			books = new ArrayList<>();
+			for (BsonValue book : raw.getArray("books")) {
+				books.add(new TestBook((RawBsonDocument) book));
+			}
+		}
+		return books == null ? null : Collections.unmodifiableList(books);
 	}
 	
 	
 	public void setBooks(List<TestBook> books) {
 		this.books = books;
+		this.appendedBookIds = new ArrayList<>(); // superseded by the replaced list
+		markDirty(FIELD_BOOKS);
+	}
+
+	/**
+	 * Adds a (stored) book. Unless all books were replaced, the next update only pushes the id of the added book instead of rewriting the whole list.
+	 * 
+	 * @param book
+	 */
+	public void addBook(TestBook book) {
+
+		List<TestBook> current = getBooks();
+		List<TestBook> updated = current == null ? new ArrayList<TestBook>() : new ArrayList<>(current);
+		updated.add(book);
+		this.books = updated;
+
+		if (!isDirty(FIELD_BOOKS))
+			appendedBookIds.add(book.getObjectId());
 	}
 	
 	public Document toDocument() {
 
 		Document document = new Document();
-		document.append("name", this.name);
+		document.append("name", getName());
 
 		List<ObjectId> bookIds = new ArrayList<>();
 
-		for (TestBook book : this.books) {
-			bookIds.add(new ObjectId(book.getId()));
+		for (TestBook book : getBooks()) {
+			bookIds.add(book.getObjectId());
 		}
 
 		document.append("books", bookIds);
 
 		return document;
 	}
+
+	/**
+	 * Returns the update operators for the fields modified since this bookstore was loaded or stored.
+	 * 
+	 * @return the update document, empty if nothing was modified
+	 */
+	public Document toUpdateDocument() {
+
+		Document changed = new Document();
+
+		if (isDirty(FIELD_NAME))
+			changed.append("name", name);
+
+		if (isDirty(FIELD_BOOKS)) {
+
+			List<ObjectId> bookIds = null;
+
+			if (books != null) {
+				bookIds = new ArrayList<>();
+				for (TestBook book : books) {
+					bookIds.add(book.getObjectId());
+				}
+			}
+
+			changed.append("books", bookIds);
+		}
+
+		return updateOperators(changed, Collections.singletonMap("books", appendedBookIds));
+	}
+
+	@Override
+	public void markClean() {
+		super.markClean();
+		appendedBookIds = new ArrayList<>();
+	}
 }
@@ -0,0 +1,102 @@
+package io.myalfred.mongodb.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * The prices of one book within one time window. A window with more prices than fit into one bucket has several buckets. The summary fields (count, first, last, min, max) are
+ * maintained by the update that appends a price, so queries can select buckets without reading their points.
+ */
+public class TestPriceBucket extends MongoObject {
+
+	private ObjectId book;
+
+	/** the start of the time window of this bucket */
+	private Date window;
+
+	private int count;
+
+	private Date first;
+
+	private Date last;
+
+	private double min;
+
+	private double max;
+
+	private List<TestPricePoint> points;
+
+	public TestPriceBucket() {
+	}
+
+	public TestPriceBucket(Document document) {
+
+		this.id = document.getObjectId("_id");
+		this.book = document.getObjectId("book");
+		this.window = document.getDate("window");
+		this.count = document.getInteger("count", 0);
+		this.first = document.getDate("first");
+		this.last = document.getDate("last");
+		this.min = document.getDouble("min") == null ? 0 : document.getDouble("min");
+		this.max = document.getDouble("max") == null ? 0 : document.getDouble("max");
+		this.points = new ArrayList<>();
+
+		for (Document point : document.getList("points", Document.class, Collections.<Document> emptyList())) {
+			this.points.add(new TestPricePoint(point));
+		}
+	}
+
+	public ObjectId getBook() {
+		return book;
+	}
+
+	public Date getWindow() {
+		return window;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public Date getFirst() {
+		return first;
+	}
+
+	public Date getLast() {
+		return last;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the prices of this bucket in the order they were appended.
+	 * 
+	 * @return
+	 */
+	public List<TestPricePoint> getPoints() {
+		return points == null ? null : Collections.unmodifiableList(points);
+	}
+
+	public Document toDocument() {
+
+		List<Document> pointDocs = new ArrayList<>();
+
+		for (TestPricePoint point : points == null ? Collections.<TestPricePoint> emptyList() : points) {
+			pointDocs.add(point.toDocument());
+		}
+
+		return new Document("book", book).append("window", window).append("count", count).append("first", first).append("last", last).append("min", min)
+				.append("max", max).append("points", pointDocs);
+	}
+}
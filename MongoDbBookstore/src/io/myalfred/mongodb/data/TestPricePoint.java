@@ -0,0 +1,42 @@
+package io.myalfred.mongodb.data;
+
+import java.util.Date;
+
+import org.bson.Document;
+
+/**
+ * A price of a book at a point in time, an element of the points of a {@link TestPriceBucket}.
+ */
+public class TestPricePoint {
+
+	private final Date time;
+
+	private final double price;
+
+	public TestPricePoint(Date time, double price) {
+		this.time = time;
+		this.price = price;
+	}
+
+	public TestPricePoint(Document document) {
+		this.time = document.getDate("t");
+		this.price = document.getDouble("p");
+	}
+
+	public Date getTime() {
+		return time;
+	}
+
+	public double getPrice() {
+		return price;
+	}
+
+	public Document toDocument() {
+		return new Document("t", time).append("p", price);
+	}
+
+	@Override
+	public String toString() {
+		return time.toInstant() + "=" + price;
+	}
+}
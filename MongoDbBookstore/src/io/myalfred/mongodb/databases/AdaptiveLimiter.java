@@ -0,0 +1,85 @@
+package io.myalfred.mongodb.databases;
+
+/**
+ * Concurrency limit that adapts to the observed latency (TCP Vegas style): while requests take about as long as the fastest recent request, the server is not queueing and the
+ * limit grows; when latency rises, requests are queueing on the server and the limit shrinks. Timeouts and overload errors halve the distance to the minimum (multiplicative
+ * decrease).
+ */
+public class AdaptiveLimiter {
+
+	/** the number of samples after which the no-load latency is re-measured, so it follows lasting changes (e.g. a new primary further away) */
+	private static final int PROBE_INTERVAL = 1000;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private double limit;
+
+	/** the lowest latency seen since the last probe, an estimate of the latency without queueing */
+	private long noLoadNanos = Long.MAX_VALUE;
+
+	private int samples;
+
+	/**
+	 * Creates a new limiter.
+	 *
+	 * @param initialLimit
+	 *            the limit before the first samples
+	 * @param minLimit
+	 *            the limit never drops below this
+	 * @param maxLimit
+	 *            the limit never grows above this (e.g. the connection pool size)
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * Returns the current limit.
+	 *
+	 * @return
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Adjusts the limit to a completed request.
+	 *
+	 * @param latencyNanos
+	 *            how long the request took
+	 * @param inFlight
+	 *            the number of requests in flight when it started
+	 * @param dropped
+	 *            true if the request timed out or the server reported overload
+	 */
+	public synchronized void onSample(long latencyNanos, int inFlight, boolean dropped) {
+
+		if (dropped) {
+			limit = minLimit + (limit - minLimit) / 2;
+			return;
+		}
+
+		if (++samples >= PROBE_INTERVAL) {
+			samples = 0;
+			noLoadNanos = latencyNanos;
+		} else {
+			noLoadNanos = Math.min(noLoadNanos, latencyNanos);
+		}
+
+		// a limit that is not used says nothing about the server, do not grow it
+		if (inFlight * 2 < limit)
+			return;
+
+		double log = Math.max(1, Math.log10(limit));
+		double queued = limit * (1 - (double) noLoadNanos / Math.max(latencyNanos, 1));
+
+		if (queued <= 3 * log)
+			limit = Math.min(maxLimit, limit + log);
+		else if (queued >= 6 * log)
+			limit = Math.max(minLimit, limit - log);
+	}
+}
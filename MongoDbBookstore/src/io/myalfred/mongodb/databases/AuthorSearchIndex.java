@@ -0,0 +1,372 @@
+package io.myalfred.mongodb.databases;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCursor;
+
+import io.myalfred.mongodb.data.TestAuthor;
+
+/**
+ * In-memory search index over the first and last names of all authors. Answers prefix queries (case and accent insensitive) without a database round trip, e.g. for
+ * autocomplete, and finds the books of the matching authors through a {@link RelationshipIndex}.
+ * <p>
+ * The names are kept in a sorted set of "term\0authorId" entries, a prefix query is a range of that set. The terms of an author are the normalized first name, last name and
+ * full name ("first last"). The index is built by one streaming scan of the authors collection and then kept up to date through the writes of the provided client. Writes
+ * made by other clients or processes are only seen after the next {@link #build()}.
+ */
+public class AuthorSearchIndex {
+
+	private static final char SEPARATOR = '\0';
+
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+	private final TestAuthorDatabase authors;
+
+	private final RelationshipIndex relationships;
+
+	/**
+	 * The indexed authors, safe for concurrent reads.
+	 */
+	private static class State {
+
+		/** "term\0authorId" of all terms of all authors, sorted */
+		final ConcurrentSkipListSet<String> terms = new ConcurrentSkipListSet<>();
+
+		/** the first and last name per author */
+		final ConcurrentMap<ObjectId, String[]> names = new ConcurrentHashMap<>();
+
+		void indexAuthor(ObjectId id, String firstName, String lastName) {
+
+			unindexAuthor(id);
+			names.put(id, new String[] { firstName, lastName });
+
+			for (String term : termsOf(firstName, lastName)) {
+				terms.add(term + SEPARATOR + id.toHexString());
+			}
+		}
+
+		void unindexAuthor(ObjectId id) {
+
+			String[] previous = names.remove(id);
+
+			if (previous == null)
+				return;
+
+			for (String term : termsOf(previous[0], previous[1])) {
+				terms.remove(term + SEPARATOR + id.toHexString());
+			}
+		}
+	}
+
+	private final IndexState<State> state = new IndexState<>(new State());
+
+	private final DatabaseClient.WriteListener<TestAuthor> authorListener = new DatabaseClient.WriteListener<TestAuthor>() {
+
+		@Override
+		public void onWritten(TestAuthor author) {
+			putAuthor(author.getObjectId(), author.getFirstName(), author.getLastName());
+		}
+
+		@Override
+		public void onUpdated(ObjectId id, String fieldName, Object value) {
+			updateAuthor(id, fieldName, value);
+		}
+
+		@Override
+		public void onDeleted(ObjectId id) {
+			removeAuthor(id);
+		}
+	};
+
+	/**
+	 * Creates an empty index over the authors of the provided client and starts following its writes. Call {@link #build()} to load the existing authors.
+	 *
+	 * @param authors
+	 * @param relationships
+	 *            the index the books of the authors are read from, built and closed by the caller
+	 */
+	public AuthorSearchIndex(TestAuthorDatabase authors, RelationshipIndex relationships) {
+		this.authors = authors;
+		this.relationships = relationships;
+
+		authors.addWriteListener(authorListener);
+	}
+
+	/**
+	 * (Re)builds the index by one streaming scan of the authors, reading only the indexed fields. Queries are answered by the previous index until the build is done. Writes
+	 * through the client during the build are not lost.
+	 *
+	 * @return this index
+	 */
+	public AuthorSearchIndex build() {
+
+		state.build(new State(), new IndexState.Scan<State>() {
+
+			@Override
+			public void into(State built) {
+				scan(built);
+			}
+		});
+
+		return this;
+	}
+
+	private void scan(State built) {
+
+		authors.flushPending();
+
+		try (MongoCursor<Document> cursor = authors.getMainCollection().find().projection(new Document("firstName", 1).append("lastName", 1)).iterator()) {
+
+			while (cursor.hasNext()) {
+
+				Document author = cursor.next();
+				built.indexAuthor(author.getObjectId("_id"), author.getString("firstName"), author.getString("lastName"));
+			}
+		}
+	}
+
+	/**
+	 * Stops following the writes of the client.
+	 */
+	public void close() {
+		authors.removeWriteListener(authorListener);
+	}
+
+	/**
+	 * Returns the ids of the authors whose first name, last name or full name starts with the provided prefix (case and accent insensitive), ordered by the matching name.
+	 *
+	 * @param prefix
+	 *            the prefix, an empty prefix matches all authors
+	 * @param limit
+	 *            the maximum number of ids
+	 * @return
+	 */
+	public List<ObjectId> findAuthors(String prefix, int limit) {
+
+		String from = normalize(prefix);
+		Set<ObjectId> found = new LinkedHashSet<>();
+
+		for (String entry : state.get().terms.tailSet(from)) {
+
+			if (found.size() >= limit || !entry.startsWith(from))
+				break;
+
+			found.add(new ObjectId(entry.substring(entry.lastIndexOf(SEPARATOR) + 1)));
+		}
+
+		return new ArrayList<>(found);
+	}
+
+	/**
+	 * Returns the authors whose first name, last name or full name starts with the provided prefix, built from the index without loading them.
+	 *
+	 * @param prefix
+	 *            the prefix, an empty prefix matches all authors
+	 * @param limit
+	 *            the maximum number of authors
+	 * @return
+	 */
+	public List<TestAuthor> suggest(String prefix, int limit) {
+
+		List<TestAuthor> suggestions = new ArrayList<>();
+		State current = state.get();
+
+		for (ObjectId id : findAuthors(prefix, limit)) {
+
+			String[] name = current.names.get(id);
+
+			if (name != null) {
+				TestAuthor author = new TestAuthor(name[0], name[1]);
+				author.setObjectId(id);
+				author.markClean();
+				suggestions.add(author);
+			}
+		}
+
+		return suggestions;
+	}
+
+	/**
+	 * Returns the ids of the books of the authors whose name starts with the provided prefix.
+	 *
+	 * @param prefix
+	 * @param limit
+	 *            the maximum number of book ids
+	 * @return
+	 */
+	public List<ObjectId> findBooks(String prefix, int limit) {
+
+		List<ObjectId> found = new ArrayList<>();
+
+		for (ObjectId author : findAuthors(prefix, Integer.MAX_VALUE)) {
+			for (ObjectId book : getBooks(author)) {
+
+				if (found.size() >= limit)
+					return found;
+
+				found.add(book);
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Returns the ids of the books of the provided author, in ascending order.
+	 *
+	 * @param authorId
+	 * @return
+	 */
+	public List<ObjectId> getBooks(ObjectId authorId) {
+
+		List<ObjectId> ids = relationships.getBookIdsOfAuthor(authorId);
+		ids.sort(null);
+		return ids;
+	}
+
+	/**
+	 * Returns the id of the first book (the smallest id) whose author has exactly the provided last name (case sensitive, like a query on "author.lastName"), or null.
+	 *
+	 * @param lastName
+	 * @return
+	 */
+	public ObjectId findFirstBookByLastName(String lastName) {
+
+		String term = normalize(lastName) + SEPARATOR;
+		ObjectId first = null;
+		State current = state.get();
+
+		for (String entry : current.terms.tailSet(term)) {
+
+			if (!entry.startsWith(term))
+				break;
+
+			ObjectId author = new ObjectId(entry.substring(term.length()));
+			String[] name = current.names.get(author);
+
+			if (name == null || !lastName.equals(name[1]))
+				continue;
+
+			for (ObjectId book : getBooks(author)) {
+				if (first == null || book.compareTo(first) < 0)
+					first = book;
+			}
+		}
+
+		return first;
+	}
+
+	/**
+	 * Returns the number of indexed authors.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return state.get().names.size();
+	}
+
+	/**
+	 * Adds or replaces the names of an author.
+	 *
+	 * @param id
+	 * @param firstName
+	 * @param lastName
+	 */
+	public void putAuthor(ObjectId id, String firstName, String lastName) {
+
+		if (id == null)
+			return;
+
+		state.apply(new IndexState.Change<State>() {
+
+			@Override
+			public void applyTo(State state) {
+				state.indexAuthor(id, firstName, lastName);
+			}
+		});
+	}
+
+	/**
+	 * Removes an author with its terms.
+	 *
+	 * @param id
+	 */
+	public void removeAuthor(ObjectId id) {
+
+		state.apply(new IndexState.Change<State>() {
+
+			@Override
+			public void applyTo(State state) {
+				state.unindexAuthor(id);
+			}
+		});
+	}
+
+	private void updateAuthor(ObjectId id, String fieldName, Object value) {
+
+		if (!("firstName".equals(fieldName) || "lastName".equals(fieldName)) || !(value instanceof String || value == null))
+			return;
+
+		state.apply(new IndexState.Change<State>() {
+
+			@Override
+			public void applyTo(State state) {
+
+				// the other name is taken from the state the change is applied to, so a replay during a build sees the scanned name
+				String[] name = state.names.get(id);
+
+				if (name == null)
+					return;
+
+				if ("firstName".equals(fieldName))
+					state.indexAuthor(id, (String) value, name[1]);
+				else
+					state.indexAuthor(id, name[0], (String) value);
+			}
+		});
+	}
+
+	private static Set<String> termsOf(String firstName, String lastName) {
+
+		Set<String> result = new HashSet<>();
+		String first = normalize(firstName);
+		String last = normalize(lastName);
+
+		if (!first.isEmpty())
+			result.add(first);
+		if (!last.isEmpty())
+			result.add(last);
+		if (!first.isEmpty() && !last.isEmpty())
+			result.add(first + " " + last);
+
+		return result;
+	}
+
+	/**
+	 * Returns the provided name in lower case, without accents and surrounding whitespace.
+	 *
+	 * @param name
+	 * @return
+	 */
+	static String normalize(String name) {
+
+		if (name == null)
+			return "";
+
+		String decomposed = Normalizer.normalize(name.trim(), Normalizer.Form.NFD);
+		return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,174 @@
+package io.myalfred.mongodb.databases;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.RawBsonDocument;
+
+/**
+ * Reads and writes files of concatenated BSON documents, the format of mongodump (.bson) and mongorestore. Files can be gzip compressed (like "mongodump --gzip"), compressed
+ * files are detected when reading.
+ */
+public abstract class BsonFile {
+
+	/** the size of the read buffer, documents larger than this grow it */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Sequential reader of the documents of a file.
+	 */
+	public static class Reader implements Closeable {
+
+		private final ReadableByteChannel channel;
+
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		private Reader(ReadableByteChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		/**
+		 * Returns the next document of the file, or null at the end of the file.
+		 *
+		 * @return
+		 * @throws IOException
+		 *             if the file can not be read, is not BSON or ends within a document
+		 */
+		public RawBsonDocument next() throws IOException {
+
+			if (!ensure(4)) {
+				if (buffer.hasRemaining())
+					throw new EOFException("Truncated BSON file");
+				return null;
+			}
+
+			int length = buffer.getInt(buffer.position());
+
+			if (length < 5)
+				throw new IOException("Invalid BSON document length " + length);
+
+			if (!ensure(length))
+				throw new EOFException("Truncated BSON file");
+
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new RawBsonDocument(bytes);
+		}
+
+		/**
+		 * Reads until the buffer holds at least the provided number of bytes, returns false if the file ends before.
+		 */
+		private boolean ensure(int bytes) throws IOException {
+
+			if (buffer.remaining() >= bytes)
+				return true;
+
+			if (buffer.capacity() < bytes) {
+				ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+				larger.put(buffer);
+				buffer = larger;
+			} else {
+				buffer.compact();
+			}
+
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) < 0)
+					break;
+			}
+
+			buffer.flip();
+			return buffer.remaining() >= bytes;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writer of documents to a file, safe for concurrent use: each written buffer ends up contiguous in the file.
+	 */
+	public static class Writer implements Closeable {
+
+		private final WritableByteChannel channel;
+
+		private Writer(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Writes the provided buffer of concatenated BSON documents (from its position to its limit).
+		 *
+		 * @param documents
+		 * @throws IOException
+		 */
+		public synchronized void write(ByteBuffer documents) throws IOException {
+			while (documents.hasRemaining()) {
+				channel.write(documents);
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Opens the provided file for reading, gzip compressed files are decompressed.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Reader reader(Path file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		ByteBuffer magic = ByteBuffer.allocate(2);
+
+		channel.read(magic, 0);
+
+		if (magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+			InputStream input = new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(channel), GZIP_BUFFER_SIZE), GZIP_BUFFER_SIZE);
+			return new Reader(Channels.newChannel(input));
+		}
+
+		return new Reader(channel);
+	}
+
+	/**
+	 * Creates (or replaces) the provided file for writing.
+	 *
+	 * @param file
+	 * @param compress
+	 *            true to gzip compress the file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Writer writer(Path file, boolean compress) throws IOException {
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		if (compress)
+			return new Writer(Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), GZIP_BUFFER_SIZE)));
+
+		return new Writer(channel);
+	}
+}
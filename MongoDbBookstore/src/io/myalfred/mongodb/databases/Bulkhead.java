@@ -0,0 +1,217 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent requests of one or more {@link DatabaseClient}s, so a spike of expensive requests of one collection can not take every pooled connection from
+ * the others. The limit adapts to the observed latency ({@link AdaptiveLimiter}). Requests over the limit wait in a bounded queue for a bounded time, requests that find the
+ * queue full or time out are rejected right away with a {@link BulkheadFullException} (load shedding) instead of piling up.
+ */
+public class Bulkhead {
+
+	/**
+	 * Permission to run one request, must be released exactly once.
+	 */
+	public class Permit {
+
+		private final long startNanos = System.nanoTime();
+
+		private final int inFlightAtStart;
+
+		private Permit(int inFlightAtStart) {
+			this.inFlightAtStart = inFlightAtStart;
+		}
+
+		/**
+		 * Releases the permit of a request that completed (successfully or with an error that says nothing about the load).
+		 */
+		public void release() {
+			Bulkhead.this.release(this, false);
+		}
+
+		/**
+		 * Releases the permit of a request that timed out or failed because the server was overloaded, which lowers the limit.
+		 */
+		public void releaseDropped() {
+			Bulkhead.this.release(this, true);
+		}
+	}
+
+	private final String name;
+
+	private final AdaptiveLimiter limiter;
+
+	private final int maxQueue;
+
+	private final long queueTimeoutMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition released = lock.newCondition();
+
+	private int inFlight;
+
+	private int queued;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * Creates a new bulkhead.
+	 *
+	 * @param name
+	 *            the name used in rejection messages
+	 * @param limiter
+	 *            the concurrency limit
+	 * @param maxQueue
+	 *            the maximum number of requests waiting for a permit
+	 * @param queueTimeoutMillis
+	 *            the maximum time a request waits for a permit
+	 */
+	public Bulkhead(String name, AdaptiveLimiter limiter, int maxQueue, long queueTimeoutMillis) {
+		this.name = name;
+		this.limiter = limiter;
+		this.maxQueue = maxQueue;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	/**
+	 * Returns a permit to run a request, waiting for one if the limit is reached. Waits no longer than the queue timeout and the {@link Deadline} of the current thread.
+	 *
+	 * @return the permit, release it when the request completed
+	 * @throws BulkheadFullException
+	 *             if the queue is full or no permit became available in time
+	 */
+	public Permit acquire() {
+
+		long timeout = queueTimeoutMillis;
+		Deadline deadline = Deadline.current();
+
+		if (deadline != null)
+			timeout = Math.min(timeout, deadline.remainingMillis());
+
+		lock.lock();
+		try {
+			if (inFlight < limiter.getLimit())
+				return admit();
+
+			if (queued >= maxQueue) {
+				rejected.incrementAndGet();
+				throw new BulkheadFullException("Bulkhead " + name + " is full (" + inFlight + " in flight, " + queued + " queued)");
+			}
+
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+			queued++;
+
+			try {
+				while (inFlight >= limiter.getLimit()) {
+
+					if (remaining <= 0) {
+						timedOut.incrementAndGet();
+						throw new BulkheadFullException("Timed out after " + timeout + " ms waiting for bulkhead " + name);
+					}
+
+					remaining = released.awaitNanos(remaining);
+				}
+
+				return admit();
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BulkheadFullException("Interrupted while waiting for bulkhead " + name);
+			} finally {
+				queued--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Permit admit() {
+		inFlight++;
+		admitted.incrementAndGet();
+		return new Permit(inFlight);
+	}
+
+	private void release(Permit permit, boolean dropped) {
+
+		limiter.onSample(System.nanoTime() - permit.startNanos, permit.inFlightAtStart, dropped);
+
+		lock.lock();
+		try {
+			inFlight--;
+			// the limit may have grown, wake up all waiters that fit
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current concurrency limit.
+	 *
+	 * @return
+	 */
+	public int getLimit() {
+		return limiter.getLimit();
+	}
+
+	/**
+	 * Returns the number of requests holding a permit.
+	 *
+	 * @return
+	 */
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests waiting for a permit.
+	 *
+	 * @return
+	 */
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests that got a permit.
+	 *
+	 * @return
+	 */
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected because the queue was full.
+	 *
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected because they waited too long for a permit.
+	 *
+	 * @return
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+}
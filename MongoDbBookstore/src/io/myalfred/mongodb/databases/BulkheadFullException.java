@@ -0,0 +1,15 @@
+package io.myalfred.mongodb.databases;
+
+import com.mongodb.MongoClientException;
+
+/**
+ * Thrown if a {@link Bulkhead} rejects an operation because its queue is full or the operation waited too long for a permit. Never retried.
+ */
+public class BulkheadFullException extends MongoClientException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BulkheadFullException(String message) {
+		super(message);
+	}
+}
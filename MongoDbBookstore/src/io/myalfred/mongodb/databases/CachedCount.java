@@ -0,0 +1,124 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of objects in a collection that is maintained locally: the stores and deletes of the owning client adjust it, and it is reconciled with the server count when it is
+ * older than the reconcile interval (which also picks up changes made by other clients).
+ */
+public class CachedCount {
+
+	/**
+	 * Counts the objects of the collection on the server.
+	 */
+	public interface Source {
+
+		/**
+		 * Returns the current number of objects in the collection.
+		 *
+		 * @return
+		 */
+		long count();
+	}
+
+	private final Source source;
+
+	private final long reconcileIntervalNanos;
+
+	/** serializes reconciliations, {@code this} guards replacing base and delta together */
+	private final Object reconcileLock = new Object();
+
+	/** the server count of the last reconciliation */
+	private long base;
+
+	/** the changes made locally since the last reconciliation */
+	private final AtomicLong delta = new AtomicLong();
+
+	/** when the count was last reconciled (System.nanoTime()), or 0 if never */
+	private volatile long reconciledAt;
+
+	private final AtomicLong reconciliations = new AtomicLong();
+
+	/**
+	 * Creates a new count that is reconciled on first access.
+	 *
+	 * @param source
+	 *            the server count to reconcile with
+	 * @param reconcileIntervalMillis
+	 *            the maximum age of the count before it is reconciled again
+	 */
+	public CachedCount(Source source, long reconcileIntervalMillis) {
+		this.source = source;
+		this.reconcileIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reconcileIntervalMillis);
+	}
+
+	/**
+	 * Returns the count, reconciled first if it is too old.
+	 *
+	 * @return
+	 */
+	public long get() {
+
+		if (isStale()) {
+			synchronized (reconcileLock) {
+				// concurrent callers wait for one reconciliation instead of sending their own
+				if (isStale())
+					reconcile();
+			}
+		}
+
+		synchronized (this) {
+			return base + delta.get();
+		}
+	}
+
+	private boolean isStale() {
+		return reconciledAt == 0 || System.nanoTime() - reconciledAt >= reconcileIntervalNanos;
+	}
+
+	/**
+	 * Adjusts the count by the provided number of objects stored (positive) or deleted (negative) by the owning client.
+	 *
+	 * @param objects
+	 */
+	public void add(long objects) {
+		delta.addAndGet(objects);
+	}
+
+	/**
+	 * Replaces the count with the server count. Local changes that complete while the server counts may be counted twice or not at all until the next reconciliation.
+	 */
+	public void reconcile() {
+
+		synchronized (reconcileLock) {
+
+			long pending = delta.get();
+			long count = source.count();
+
+			synchronized (this) {
+				delta.addAndGet(-pending);
+				base = count;
+			}
+
+			reconciledAt = Math.max(System.nanoTime(), 1);
+			reconciliations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Marks the count as outdated, so the next {@link #get()} reconciles it.
+	 */
+	public void invalidate() {
+		reconciledAt = 0;
+	}
+
+	/**
+	 * Returns how often the count was reconciled with the server.
+	 *
+	 * @return
+	 */
+	public long getReconciliations() {
+		return reconciliations.get();
+	}
+}
@@ -0,0 +1,631 @@
+package io.myalfred.mongodb.databases;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.ByteBufNIO;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.io.ByteBufferBsonInput;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+/**
+ * Local copy of a (small, frequently read) collection in a memory-mapped file, which serves {@link DatabaseClient#load(ObjectId)} and
+ * {@link DatabaseClient#loadAllByIds(List)} without network round trips. The snapshot stores the result of the client's aggregation pipeline. Joined fields ($lookup) are
+ * only as current as the last {@link #rebuild()}: {@link #refresh()} follows the changes of the main collection, not those of the joined collections.
+ * <p>
+ * File format (little endian): a 32 byte header (magic, version, object count, index offset, meta offset), the length-prefixed BSON documents, the index of 16 byte entries
+ * (ObjectId, document offset) sorted by id, and a BSON meta document holding the change stream resume token. The file is mapped as one buffer, so a snapshot is limited to
+ * 2 GB: writing a larger one fails with an {@link IllegalStateException}.
+ * <p>
+ * {@link #refresh()} only fetches what changed since the snapshot was written: the events of a change stream resumed from the stored token. If the change stream can
+ * not be resumed any more, or the server does not support change streams (standalone), the snapshot is rebuilt, as updates, deletes and inserts below the largest id can not
+ * be found otherwise.
+ * <p>
+ * Reads decode straight from the mapped file ({@link #getDocument(ObjectId)}). Only {@link #get(ObjectId)} copies the document, as a {@link RawBsonDocument} needs a byte
+ * array.
+ * <p>
+ * Every refresh writes and maps a new file. Java can not unmap a buffer explicitly, so the mapping of the replaced file, and with it its file handle and disk space (the file
+ * is unlinked, not truncated), is only released when the garbage collector collects the old buffer. Refresh at intervals of seconds or more, not per request.
+ */
+public class CollectionSnapshot {
+
+	private static final int MAGIC = 0x4D425353; // "MBSS"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+
+	private static final int INDEX_ENTRY_SIZE = 16;
+
+	/** the maximum size of a snapshot file, the largest buffer that can be mapped */
+	private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+	/** server error codes of a change stream that can not be resumed from its token: CappedPositionLost, ChangeStreamFatalError, ChangeStreamHistoryLost */
+	private static final Set<Integer> HISTORY_LOST_CODES = new HashSet<>(Arrays.asList(136, 280, 286));
+
+	/** the maximum number of changed ids fetched with one $in query */
+	private static final int FETCH_BATCH_SIZE = 1000;
+
+	/**
+	 * The mapped file, replaced as a whole on refresh so concurrent readers keep a consistent view.
+	 */
+	private static class Mapping {
+
+		final MappedByteBuffer buffer;
+
+		final int count;
+
+		final int indexOffset;
+
+		final BsonDocument resumeToken;
+
+		Mapping(MappedByteBuffer buffer, int count, int indexOffset, BsonDocument resumeToken) {
+			this.buffer = buffer;
+			this.count = count;
+			this.indexOffset = indexOffset;
+			this.resumeToken = resumeToken;
+		}
+	}
+
+	private final DatabaseClient<?> client;
+
+	private final Path file;
+
+	private volatile Mapping mapping;
+
+	/**
+	 * ids written through the client since the last refresh, served from the server until the next refresh, with the generation of their last write: a refresh only clears
+	 * the ids that were not written again while it fetched them
+	 */
+	private final ConcurrentHashMap<ObjectId, Long> stale = new ConcurrentHashMap<>();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a snapshot of the main collection of the provided client, stored in the provided file. Call {@link #open()} before use.
+	 *
+	 * @param client
+	 *            the client whose main collection (as returned by its aggregation pipeline) is copied
+	 * @param file
+	 *            the snapshot file
+	 */
+	public CollectionSnapshot(DatabaseClient<?> client, Path file) {
+		this.client = client;
+		this.file = file;
+	}
+
+	/**
+	 * Maps the snapshot file and refreshes it (see {@link #refresh()}), or builds the snapshot if there is no (valid) file yet.
+	 *
+	 * @return this snapshot
+	 */
+	public CollectionSnapshot open() {
+
+		if (Files.exists(file)) {
+			try {
+				mapping = map(file);
+				refresh();
+				return this;
+			} catch (IllegalStateException e) {
+				// not a snapshot file (or an older version), rebuild
+			}
+		}
+
+		rebuild();
+		return this;
+	}
+
+	/**
+	 * Replaces the snapshot with a full copy of the collection.
+	 */
+	public synchronized void rebuild() {
+
+		Map<ObjectId, Long> written = new HashMap<>(stale);
+
+		// the token is taken before the copy, so changes made during the copy are replayed by the next refresh
+		BsonDocument resumeToken = currentResumeToken();
+		TreeMap<ObjectId, ByteBuffer> documents = fetch(new Document());
+
+		write(null, documents, resumeToken);
+		clearStale(written);
+	}
+
+	/**
+	 * Applies the changes made since the snapshot was written (see the class description).
+	 */
+	public synchronized void refresh() {
+
+		Mapping current = mapping;
+
+		// objects written through the client are fetched in any case, their events may not be visible to the change stream yet
+		Map<ObjectId, Long> written = new HashMap<>(stale);
+
+		// without a change stream (standalone) nothing tells which objects changed
+		if (current.resumeToken == null) {
+			rebuild();
+			return;
+		}
+
+		TreeMap<ObjectId, ByteBuffer> changes = new TreeMap<>();
+		List<ObjectId> changed = new ArrayList<>(written.keySet());
+		BsonDocument resumeToken;
+
+		try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = client.getMainCollection().watch().resumeAfter(current.resumeToken)
+				.maxAwaitTime(100, TimeUnit.MILLISECONDS).cursor()) {
+
+			ChangeStreamDocument<Document> event;
+
+			while ((event = cursor.tryNext()) != null) {
+
+				if (event.getOperationType() == OperationType.INVALIDATE || event.getOperationType() == OperationType.DROP
+						|| event.getOperationType() == OperationType.RENAME) {
+					rebuild();
+					return;
+				}
+
+				BsonValue id = event.getDocumentKey() == null ? null : event.getDocumentKey().get("_id");
+
+				if (id == null || !id.isObjectId())
+					continue;
+
+				if (event.getOperationType() == OperationType.DELETE)
+					changes.put(id.asObjectId().getValue(), null);
+				else
+					changed.add(id.asObjectId().getValue());
+			}
+
+			resumeToken = cursor.getResumeToken();
+
+		} catch (MongoServerException e) {
+
+			if (!HISTORY_LOST_CODES.contains(e.getCode()))
+				throw e;
+
+			// the events since the token are gone, start over
+			rebuild();
+			return;
+		}
+
+		fetchInto(changes, changed);
+		write(current, changes, resumeToken == null ? current.resumeToken : resumeToken);
+		clearStale(written);
+	}
+
+	/**
+	 * Serves the provided ids from the snapshot again, unless they were written after their generation was taken: the refresh may have fetched them before that write.
+	 */
+	private void clearStale(Map<ObjectId, Long> written) {
+
+		for (Map.Entry<ObjectId, Long> entry : written.entrySet()) {
+			stale.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Fetches the current state of the objects with the provided ids into the changes, objects that do not exist any more are recorded as deleted.
+	 */
+	private void fetchInto(TreeMap<ObjectId, ByteBuffer> changes, List<ObjectId> ids) {
+
+		for (int i = 0; i < ids.size(); i += FETCH_BATCH_SIZE) {
+
+			List<ObjectId> batch = ids.subList(i, Math.min(ids.size(), i + FETCH_BATCH_SIZE));
+			TreeMap<ObjectId, ByteBuffer> fetched = fetch(new Document("_id", new Document("$in", batch)));
+
+			for (ObjectId id : batch) {
+				changes.put(id, fetched.get(id));
+			}
+		}
+	}
+
+	/**
+	 * Returns a resume token for the current position of the collection's change stream, or null if the server does not support change streams.
+	 *
+	 * @return
+	 */
+	protected BsonDocument currentResumeToken() {
+
+		try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = client.getMainCollection().watch().maxAwaitTime(1, TimeUnit.MILLISECONDS).cursor()) {
+			cursor.tryNext();
+			return cursor.getResumeToken();
+		} catch (MongoException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the client's aggregation pipeline with the provided filter and returns the raw results by id. The filter is empty, or matches the ids in ($in) the provided ones.
+	 *
+	 * @param match
+	 *            the filter on _id
+	 * @return the length-prefixed BSON documents by id
+	 */
+	protected TreeMap<ObjectId, ByteBuffer> fetch(Document match) {
+
+		return client.getRetryPolicy().execute(true, new RetryPolicy.Operation<TreeMap<ObjectId, ByteBuffer>>() {
+
+			@Override
+			public TreeMap<ObjectId, ByteBuffer> run(int attempt) {
+
+				TreeMap<ObjectId, ByteBuffer> documents = new TreeMap<>();
+
+				for (RawBsonDocument document : client.getMainCollection().aggregate(client.getAggregationPipeline(match), RawBsonDocument.class)) {
+
+					BsonValue id = document.get("_id");
+
+					if (id != null && id.isObjectId())
+						documents.put(id.asObjectId().getValue(), document.getByteBuffer().asNIO());
+				}
+
+				return documents;
+			}
+		});
+	}
+
+	/**
+	 * Writes a new snapshot file that merges the provided changes (null values are deletes) into the current mapping (or replaces it if null), then maps it. The file is written
+	 * to a temporary file first and moved over the old one, so a crash never leaves a partial snapshot.
+	 *
+	 * @throws IllegalStateException
+	 *             if the snapshot would exceed {@link #MAX_SIZE}
+	 */
+	private void write(Mapping current, TreeMap<ObjectId, ByteBuffer> changes, BsonDocument resumeToken) {
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+			channel.position(HEADER_SIZE);
+
+			List<ObjectId> ids = new ArrayList<>();
+			List<Integer> offsets = new ArrayList<>();
+
+			int i = 0;
+			int count = current == null ? 0 : current.count;
+			Map.Entry<ObjectId, ByteBuffer> change = changes.pollFirstEntry();
+
+			// merge the sorted old records with the sorted changes
+			while (i < count || change != null) {
+
+				ObjectId oldId = i < count ? idAt(current, i) : null;
+				int order = oldId == null ? 1 : change == null ? -1 : oldId.compareTo(change.getKey());
+
+				ObjectId id;
+				ByteBuffer document;
+
+				if (order < 0) {
+					id = oldId;
+					document = documentAt(current, i++);
+				} else {
+					id = change.getKey();
+					document = change.getValue();
+					change = changes.pollFirstEntry();
+
+					if (order == 0)
+						i++;
+				}
+
+				if (document == null)
+					continue;
+
+				checkSize(channel.position() + document.remaining());
+
+				ids.add(id);
+				offsets.add((int) channel.position());
+				writeFully(channel, document.duplicate());
+			}
+
+			int indexOffset = (int) channel.position();
+			ByteBuffer index = ByteBuffer.allocate(ids.size() * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			for (int j = 0; j < ids.size(); j++) {
+				index.put(ids.get(j).toByteArray());
+				index.putInt(offsets.get(j));
+			}
+
+			index.flip();
+			writeFully(channel, index);
+
+			long metaOffset = channel.position();
+			Document meta = new Document("created", new Date());
+
+			if (resumeToken != null)
+				meta.append("resumeToken", resumeToken);
+
+			writeFully(channel, new RawBsonDocument(meta, new DocumentCodec()).getByteBuffer().asNIO());
+			checkSize(channel.position());
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(ids.size()).putInt(0).putLong(indexOffset).putLong(metaOffset);
+			header.flip();
+
+			channel.position(0);
+			writeFully(channel, header);
+			channel.force(true);
+
+		} catch (IOException e) {
+			deleteQuietly(temp);
+			throw new UncheckedIOException("Could not write snapshot " + temp, e);
+		} catch (RuntimeException e) {
+			deleteQuietly(temp);
+			throw e;
+		}
+
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			mapping = map(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not replace snapshot " + file, e);
+		}
+	}
+
+	private void checkSize(long size) {
+		if (size > MAX_SIZE)
+			throw new IllegalStateException("Snapshot " + file + " exceeds " + MAX_SIZE + " bytes, the limit of one mapped buffer");
+	}
+
+	private static void deleteQuietly(Path temp) {
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			// the next write truncates it
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Maps the provided snapshot file.
+	 *
+	 * @throws IllegalStateException
+	 *             if the file is not a snapshot of the current version
+	 */
+	private static Mapping map(Path file) {
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+			if (channel.size() > MAX_SIZE)
+				throw new IllegalStateException("Snapshot file too large to map: " + file);
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				throw new IllegalStateException("Not a snapshot file: " + file);
+
+			int count = buffer.getInt(8);
+			int indexOffset = (int) buffer.getLong(16);
+			int metaOffset = (int) buffer.getLong(24);
+
+			BsonDocument meta = new BsonDocumentCodec().decode(reader(slice(buffer, metaOffset)), DecoderContext.builder().build());
+
+			return new Mapping(buffer, count, indexOffset, meta.containsKey("resumeToken") ? meta.getDocument("resumeToken") : null);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not map snapshot " + file, e);
+		}
+	}
+
+	private static ObjectId idAt(Mapping mapping, int i) {
+
+		byte[] bytes = new byte[12];
+		ByteBuffer entry = mapping.buffer.duplicate();
+		entry.position(mapping.indexOffset + i * INDEX_ENTRY_SIZE);
+		entry.get(bytes);
+		return new ObjectId(bytes);
+	}
+
+	private static ByteBuffer documentAt(Mapping mapping, int i) {
+		return slice(mapping.buffer, mapping.buffer.getInt(mapping.indexOffset + i * INDEX_ENTRY_SIZE + 12));
+	}
+
+	/**
+	 * Returns the length-prefixed BSON document at the provided offset, without copying it.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + buffer.getInt(offset));
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static BsonBinaryReader reader(ByteBuffer document) {
+		return new BsonBinaryReader(new ByteBufferBsonInput(new ByteBufNIO(document)));
+	}
+
+	/**
+	 * Returns the index of the provided id, or -1 if it is not in the snapshot.
+	 */
+	private static int find(Mapping mapping, ObjectId id) {
+
+		byte[] key = id.toByteArray();
+		int low = 0;
+		int high = mapping.count - 1;
+
+		while (low <= high) {
+
+			int mid = (low + high) >>> 1;
+			int base = mapping.indexOffset + mid * INDEX_ENTRY_SIZE;
+			int order = 0;
+
+			for (int b = 0; b < 12 && order == 0; b++) {
+				order = Integer.compare(mapping.buffer.get(base + b) & 0xff, key[b] & 0xff);
+			}
+
+			if (order < 0)
+				low = mid + 1;
+			else if (order > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns true if the object with the provided id can be served from the snapshot: it is in the snapshot and was not written through the client since the last refresh.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public boolean contains(ObjectId id) {
+		return !stale.containsKey(id) && find(mapping, id) >= 0;
+	}
+
+	/**
+	 * Returns the document with the provided id decoded straight from the mapped file, or null if it can not be served from the snapshot.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public Document getDocument(ObjectId id) {
+
+		ByteBuffer document = find(id);
+		return document == null ? null : new DocumentCodec().decode(reader(document), DecoderContext.builder().build());
+	}
+
+	/**
+	 * Returns the document with the provided id, or null if it can not be served from the snapshot. The document is not decoded: its bytes are copied from the mapped file in
+	 * one piece ({@link RawBsonDocument} needs a byte array) and its fields are decoded on access. Use {@link #getDocument(ObjectId)} to read all fields anyway.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public RawBsonDocument get(ObjectId id) {
+
+		ByteBuffer document = find(id);
+
+		if (document == null)
+			return null;
+
+		byte[] bytes = new byte[document.remaining()];
+		document.get(bytes);
+		return new RawBsonDocument(bytes);
+	}
+
+	/**
+	 * Returns the mapped bytes of the document with the provided id and counts the read, or null if it can not be served from the snapshot.
+	 */
+	private ByteBuffer find(ObjectId id) {
+
+		Mapping current = mapping;
+		int i = stale.containsKey(id) ? -1 : find(current, id);
+
+		if (i < 0) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return documentAt(current, i);
+	}
+
+	/**
+	 * Returns the documents with the provided ids that can be served from the snapshot.
+	 *
+	 * @param ids
+	 * @return
+	 */
+	public List<RawBsonDocument> getAll(Collection<ObjectId> ids) {
+
+		List<RawBsonDocument> documents = new ArrayList<>();
+
+		for (ObjectId id : ids) {
+
+			RawBsonDocument document = get(id);
+
+			if (document != null)
+				documents.add(document);
+		}
+
+		return documents;
+	}
+
+	/**
+	 * Marks the object with the provided id as modified, so it is read from the server until the next refresh that starts after this call. Writers mark the id before and
+	 * after the write, so a refresh that overlaps the write does not serve the state from before it.
+	 *
+	 * @param id
+	 */
+	public void markStale(ObjectId id) {
+		stale.put(id, generation.incrementAndGet());
+	}
+
+	/**
+	 * Returns the number of objects in the snapshot.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return mapping.count;
+	}
+
+	/**
+	 * Returns the snapshot file.
+	 *
+	 * @return
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of reads served from the snapshot.
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of reads that had to go to the server.
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,261 @@
+package io.myalfred.mongodb.databases;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Exports the main collection of a {@link DatabaseClient} to a file and imports it back, as raw BSON without decoding the documents into objects. Ids are preserved, the files
+ * are compatible with mongodump and mongorestore (see {@link BsonFile}).
+ * <p>
+ * Exports read the "_id" ranges of a {@link ParallelScan} concurrently, imports insert batches with unordered bulk writes on multiple writer threads. The order of the documents
+ * in an exported file therefore depends on the timing of the readers.
+ */
+public class CollectionTransfer {
+
+	private final DatabaseClient<?> client;
+
+	/** the number of "_id" ranges exported concurrently */
+	private int partitions = 4;
+
+	/** the number of concurrent insertMany calls of an import */
+	private int writers = 4;
+
+	/** the maximum number of documents of one insertMany */
+	private int batchSize = 1000;
+
+	/** the size of the buffer a reader collects documents in before writing them to the file */
+	private int bufferSize = 1 << 20;
+
+	private boolean compress = false;
+
+	/** true if an import treats documents whose id exists already as imported (e.g. to continue an interrupted import) */
+	private boolean skipExisting = false;
+
+	/**
+	 * Creates a transfer of the main collection of the provided client.
+	 *
+	 * @param client
+	 */
+	public CollectionTransfer(DatabaseClient<?> client) {
+		this.client = client;
+	}
+
+	public CollectionTransfer partitions(int partitions) {
+		this.partitions = partitions;
+		return this;
+	}
+
+	public CollectionTransfer writers(int writers) {
+		this.writers = writers;
+		return this;
+	}
+
+	public CollectionTransfer batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public CollectionTransfer bufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	public CollectionTransfer compress(boolean compress) {
+		this.compress = compress;
+		return this;
+	}
+
+	public CollectionTransfer skipExisting(boolean skipExisting) {
+		this.skipExisting = skipExisting;
+		return this;
+	}
+
+	/**
+	 * Exports all documents of the collection to the provided file.
+	 *
+	 * @param file
+	 *            the file to create (or replace)
+	 * @return the number of exported documents and bytes and the throughput
+	 */
+	public TransferReport exportTo(Path file) {
+
+		long start = System.nanoTime();
+
+		AtomicLong documents = new AtomicLong();
+		AtomicLong bytes = new AtomicLong();
+
+		List<Document> ranges = new ParallelScan<>(client, partitions).split();
+		MongoCollection<RawBsonDocument> collection = client.getMainCollection().withDocumentClass(RawBsonDocument.class);
+
+		ExecutorService readers = Executors.newFixedThreadPool(ranges.size());
+
+		try (BsonFile.Writer writer = BsonFile.writer(file, compress)) {
+
+			List<Future<Void>> results = new ArrayList<>();
+
+			for (Document range : ranges) {
+
+				results.add(readers.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+
+						ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+
+						try (MongoCursor<RawBsonDocument> cursor = collection.find(range).batchSize(batchSize).iterator()) {
+
+							while (cursor.hasNext()) {
+
+								ByteBuffer document = cursor.next().getByteBuffer().asNIO();
+								int size = document.remaining();
+
+								if (size > buffer.remaining()) {
+									buffer.flip();
+									writer.write(buffer);
+									buffer.clear();
+								}
+
+								if (size > buffer.capacity())
+									writer.write(document);
+								else
+									buffer.put(document);
+
+								documents.incrementAndGet();
+								bytes.addAndGet(size);
+							}
+						}
+
+						buffer.flip();
+						writer.write(buffer);
+						return null;
+					}
+				}));
+			}
+
+			await(results);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write " + file, e);
+		} finally {
+			readers.shutdownNow();
+		}
+
+		return new TransferReport(documents.get(), bytes.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Imports all documents of the provided file into the collection, with their ids.
+	 *
+	 * @param file
+	 *            a file created by {@link #exportTo(Path)} or mongodump (optionally gzip compressed)
+	 * @return the number of imported documents and bytes and the throughput
+	 */
+	public TransferReport importFrom(Path file) {
+
+		long start = System.nanoTime();
+		long documents = 0;
+		long bytes = 0;
+
+		MongoCollection<RawBsonDocument> collection = client.getMainCollection().withDocumentClass(RawBsonDocument.class);
+
+		// a full queue makes the reading thread insert the batch itself, which keeps the number of batches in memory bounded
+		ThreadPoolExecutor insertPool = new ThreadPoolExecutor(writers, writers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(writers),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		try (BsonFile.Reader reader = BsonFile.reader(file)) {
+
+			List<Future<Void>> results = new ArrayList<>();
+			List<RawBsonDocument> batch = new ArrayList<>(batchSize);
+			RawBsonDocument document;
+
+			while ((document = reader.next()) != null) {
+
+				batch.add(document);
+				documents++;
+				bytes += document.getByteBuffer().remaining();
+
+				if (batch.size() == batchSize) {
+					results.add(insertPool.submit(insertTask(collection, batch)));
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+
+			if (!batch.isEmpty())
+				results.add(insertPool.submit(insertTask(collection, batch)));
+
+			await(results);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read " + file, e);
+		} finally {
+			insertPool.shutdownNow();
+			client.getCachedCount().invalidate();
+		}
+
+		return new TransferReport(documents, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	private Callable<Void> insertTask(MongoCollection<RawBsonDocument> collection, List<RawBsonDocument> batch) {
+
+		return new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+
+				return client.getRetryPolicy().execute(true, new RetryPolicy.Operation<Void>() {
+
+					@Override
+					public Void run(int attempt) {
+						try {
+							collection.insertMany(batch, new InsertManyOptions().ordered(false));
+						} catch (MongoException e) {
+							// a previous attempt may have inserted a part of the batch, the ids come from the file
+							if (!(skipExisting || attempt > 1) || !TransientErrors.isDuplicateId(e))
+								throw e;
+						}
+						return null;
+					}
+				});
+			}
+		};
+	}
+
+	private static void await(List<Future<Void>> results) {
+
+		try {
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Transfer interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw new UncheckedIOException((IOException) e.getCause());
+			throw new IllegalStateException("Transfer failed", e.getCause());
+		}
+	}
+}
@@ -5,4 +5,5 @@ public abstract class Collections {
 	public static final String TEST_DATA_BOOKSTORE = "bookstores";
 	public static final String TEST_DATA_BOOK = "books";
 	public static final String TEST_DATA_AUTHOR = "authors";
+	public static final String TEST_DATA_PRICE_HISTORY = "pricehistory";
 }
@@ -1,22 +1,48 @@
 package io.myalfred.mongodb.databases;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
-import com.mongodb.Block;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCompressor;
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.MongoIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
+import io.myalfred.mongodb.data.IdentityMap;
 import io.myalfred.mongodb.data.MongoObject;
 import io.myalfred.mongodb.dbauth.DbAuth;
 
@@ -30,7 +56,63 @@ import io.myalfred.mongodb.dbauth.DbAuth;
  * @param <T>
  *            the class that is managed by this instance of the DatabaseClient
  */
-public abstract class DatabaseClient<T extends MongoObject> {
+public abstract class DatabaseClient<T extends MongoObject> implements AutoCloseable {
+
+	/**
+	 * How long objects decoded by this client are shared via an {@link IdentityMap}.
+	 */
+	public enum IdentityScope {
+
+		/** every document is decoded into new objects (the default) */
+		NONE,
+
+		/** objects with the same id within one query result are shared, e.g. changing the author of one book changes it for all books of that author in the result */
+		QUERY,
+
+		/** objects with the same id are shared across all queries of this client until {@link DatabaseClient#clearIdentities()} is called */
+		SESSION
+	}
+
+	/**
+	 * How {@link DatabaseClient#objectCount()} counts.
+	 */
+	public enum CountMode {
+
+		/** counts the documents on the server (scans the "_id" index) */
+		EXACT,
+
+		/** reads the count from the collection metadata, fast but may be off after an unclean shutdown or with orphaned documents on sharded clusters */
+		ESTIMATED,
+
+		/** uses a count maintained by the stores and deletes of this client, periodically reconciled with the exact count */
+		CACHED
+	}
+
+	/**
+	 * Receives the writes made through a client after they succeeded, e.g. to keep in-memory indexes up to date. Listeners are called on the writing thread and must not throw. Writes
+	 * made by other clients (or processes) are not seen.
+	 *
+	 * @param <T>
+	 *            the class that is managed by the client
+	 */
+	public interface WriteListener<T> {
+
+		/**
+		 * Called after the provided object was stored, updated or upserted.
+		 */
+		void onWritten(T data);
+
+		/**
+		 * Called after a field of the object with the provided id was updated. With write-behind, this is called when the flush wrote the update, not when it was buffered, and
+		 * not at all for updates the server rejected.
+		 */
+		void onUpdated(ObjectId id, String fieldName, Object value);
+
+		/**
+		 * Called after the object with the provided id was deleted, or a retried delete found it missing (possibly deleted by the lost previous attempt).
+		 */
+		void onDeleted(ObjectId id);
+	}
 
 	/** the client used to connect to a database instance */
 	private MongoClient client;
@@ -38,6 +120,53 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	/** the database instance the client is connected to */
 	private MongoDatabase database;
 
+	/** the collection handles resolved so far, by name */
+	private final ConcurrentMap<String, MongoCollection<Document>> collections = new ConcurrentHashMap<>();
+
+	/** the number of connections {@link #warmUp(Document)} opens */
+	private int warmUpConnections = 1;
+
+	/** the result of the last warm-up, null if the client was not warmed up */
+	private volatile WarmUpReport warmUpReport;
+
+	/** the policy failed operations are retried with */
+	private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+	/** how long decoded objects are shared, not at all by default */
+	private IdentityScope identityScope = IdentityScope.NONE;
+
+	/** the identity map shared by all queries with {@link IdentityScope#SESSION} */
+	private final IdentityMap sessionIdentities = new IdentityMap();
+
+	/** true if query results are kept as raw BSON and decoded field by field on first access */
+	private boolean lazyDecoding = false;
+
+	/** how objectCount() counts */
+	private CountMode countMode = CountMode.EXACT;
+
+	/** the time budget of operations that run without a {@link Deadline} attached by the caller, 0 for none */
+	private long defaultTimeoutMillis = 0;
+
+	/** limits the concurrent requests of this client (possibly shared with other clients), null if unlimited */
+	private volatile Bulkhead bulkhead;
+
+	/** hedges reads by id and other selected reads, null if they are not hedged */
+	private volatile HedgedReads hedgedReads;
+
+	/** counters of operations that ran with a deadline */
+	private final TimeoutMetrics timeoutMetrics = new TimeoutMetrics();
+
+	/** the count used with {@link CountMode#CACHED} */
+	private CachedCount cachedCount = newCachedCount(60000);
+
+	/** buffers field updates if write-behind is enabled, null otherwise */
+	private WriteBehindBuffer writeBehind;
+
+	/** the local copy of the main collection that serves loads by id, null if disabled */
+	private volatile CollectionSnapshot snapshot;
+
+	private final List<WriteListener<T>> writeListeners = new CopyOnWriteArrayList<>();
+
 	/**
 	 * Default constructor, connects to either staging or production database (depending on configuration).
 	 * 
@@ -60,95 +189,1000 @@ public abstract class DatabaseClient<T extends MongoObject> {
 			client.close();
 		}
 
-		String host = "mongodb://" + auth.username + ":" + auth.password + "@" + auth.getServerIp();
+		// a seed list of replica set members / mongos routers, or a single SRV record that resolves to them
+		String scheme = auth.isSrvDiscovery() ? "mongodb+srv://" : "mongodb://";
+		String host = scheme + auth.username + ":" + auth.password + "@" + String.join(",", auth.getHosts());
 		String authString = "/?authSource=" + auth.databaseName + "&authMechanism=" + auth.authMechanism;
 
-		client = new MongoClient(new MongoClientURI(host + ":" + auth.port + authString));
+		if (auth.getReplicaSetName() != null)
+			authString += "&replicaSet=" + auth.getReplicaSetName();
+
+		MongoClientOptions.Builder options = MongoClientOptions.builder().sslEnabled(auth.isSslEnabled()).sslInvalidHostNameAllowed(auth.isSslInvalidHostNameAllowed())
+				.compressorList(toCompressors(auth.getCompressors()));
+
+		if (auth.getServerSelectionTimeout() >= 0)
+			options.serverSelectionTimeout(auth.getServerSelectionTimeout());
+
+		if (auth.getLocalThreshold() >= 0)
+			options.localThreshold(auth.getLocalThreshold());
+
+		if (auth.getReadPreference() != null)
+			options.readPreference(ReadPreference.valueOf(auth.getReadPreference()));
+
+		if (auth.getMinPoolSize() >= 0)
+			options.minConnectionsPerHost(auth.getMinPoolSize());
+
+		if (auth.getSocketTimeout() >= 0)
+			options.socketTimeout(auth.getSocketTimeout());
+
+		client = new MongoClient(new MongoClientURI(host + authString, options));
 		database = client.getDatabase(auth.databaseName);
+		collections.clear();
+		warmUpConnections = Math.max(1, auth.getMinPoolSize());
+		warmUpReport = null;
 	}
 
 	/**
-	 * Returns the collection (table) with the given name or creates a new collection with the given name if none exists.
+	 * Transforms the provided compressor names (see {@link DbAuth#setCompressors(String...)}) to the compressors required by the MongoDb driver.
+	 * 
+	 * @param names
+	 *            the compressor names, in order of preference
+	 * @return a list of MongoCompressor objects
+	 */
+	private static List<MongoCompressor> toCompressors(List<String> names) {
+
+		List<MongoCompressor> compressors = new ArrayList<>();
+
+		for (String name : names) {
+			switch (name) {
+			case DbAuth.COMPRESSOR_ZSTD:
+				compressors.add(MongoCompressor.createZstdCompressor());
+				break;
+			case DbAuth.COMPRESSOR_SNAPPY:
+				compressors.add(MongoCompressor.createSnappyCompressor());
+				break;
+			case DbAuth.COMPRESSOR_ZLIB:
+				compressors.add(MongoCompressor.createZlibCompressor());
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported compressor: " + name);
+			}
+		}
+
+		return compressors;
+	}
+
+	/**
+	 * Returns the collection (table) with the given name or creates a new collection with the given name if none exists. The handle is resolved once and cached.
 	 * 
 	 * @param name
 	 * @return a collection with the given name
 	 */
 	protected MongoCollection<Document> getCollection(String name) {
+
+		MongoCollection<Document> cached = collections.get(name);
+
+		if (cached != null)
+			return cached;
+
 		MongoCollection<Document> collection = database.getCollection(name);
 
 		if (collection == null) {
 
 			// none exists, create a new one
 			database.createCollection(name);
-			return database.getCollection(name);
+			collection = database.getCollection(name);
+		}
 
-		} else {
-			return collection;
+		MongoCollection<Document> existing = collections.putIfAbsent(name, collection);
+		return existing == null ? collection : existing;
+	}
+
+	/**
+	 * Returns the main collection this client represents.
+	 * 
+	 * @return
+	 */
+	protected abstract MongoCollection<Document> getMainCollection();
+
+	/**
+	 * Returns a List<Bson> of pipeline arguments for an "aggregate" query containing a $match filter with the match arguments provided as a parameter. Override this method to add
+	 * additional arguments to the pipeline.
+	 * 
+	 * @param match
+	 *            the query arguments that need to be "matched" using MongoDb $match operator
+	 * @return
+	 */
+	protected abstract List<Bson> getAggregationPipeline(Document match);
+
+	/**
+	 * Returns a List<T> results (all) based on the provided "match" aggregation query.
+	 * 
+	 * @param match
+	 *            the query to "match"
+	 * @return the query result (a list of objects)
+	 */
+	protected List<T> aggregationQueryAll(Document match) {
+		flushPending(match);
+		return queryAll(match);
+	}
+
+	/**
+	 * Runs the aggregation query without flushing buffered updates.
+	 */
+	private List<T> queryAll(Document match) {
+
+		return execute(true, new RetryPolicy.Operation<List<T>>() {
+
+			@Override
+			public List<T> run(int attempt) {
+
+				List<T> results = new ArrayList<>();
+				Deadline deadline = Deadline.current();
+
+				if (lazyDecoding) {
+					try (MongoCursor<RawBsonDocument> cursor = getMainCollection().aggregate(getAggregationPipeline(match), RawBsonDocument.class)
+							.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS).iterator()) {
+						while (cursor.hasNext()) {
+							if (deadline != null)
+								deadline.check();
+							results.add(dataFromResult(cursor.next()));
+						}
+					}
+					return results;
+				}
+
+				IdentityMap identities = queryIdentities();
+
+				try (MongoCursor<Document> cursor = getMainCollection().aggregate(getAggregationPipeline(match)).maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS)
+						.iterator()) {
+
+					while (cursor.hasNext()) {
+						// stops reading further batches once the deadline expired or was cancelled
+						if (deadline != null)
+							deadline.check();
+						results.add(dataFromResult(cursor.next(), identities));
+					}
+				}
+
+				return results;
+			}
+		});
+	}
+
+	/**
+	 * Returns the first result object T based on the provided "match" aggregation query.
+	 * 
+	 * @param the
+	 *            query to "match"
+	 * @return the query result (a single object)
+	 */
+	protected T aggregationQueryFirst(Document match) {
+		flushPending(match);
+		return queryFirst(match);
+	}
+
+	/**
+	 * Returns the first result object T based on the provided "match" aggregation query, hedged if {@link #enableHedgedReads(double, double) hedged reads} are enabled. Use
+	 * this for latency sensitive queries that are cheap enough to run twice.
+	 * 
+	 * @param match
+	 *            the query to "match"
+	 * @return the query result (a single object)
+	 */
+	protected T hedgedQueryFirst(Document match) {
+		flushPending(match);
+		return hedgedFirst(match);
+	}
+
+	/**
+	 * Runs the aggregation query without flushing buffered updates, hedged if hedged reads are enabled.
+	 */
+	private T hedgedFirst(Document match) {
+
+		HedgedReads hedging = hedgedReads;
+
+		if (hedging == null)
+			return queryFirst(match, null);
+
+		Callable<T> read = new Callable<T>() {
+
+			@Override
+			public T call() {
+				return queryFirst(match, null);
+			}
+		};
+
+		Callable<T> hedge = new Callable<T>() {
+
+			@Override
+			public T call() {
+				return queryFirst(match, hedging.getHedgePreference());
+			}
+		};
+
+		// both requests have to run within the same deadline, so the default timeout is attached here and not per request
+		if (Deadline.current() != null || defaultTimeoutMillis <= 0)
+			return hedging.execute(read, hedge);
+
+		Deadline.Scope scope = Deadline.after(defaultTimeoutMillis).attach();
+		try {
+			return hedging.execute(read, hedge);
+		} finally {
+			scope.close();
+		}
+	}
+
+	/**
+	 * Runs the aggregation query without flushing buffered updates.
+	 */
+	private T queryFirst(Document match) {
+		return queryFirst(match, null);
+	}
+
+	/**
+	 * Runs the aggregation query without flushing buffered updates, with the provided read preference or, if it is null, the one of the client.
+	 */
+	private T queryFirst(Document match, ReadPreference readPreference) {
+
+		MongoCollection<Document> collection = readPreference == null ? getMainCollection() : getMainCollection().withReadPreference(readPreference);
+
+		if (lazyDecoding) {
+
+			RawBsonDocument raw = execute(true, new RetryPolicy.Operation<RawBsonDocument>() {
+
+				@Override
+				public RawBsonDocument run(int attempt) {
+					return collection.aggregate(getAggregationPipeline(match), RawBsonDocument.class).maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS).first();
+				}
+			});
+
+			return raw == null ? null : dataFromResult(raw);
+		}
+
+		Document document = execute(true, new RetryPolicy.Operation<Document>() {
+
+			@Override
+			public Document run(int attempt) {
+				return collection.aggregate(getAggregationPipeline(match)).maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS).first();
+			}
+		});
+
+		if (document == null)
+			return null;
+		else
+			return dataFromResult(document, queryIdentities());
+	}
+
+	/**
+	 * Returns the MongoClient this client is connected with.
+	 * 
+	 * @return
+	 */
+	protected MongoClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Returns the MongoDb database instance this client is connected to.
+	 * 
+	 * @return
+	 */
+	protected MongoDatabase getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Returns the identity map to decode the result of a new query with.
+	 * 
+	 * @return
+	 */
+	protected IdentityMap queryIdentities() {
+
+		switch (identityScope) {
+		case SESSION:
+			return sessionIdentities;
+		case QUERY:
+			return new IdentityMap();
+		default:
+			return IdentityMap.NONE;
+		}
+	}
+
+	/**
+	 * Returns how long objects decoded by this client are shared.
+	 * 
+	 * @return
+	 */
+	public IdentityScope getIdentityScope() {
+		return identityScope;
+	}
+
+	/**
+	 * Sets how long objects decoded by this client are shared, {@link IdentityScope#NONE} by default. Shared objects save memory and decoding, but are mutable: changes to one
+	 * reference are seen through all others. With {@link IdentityScope#SESSION}, loading an object that was loaded before returns the existing instance (with the state it was
+	 * first loaded with), call {@link #clearIdentities()} to see changes made by others.
+	 * 
+	 * @param identityScope
+	 */
+	public void setIdentityScope(IdentityScope identityScope) {
+		this.identityScope = identityScope;
+	}
+
+	/**
+	 * Removes all objects shared across queries with {@link IdentityScope#SESSION}.
+	 */
+	public void clearIdentities() {
+		sessionIdentities.clear();
+	}
+
+	/**
+	 * Returns true if query results are kept as raw BSON and decoded field by field on first access.
+	 * 
+	 * @return
+	 */
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Enables lazy decoding: query results are kept as raw BSON byte buffers and each field is decoded on its first access, which saves CPU and allocations if only a few fields
+	 * are read. Lazily decoded objects do not use the identity map.
+	 * 
+	 * @param lazyDecoding
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	/**
+	 * Returns the policy failed operations of this client are retried with.
+	 * 
+	 * @return
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the policy failed operations of this client are retried with. By default all clients share {@link RetryPolicy#DEFAULT} (and therefore its retry budget), use
+	 * {@link RetryPolicy#NONE} to disable retries.
+	 * 
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Warms up the client without preloading objects, see {@link #warmUp(Document)}.
+	 * 
+	 * @return the warm-up report
+	 */
+	public WarmUpReport warmUp() {
+		return warmUp(null);
+	}
+
+	/**
+	 * Prepares the client for its first requests: opens and authenticates as many connections as the pool keeps open ({@link DbAuth#setMinPoolSize(int)}, at least one)
+	 * concurrently to the member the read preference of the client selects (and one to the primary for writes, if reads go elsewhere), resolves the handle of the main
+	 * collection and loads the objects matching the provided filter (e.g. an empty document for all authors) into the identity map, which requires
+	 * {@link IdentityScope#SESSION}. Gate the readiness of a node on {@link #isWarmedUp()}.
+	 * 
+	 * @param preloadMatch
+	 *            the filter of the objects to preload, null to preload nothing
+	 * @return the warm-up report, including the time it took
+	 * @throws IllegalStateException
+	 *             if objects should be preloaded, but the identity scope is not {@link IdentityScope#SESSION} (they would be discarded)
+	 */
+	public WarmUpReport warmUp(Document preloadMatch) {
+
+		if (preloadMatch != null && identityScope != IdentityScope.SESSION)
+			throw new IllegalStateException("Preloading requires the identity scope SESSION, the objects would be discarded with " + identityScope);
+
+		long start = System.nanoTime();
+		ReadPreference readPreference = getMainCollection().getReadPreference();
+
+		int connections = warmUpConnections;
+		ExecutorService executor = Executors.newFixedThreadPool(connections);
+
+		try {
+			// all pings wait for each other, so each one needs its own connection
+			CyclicBarrier barrier = new CyclicBarrier(connections);
+			List<Future<Document>> pings = new ArrayList<>();
+
+			for (int i = 0; i < connections; i++) {
+
+				pings.add(executor.submit(new Callable<Document>() {
+
+					@Override
+					public Document call() throws Exception {
+						barrier.await();
+						return database.runCommand(new Document("ping", 1), readPreference);
+					}
+				}));
+			}
+
+			// writes go to the primary in any case
+			if (!readPreference.equals(ReadPreference.primary()))
+				database.runCommand(new Document("ping", 1), ReadPreference.primary());
+
+			for (Future<Document> ping : pings) {
+				ping.get();
+			}
+
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new MongoException("Warm-up failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MongoException("Warm-up interrupted", e);
+		} finally {
+			executor.shutdown();
+		}
+
+		getMainCollection();
+
+		long connected = System.nanoTime();
+		int preloaded = preloadMatch == null ? 0 : aggregationQueryAll(preloadMatch).size();
+		long end = System.nanoTime();
+
+		WarmUpReport report = new WarmUpReport(connections, TimeUnit.NANOSECONDS.toMillis(connected - start), preloaded, TimeUnit.NANOSECONDS.toMillis(end - connected),
+				TimeUnit.NANOSECONDS.toMillis(end - start));
+
+		warmUpReport = report;
+		return report;
+	}
+
+	/**
+	 * Returns true if {@link #warmUp(Document)} completed since the client connected.
+	 * 
+	 * @return
+	 */
+	public boolean isWarmedUp() {
+		return warmUpReport != null;
+	}
+
+	/**
+	 * Returns the report of the last warm-up, or null if the client was not warmed up.
+	 * 
+	 * @return
+	 */
+	public WarmUpReport getWarmUpReport() {
+		return warmUpReport;
+	}
+
+	/**
+	 * Enables write-behind: updates of single fields ({@link #update(ObjectId, String, Object)}) are buffered and written in batches, repeated updates of the same field are merged.
+	 * Reads of this client see the buffered updates: they are applied to the loaded objects, and only queries that filter on a field with a pending update (or on a joined
+	 * field, see {@link #isJoinedField(String)}) flush first. Other clients (and other processes) only see them after the next flush, and buffered updates are lost if the
+	 * process dies before {@link #close()} (or the shutdown hook) flushed them. The {@link WriteListener}s are called once a flush wrote an update. Updates the server rejects
+	 * are dropped and reported to the {@link WriteBehindBuffer.DropListener} of the returned buffer.
+	 * 
+	 * @param capacity
+	 *            the maximum number of objects with pending updates, updates block while the buffer is full
+	 * @param flushSize
+	 *            the number of objects with pending updates that triggers a flush
+	 * @param flushIntervalMillis
+	 *            the maximum time an update stays in the buffer (roughly)
+	 * @param offerTimeoutMillis
+	 *            how long an update waits for room in a full buffer before it is rejected
+	 * @return the buffer, for its counters and explicit flushes
+	 */
+	public WriteBehindBuffer enableWriteBehind(int capacity, int flushSize, long flushIntervalMillis, long offerTimeoutMillis) {
+
+		disableWriteBehind();
+
+		writeBehind = new WriteBehindBuffer(this, capacity, flushSize, flushIntervalMillis, offerTimeoutMillis);
+		return writeBehind;
+	}
+
+	/**
+	 * Flushes all buffered updates and writes further updates immediately.
+	 */
+	public void disableWriteBehind() {
+
+		if (writeBehind != null) {
+			WriteBehindBuffer buffer = writeBehind;
+			writeBehind = null;
+			buffer.close();
 		}
 	}
 
 	/**
-	 * Returns the main collection this client represents.
+	 * Returns the write-behind buffer, or null if write-behind is disabled.
+	 * 
+	 * @return
+	 */
+	public WriteBehindBuffer getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Writes all buffered updates, so a following query sees them.
+	 */
+	protected void flushPending() {
+
+		WriteBehindBuffer buffer = writeBehind;
+
+		if (buffer != null && buffer.size() > 0)
+			buffer.flush();
+	}
+
+	/**
+	 * Writes the buffered updates if one of them sets a field the provided filter refers to, so the server matches the objects the way they will be once the updates are
+	 * written. Filters whose fields can not be determined ($expr, $where, $text) flush all buffered updates.
+	 * 
+	 * @param match
+	 *            the filter of a query
+	 */
+	protected void flushPending(Document match) {
+
+		WriteBehindBuffer buffer = writeBehind;
+
+		if (buffer == null || buffer.size() == 0)
+			return;
+
+		Set<String> fields = new HashSet<>();
+
+		if (!filterFields(match, fields) || buffer.needsFlush(null, fields))
+			buffer.flush();
+	}
+
+	/**
+	 * Collects the top-level fields the provided filter (a document, or a list or value of an operator) refers to, returns false if they can not be determined.
+	 */
+	private static boolean filterFields(Object filter, Set<String> fields) {
+
+		if (filter instanceof List) {
+
+			for (Object element : (List<?>) filter) {
+				if (!filterFields(element, fields))
+					return false;
+			}
+		} else if (filter instanceof Document) {
+
+			for (Map.Entry<String, Object> entry : ((Document) filter).entrySet()) {
+
+				String key = entry.getKey();
+
+				if ("$expr".equals(key) || "$where".equals(key) || "$text".equals(key))
+					return false;
+
+				if (!key.startsWith("$")) {
+					int dot = key.indexOf('.');
+					fields.add(dot < 0 ? key : key.substring(0, dot));
+				}
+
+				if (!filterFields(entry.getValue(), fields))
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns true if the aggregation pipeline replaces the provided top-level field of the main collection (e.g. an id that is replaced by the joined document). Buffered
+	 * updates of such fields can not be applied to query results, so objects with such updates are flushed before they are read. The default returns false.
+	 * 
+	 * @param field
+	 *            a top-level field of the main collection
+	 * @return
+	 */
+	protected boolean isJoinedField(String field) {
+		return false;
+	}
+
+	/**
+	 * Writes the buffered updates if the object with the provided id has some, so a following read or write of that object is not reordered with them.
+	 * 
+	 * @param id
+	 */
+	protected void flushPending(ObjectId id) {
+
+		WriteBehindBuffer buffer = writeBehind;
+
+		if (buffer != null && buffer.isPending(id))
+			buffer.flush();
+	}
+
+	/**
+	 * Writes the buffered updates if the object with the provided id has some the aggregation pipeline replaces (see {@link #isJoinedField(String)}), the others are applied
+	 * to the loaded object.
+	 */
+	private void flushJoined(ObjectId id) {
+
+		WriteBehindBuffer buffer = writeBehind;
+
+		if (buffer != null && buffer.needsFlush(id, new HashSet<String>()))
+			buffer.flush();
+	}
+
+	/**
+	 * Serves {@link #load(ObjectId)} and {@link #loadAllByIds(List)} from a memory-mapped local copy of the main collection stored in the provided file (see
+	 * {@link CollectionSnapshot}). An existing file is refreshed incrementally if the server supports change streams, so a restart does not copy the collection again. Objects written through this client are read
+	 * from the server until the next {@link CollectionSnapshot#refresh()}. Meant for small reference collections that are read much more often than written, such as authors.
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @return the snapshot, refresh it periodically to pick up changes made by other clients
+	 */
+	public CollectionSnapshot enableSnapshot(Path file) {
+
+		CollectionSnapshot local = new CollectionSnapshot(this, file).open();
+		snapshot = local;
+		return local;
+	}
+
+	/**
+	 * Stops serving loads from the snapshot (the file is kept for the next start).
+	 */
+	public void disableSnapshot() {
+		snapshot = null;
+	}
+
+	/**
+	 * Returns the snapshot loads are served from, or null if none is enabled.
+	 * 
+	 * @return
+	 */
+	public CollectionSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns the object with the provided id from the snapshot, decoded lazily if lazy decoding is enabled, or null if the snapshot can not serve it.
+	 */
+	private T loadFromSnapshot(CollectionSnapshot local, ObjectId id, IdentityMap identities) {
+
+		if (lazyDecoding) {
+			RawBsonDocument raw = local.get(id);
+			return raw == null ? null : dataFromResult(raw);
+		}
+
+		Document document = local.getDocument(id);
+		return document == null ? null : dataFromResult(document, identities);
+	}
+
+	/**
+	 * Called before an object is modified through this client and again after the write ended, so a snapshot refresh that overlaps the write does not serve the state from
+	 * before it.
+	 * 
+	 * @param id
+	 *            the id of the modified object
+	 */
+	protected void markWritten(ObjectId id) {
+
+		CollectionSnapshot local = snapshot;
+
+		if (local != null && id != null)
+			local.markStale(id);
+	}
+
+	/**
+	 * Executes a write of the object with the provided id, marked as written before it starts and after it ended (see {@link #markWritten(ObjectId)}).
+	 */
+	private <R> R executeWrite(ObjectId id, boolean idempotent, RetryPolicy.Operation<R> operation) {
+
+		markWritten(id);
+
+		try {
+			return execute(idempotent, operation);
+		} finally {
+			markWritten(id);
+		}
+	}
+
+	/**
+	 * Registers a listener that is notified of every successful write through this client.
+	 * 
+	 * @param listener
+	 */
+	public void addWriteListener(WriteListener<T> listener) {
+		writeListeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener registered with {@link #addWriteListener(WriteListener)}.
+	 * 
+	 * @param listener
+	 */
+	public void removeWriteListener(WriteListener<T> listener) {
+		writeListeners.remove(listener);
+	}
+
+	private void fireWritten(T data) {
+		for (WriteListener<T> listener : writeListeners) {
+			listener.onWritten(data);
+		}
+	}
+
+	private void fireUpdated(ObjectId id, String fieldName, Object value) {
+		for (WriteListener<T> listener : writeListeners) {
+			listener.onUpdated(id, fieldName, value);
+		}
+	}
+
+	/**
+	 * Called by the write-behind buffer after it wrote the provided fields of the object with the provided id.
+	 * 
+	 * @param id
+	 * @param fields
+	 *            the written fields and values
+	 */
+	protected void fireFlushed(ObjectId id, Document fields) {
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			fireUpdated(id, field.getKey(), field.getValue());
+		}
+	}
+
+	private void fireDeleted(ObjectId id) {
+		for (WriteListener<T> listener : writeListeners) {
+			listener.onDeleted(id);
+		}
+	}
+
+	/**
+	 * Flushes buffered updates and closes the connection of this client.
+	 */
+	@Override
+	public void close() {
+		disableWriteBehind();
+		disableHedgedReads();
+		client.close();
+	}
+
+	/**
+	 * Executes the provided operation with the retry policy of this client, within the deadline attached to the current thread or, if there is none, within the default timeout
+	 * of this client.
+	 * 
+	 * @param idempotent
+	 *            true if running the operation more than once has the same effect as running it once
+	 * @param operation
+	 *            the operation to execute
+	 * @return the result of the operation
+	 */
+	protected <R> R execute(boolean idempotent, RetryPolicy.Operation<R> operation) {
+
+		if (Deadline.current() != null || defaultTimeoutMillis <= 0)
+			return executeWithin(Deadline.current(), idempotent, operation);
+
+		Deadline deadline = Deadline.after(defaultTimeoutMillis);
+
+		Deadline.Scope scope = deadline.attach();
+		try {
+			return executeWithin(deadline, idempotent, operation);
+		} finally {
+			scope.close();
+		}
+	}
+
+	private <R> R executeWithin(Deadline deadline, boolean idempotent, RetryPolicy.Operation<R> operation) {
+
+		Bulkhead limit = bulkhead;
+
+		if (limit != null)
+			operation = limited(limit, operation);
+
+		if (deadline == null)
+			return retryPolicy.execute(idempotent, operation);
+
+		timeoutMetrics.onOperation();
+
+		try {
+			return retryPolicy.execute(idempotent, operation);
+		} catch (DeadlineExceededException e) {
+			if (e.isCancelled())
+				timeoutMetrics.onCancelled();
+			else
+				timeoutMetrics.onExceeded();
+			throw e;
+		} catch (MongoExecutionTimeoutException e) {
+			timeoutMetrics.onServerTimeout();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wraps the provided operation so every attempt runs with a permit of the provided bulkhead and reports its latency to it.
+	 */
+	private static <R> RetryPolicy.Operation<R> limited(Bulkhead bulkhead, RetryPolicy.Operation<R> operation) {
+
+		return new RetryPolicy.Operation<R>() {
+
+			@Override
+			public R run(int attempt) {
+
+				Bulkhead.Permit permit = bulkhead.acquire();
+				boolean dropped = false;
+
+				try {
+					return operation.run(attempt);
+
+				} catch (RuntimeException e) {
+
+					// timeouts and failover mean the server (or the way to it) is overloaded, other errors (and cancelled hedges) say nothing about the load
+					dropped = e instanceof MongoExecutionTimeoutException || TransientErrors.isTransient(e)
+							|| (e instanceof DeadlineExceededException && !((DeadlineExceededException) e).isCancelled());
+					throw e;
+
+				} finally {
+					// also reached by errors, which must not leak the permit
+					if (dropped)
+						permit.releaseDropped();
+					else
+						permit.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the maxTimeMS to send with a read: the remaining time of the deadline attached to the current thread, 0 (no limit) if there is none.
+	 * 
+	 * @return
+	 * @throws DeadlineExceededException
+	 *             if the deadline expired already
+	 */
+	protected long maxTimeMillis() {
+
+		Deadline deadline = Deadline.current();
+
+		if (deadline == null)
+			return 0;
+
+		deadline.check();
+		return Math.max(1, deadline.remainingMillis());
+	}
+
+	/**
+	 * Returns the main collection for a write: within a deadline attached to the current thread, its write concern waits for replication at most for the remaining time
+	 * (wtimeout). Writes can not send maxTimeMS, so the write itself is not limited. Without a deadline, or with an unacknowledged write concern, this is the main collection.
+	 * 
+	 * @return
+	 * @throws DeadlineExceededException
+	 *             if the deadline expired already
+	 */
+	protected MongoCollection<Document> getWriteCollection() {
+
+		MongoCollection<Document> collection = getMainCollection();
+		WriteConcern writeConcern = collection.getWriteConcern();
+
+		if (Deadline.current() == null || !writeConcern.isAcknowledged())
+			return collection;
+
+		return collection.withWriteConcern(writeConcern.withWTimeout(maxTimeMillis(), TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Returns the time budget of operations that run without a {@link Deadline} attached by the caller, 0 if they are not limited.
+	 * 
+	 * @return
+	 */
+	public long getDefaultTimeout() {
+		return defaultTimeoutMillis;
+	}
+
+	/**
+	 * Sets the time budget of each operation of this client that runs without a {@link Deadline} attached by the caller. Reads send the remaining budget as maxTimeMS, so
+	 * the server aborts them instead of holding a connection and a server thread, retries are not started after the budget is spent.
+	 * 
+	 * @param millis
+	 *            the budget per operation in milliseconds, 0 to not limit operations
+	 */
+	public void setDefaultTimeout(long millis) {
+		this.defaultTimeoutMillis = millis;
+	}
+
+	/**
+	 * Limits the concurrent requests of this client with a new bulkhead: the limit starts at initialLimit and adapts to the observed latency between 1 and maxLimit (use the
+	 * connection pool size), at most maxQueue requests wait up to queueTimeoutMillis for a permit, further requests are rejected with a {@link BulkheadFullException}.
+	 * 
+	 * @param initialLimit
+	 *            the concurrency limit before latency was observed
+	 * @param maxLimit
+	 *            the maximum concurrency limit
+	 * @param maxQueue
+	 *            the maximum number of waiting requests
+	 * @param queueTimeoutMillis
+	 *            the maximum time a request waits
+	 * @return the bulkhead, for its counters
+	 */
+	public Bulkhead enableBulkhead(int initialLimit, int maxLimit, int maxQueue, long queueTimeoutMillis) {
+
+		Bulkhead created = new Bulkhead(getMainCollection().getNamespace().getCollectionName(), new AdaptiveLimiter(initialLimit, 1, maxLimit), maxQueue,
+				queueTimeoutMillis);
+		bulkhead = created;
+		return created;
+	}
+
+	/**
+	 * Sets the bulkhead that limits the concurrent requests of this client, null for no limit. Clients that share a bulkhead share its limit.
+	 * 
+	 * @param bulkhead
+	 */
+	public void setBulkhead(Bulkhead bulkhead) {
+		this.bulkhead = bulkhead;
+	}
+
+	/**
+	 * Returns the bulkhead that limits the concurrent requests of this client, or null if they are not limited.
 	 * 
 	 * @return
 	 */
-	protected abstract MongoCollection<Document> getMainCollection();
+	public Bulkhead getBulkhead() {
+		return bulkhead;
+	}
 
 	/**
-	 * Returns a List<Bson> of pipeline arguments for an "aggregate" query containing a $match filter with the match arguments provided as a parameter. Override this method to add
-	 * additional arguments to the pipeline.
+	 * Hedges reads by id ({@link #load(ObjectId)}) and other reads of {@link #hedgedQueryFirst(Document)}: if a read did not answer within the provided percentile of the
+	 * recent read latencies, the same read is sent again with another read preference: secondaryPreferred if this client reads from the primary, so the hedge goes to another
+	 * member, nearest otherwise. Note that nearest does not exclude the member of the slow read, server selection may pick the same member (or the primary) again. The first
+	 * answer is returned, the other read is cancelled. At most as many reads run concurrently as the connection pool has connections per server, further reads run unhedged.
+	 * <p>
+	 * A hedge may be answered by a secondary that has not replicated the latest writes yet, so a hedged read can return an older state than a write this client just made: the
+	 * reads lose read-your-writes. Only hedge reads that tolerate this, or pass a read preference that bounds the lag (e.g. nearest with maxStaleness) or reads from the primary.
 	 * 
-	 * @param match
-	 *            the query arguments that need to be "matched" using MongoDb $match operator
-	 * @return
+	 * @param percentile
+	 *            the percentile of the read latency after which a read is hedged, e.g. 0.95
+	 * @param budgetRatio
+	 *            the maximum hedges per read, e.g. 0.05
+	 * @return the hedged reads, for their counters
 	 */
-	protected abstract List<Bson> getAggregationPipeline(Document match);
+	public HedgedReads enableHedgedReads(double percentile, double budgetRatio) {
+		boolean primaryReads = getMainCollection().getReadPreference().equals(ReadPreference.primary());
+		return enableHedgedReads(percentile, budgetRatio, primaryReads ? ReadPreference.secondaryPreferred() : ReadPreference.nearest());
+	}
 
 	/**
-	 * Returns a List<T> results (all) based on the provided "match" aggregation query.
+	 * Hedges reads by id and other reads of {@link #hedgedQueryFirst(Document)} with the provided read preference, see {@link #enableHedgedReads(double, double)}.
 	 * 
-	 * @param match
-	 *            the query to "match"
-	 * @return the query result (a list of objects)
+	 * @param percentile
+	 *            the percentile of the read latency after which a read is hedged, e.g. 0.95
+	 * @param budgetRatio
+	 *            the maximum hedges per read, e.g. 0.05
+	 * @param hedgePreference
+	 *            the read preference of the hedges
+	 * @return the hedged reads, for their counters
 	 */
-	protected List<T> aggregationQueryAll(Document match) {
+	public HedgedReads enableHedgedReads(double percentile, double budgetRatio, ReadPreference hedgePreference) {
 
-		MongoIterable<Document> iterable = getMainCollection().aggregate(getAggregationPipeline(match));
+		HedgedReads created = new HedgedReads(getMainCollection().getNamespace().getCollectionName(), new LatencyTracker(1024, 100), percentile, 1,
+				new RequestBudget(budgetRatio, 10), hedgePreference, client.getMongoClientOptions().getConnectionsPerHost());
 
-		List<T> results = new ArrayList<>();
-		iterable.forEach(new Block<Document>() {
+		disableHedgedReads();
+		hedgedReads = created;
+		return created;
+	}
 
-			@Override
-			public void apply(final Document document) {
-				results.add(dataFromDoc(document));
-			}
-		});
+	/**
+	 * Stops hedging reads.
+	 */
+	public void disableHedgedReads() {
 
-		return results;
+		HedgedReads previous = hedgedReads;
+		hedgedReads = null;
+
+		if (previous != null)
+			previous.shutdown();
 	}
 
 	/**
-	 * Returns the first result object T based on the provided "match" aggregation query.
+	 * Returns the hedged reads of this client, or null if reads are not hedged.
 	 * 
-	 * @param the
-	 *            query to "match"
-	 * @return the query result (a single object)
+	 * @return
 	 */
-	protected T aggregationQueryFirst(Document match) {
-		Document document = getMainCollection().aggregate(getAggregationPipeline(match)).first();
-		if (document == null)
-			return null;
-		else
-			return dataFromDoc(document);
+	public HedgedReads getHedgedReads() {
+		return hedgedReads;
 	}
 
 	/**
-	 * Returns the MongoDb database instance this client is connected to.
+	 * Returns the counters of operations of this client that ran with a deadline.
 	 * 
 	 * @return
 	 */
-	protected MongoDatabase getDatabase() {
-		return database;
+	public TimeoutMetrics getTimeoutMetrics() {
+		return timeoutMetrics;
 	}
 
 	/**
@@ -189,10 +1223,26 @@ public abstract class DatabaseClient<T extends MongoObject> {
 			return false;
 
 		try {
-			getMainCollection().insertOne(doc);
+			execute(true, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+					try {
+						getWriteCollection().insertOne(doc);
+					} catch (MongoException e) {
+						// the id is generated on the first attempt, a duplicate id means a previous attempt succeeded but its response was lost
+						if (attempt == 1 || !TransientErrors.isDuplicateId(e))
+							throw e;
+					}
+					return null;
+				}
+			});
 
 			// set the unique id created by MongoDb to the data object
-			data.setId(MongoUtils.getObjectId(doc));
+			data.setObjectId(doc.getObjectId("_id"));
+			data.markClean();
+			cachedCount.add(1);
+			fireWritten(data);
 			return true;
 		} catch (Exception e) {
 			return false;
@@ -219,21 +1269,47 @@ public abstract class DatabaseClient<T extends MongoObject> {
 		}
 
 		try {
-			getMainCollection().insertMany(docs);
+			execute(true, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+
+					if (attempt == 1) {
+						getWriteCollection().insertMany(docs);
+						return null;
+					}
+
+					// a previous attempt may have stored a part of the documents (with the same ids), store the rest
+					try {
+						getWriteCollection().insertMany(docs, new InsertManyOptions().ordered(false));
+					} catch (MongoException e) {
+						if (!TransientErrors.isDuplicateId(e))
+							throw e;
+					}
+					return null;
+				}
+			});
 
 			// set the unique id created by MongoDb to the data objects
 			for (int i = 0; i < docs.size(); i++) {
-				dataList.get(i).setId(MongoUtils.getObjectId(docs.get(i)));
+				dataList.get(i).setObjectId(docs.get(i).getObjectId("_id"));
+				dataList.get(i).markClean();
+				fireWritten(dataList.get(i));
 			}
 
+			cachedCount.add(docs.size());
 			return true;
 		} catch (Exception e) {
+			// a part of the documents may have been stored
+			cachedCount.invalidate();
 			return false;
 		}
 	}
 
 	/**
-	 * Updates the given data in the database. Overwrites all existing fields with the data provided as a parameter. Returns true if data to update could be found, false if not.
+	 * Updates the given data in the database. Only sends the fields modified since the data was loaded or stored (see {@link #dataToUpdate(MongoObject)}). Returns true if data
+	 * to update could be found, false if not. If no field was modified, nothing is written: the method only checks that the object exists and returns true even if the stored
+	 * object differs from the provided one (e.g. because it was changed by another client).
 	 * 
 	 * @param data
 	 *            the data object holding the new data
@@ -246,10 +1322,37 @@ public abstract class DatabaseClient<T extends MongoObject> {
 
 		if (data.hasValidObjectId()) {
 
-			ObjectId id = new ObjectId(data.getId());
-			Document doc = dataToDoc(data);
+			ObjectId id = data.getObjectId();
+			Document update = dataToUpdate(data);
+
+			flushPending(id);
+
+			if (update.isEmpty()) {
+				// nothing modified, just report whether the object exists
+				return execute(true, new RetryPolicy.Operation<Boolean>() {
+
+					@Override
+					public Boolean run(int attempt) {
+						return getMainCollection().find(new Document("_id", id)).projection(new Document("_id", 1)).maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS)
+								.first() != null;
+					}
+				});
+			}
+
+			// appending to arrays is not idempotent
+			UpdateResult result = executeWrite(id, !update.containsKey("$push"), new RetryPolicy.Operation<UpdateResult>() {
+
+				@Override
+				public UpdateResult run(int attempt) {
+					return getWriteCollection().updateOne(new Document("_id", id), update);
+				}
+			});
+
+			if (result.getMatchedCount() > 0) {
+				data.markClean();
+				fireWritten(data);
+			}
 
-			UpdateResult result = getMainCollection().updateOne(new Document("_id", id), new Document("$set", doc));
 			return result.getMatchedCount() > 0; // return true if an object to update was found
 		} else {
 			return false;
@@ -258,7 +1361,8 @@ public abstract class DatabaseClient<T extends MongoObject> {
 
 	/**
 	 * Updates or inserts data. Checks if a data object with the id of the provided data object already exists and updates it if so. If no object with that id exists, a new object
-	 * is inserted into the database. "null" id's of course always lead to new data to be inserted.
+	 * is inserted into the database. "null" id's of course always lead to new data to be inserted. Data with an id only sends the fields modified since it was loaded or
+	 * stored, if no object with its id exists (anymore), it is inserted completely with a second request.
 	 * 
 	 * @param data
 	 *            the data to update or insert
@@ -268,13 +1372,46 @@ public abstract class DatabaseClient<T extends MongoObject> {
 
 		if (data != null) {
 
-			Document doc = dataToDoc(data);
+			// new data is written completely, existing data only with its modified fields
+			Document modified = data.getObjectId() == null ? new Document() : dataToUpdate(data);
+			Document complete = new Document("$set", dataToDoc(data));
 
 			// if the data already has an id, use that, else create a new one
-			ObjectId id = data.getId() == null ? new ObjectId() : new ObjectId(data.getId());
-			UpdateResult result = getMainCollection().updateOne(new Document("_id", id), new Document("$set", doc), new UpdateOptions().upsert(true));
+			ObjectId id = data.getObjectId() == null ? new ObjectId() : data.getObjectId();
+			flushPending(id);
+
+			UpdateResult result = null;
 
-			data.setId(id.toHexString()); // set the id of the stored data
+			if (!modified.isEmpty()) {
+
+				// without upsert: inserting only the modified fields would create a partial object if it was deleted in the meantime
+				result = executeWrite(id, !modified.containsKey("$push"), new RetryPolicy.Operation<UpdateResult>() {
+
+					@Override
+					public UpdateResult run(int attempt) {
+						return getWriteCollection().updateOne(new Document("_id", id), modified);
+					}
+				});
+			}
+
+			if (result == null || result.getMatchedCount() == 0) {
+
+				result = executeWrite(id, true, new RetryPolicy.Operation<UpdateResult>() {
+
+					@Override
+					public UpdateResult run(int attempt) {
+						return getWriteCollection().updateOne(new Document("_id", id), complete, new UpdateOptions().upsert(true));
+					}
+				});
+			}
+
+			data.setObjectId(id); // set the id of the stored data
+			data.markClean();
+
+			if (result.getUpsertedId() != null)
+				cachedCount.add(1);
+
+			fireWritten(data);
 
 			return result.getMatchedCount() > 0 || result.getUpsertedId() != null; // return true if an object to update was found or a new was created
 		} else {
@@ -294,9 +1431,45 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	 * @return true if the operation was successful and an object was updated
 	 */
 	public boolean update(String objectId, String fieldName, Object value) {
+		return update(objectId == null ? null : new ObjectId(objectId), fieldName, value);
+	}
+
+	/**
+	 * Updates the fieldName of the object with the given id with the provided value. With write-behind enabled (see {@link #enableWriteBehind(int, int, long, long)}) the update
+	 * is buffered and true is returned without checking whether the object exists, the {@link WriteListener}s are called once it is written.
+	 * 
+	 * @param objectId
+	 *            the object that owns the field to update
+	 * @param fieldName
+	 *            the name of the field to update
+	 * @param value
+	 *            the new value
+	 * @return true if the operation was successful and an object was updated
+	 */
+	public boolean update(ObjectId objectId, String fieldName, Object value) {
+
+		markWritten(objectId);
+
+		WriteBehindBuffer buffer = writeBehind;
+
+		if (buffer != null && objectId != null) {
+			buffer.put(objectId, fieldName, value);
+			return true;
+		}
+
+		Document filter = new Document("_id", objectId);
+
+		UpdateResult result = executeWrite(objectId, true, new RetryPolicy.Operation<UpdateResult>() {
+
+			@Override
+			public UpdateResult run(int attempt) {
+				return getWriteCollection().updateOne(filter, new Document("$set", new Document(fieldName, value)));
+			}
+		});
+
+		if (result.getMatchedCount() > 0)
+			fireUpdated(objectId, fieldName, value);
 
-		UpdateResult result = getMainCollection().updateOne(new Document("_id", objectId == null ? null : new ObjectId(objectId)),
-				new Document("$set", new Document(fieldName, value)));
 		return result.getMatchedCount() > 0; // return true if an object to update was found
 	}
 
@@ -312,7 +1485,35 @@ public abstract class DatabaseClient<T extends MongoObject> {
 		if (id == null || id.isEmpty())
 			return null;
 
-		return aggregationQueryFirst(new Document("_id", new ObjectId(id)));
+		return load(new ObjectId(id));
+	}
+
+	/**
+	 * Loads a data object by it's MongoDb object-id. Will return null if the provided id is null or if no data for that id could be found.
+	 * 
+	 * @param id
+	 *            the id of the object to load
+	 * @return the loaded data, or null if none was found for the provided id
+	 */
+	public T load(ObjectId id) {
+
+		if (id == null)
+			return null;
+
+		// buffered updates are applied to the result, unless the pipeline replaces the updated field
+		flushJoined(id);
+
+		CollectionSnapshot local = snapshot;
+
+		if (local != null) {
+
+			T data = loadFromSnapshot(local, id, queryIdentities());
+
+			if (data != null)
+				return data;
+		}
+
+		return hedgedFirst(new Document("_id", id));
 	}
 
 	/**
@@ -323,7 +1524,45 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	 * @return all data object that correspond to the provided id's
 	 */
 	public List<T> loadAll(List<String> ids) {
-		return aggregationQueryAll(new Document("_id", new Document("$in", toObjectIds(ids))));
+		return loadAllByIds(toObjectIds(ids));
+	}
+
+	/**
+	 * Loads all data objects that match one of the provided MongoDb id's. Returns an empty list if none were found.
+	 * 
+	 * @param ids
+	 *            the id's of the objects to load
+	 * @return all data object that correspond to the provided id's
+	 */
+	public List<T> loadAllByIds(List<ObjectId> ids) {
+
+		for (ObjectId id : ids) {
+			flushJoined(id);
+		}
+
+		CollectionSnapshot local = snapshot;
+
+		if (local == null)
+			return queryAll(new Document("_id", new Document("$in", ids)));
+
+		List<T> results = new ArrayList<>();
+		List<ObjectId> remote = new ArrayList<>();
+		IdentityMap identities = queryIdentities();
+
+		for (ObjectId id : ids) {
+
+			T data = loadFromSnapshot(local, id, identities);
+
+			if (data != null)
+				results.add(data);
+			else
+				remote.add(id);
+		}
+
+		if (!remote.isEmpty())
+			results.addAll(queryAll(new Document("_id", new Document("$in", remote))));
+
+		return results;
 	}
 
 	/**
@@ -335,6 +1574,30 @@ public abstract class DatabaseClient<T extends MongoObject> {
 		return aggregationQueryAll(new Document());
 	}
 
+	/**
+	 * Loads all data objects that are available in the database this command is executed on, scanning the provided number of "_id" ranges concurrently and decoding on the
+	 * common fork-join pool. Use {@link #parallelScan(int)} to stream the objects per partition instead of collecting them.
+	 * 
+	 * @param partitions
+	 *            the number of "_id" ranges scanned concurrently
+	 * @return all data objects currently stored in the database, ordered by partition
+	 */
+	public List<T> loadAllParallel(int partitions) {
+		return parallelScan(partitions).toList();
+	}
+
+	/**
+	 * Returns a parallel scan of the main collection that splits it into the provided number of "_id" ranges.
+	 * 
+	 * @param partitions
+	 *            the number of "_id" ranges scanned concurrently
+	 * @return the scan, configure and run it via {@link ParallelScan#forEach} or {@link ParallelScan#toList()}
+	 */
+	public ParallelScan<T> parallelScan(int partitions) {
+		flushPending(new Document());
+		return new ParallelScan<>(this, partitions);
+	}
+
 	/**
 	 * Deletes the object provided as a parameter from the database. Identification of the object in the database is performed via id.
 	 * 
@@ -345,9 +1608,7 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	public boolean delete(T data) {
 
 		if (data != null && data.hasValidObjectId()) {
-
-			DeleteResult result = getMainCollection().deleteOne(new Document("_id", new ObjectId(data.getId())));
-			return result.getDeletedCount() == 1;
+			return delete(data.getObjectId());
 		} else
 			return false;
 	}
@@ -361,21 +1622,172 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	 */
 	public boolean delete(String id) {
 
-		if (id != null && !id.isEmpty() && id.length() >= 24) {
-
-			DeleteResult result = getMainCollection().deleteOne(new Document("_id", new ObjectId(id)));
-			return result.getDeletedCount() == 1;
+		if (ObjectId.isValid(id)) {
+			return delete(new ObjectId(id));
 		} else
 			return false;
 	}
 
 	/**
-	 * Counts all objects stored in the collection returned by {@link #getMainCollection()} and returns the number.
+	 * Deletes the object with the provided object id from the database. If the delete is retried after a lost acknowledgement and the retry finds nothing to delete, it returns
+	 * false although the previous attempt may have deleted the object.
+	 * 
+	 * @param id
+	 *            the id of the object to delete
+	 * @return true if the operation was successful and an object was deleted, false if no object was deleted
+	 */
+	public boolean delete(ObjectId id) {
+
+		if (id == null)
+			return false;
+
+		flushPending(id);
+
+		// null if a retry found nothing to delete: either the object never existed or a previous attempt deleted it
+		Boolean deleted = executeWrite(id, true, new RetryPolicy.Operation<Boolean>() {
+
+			@Override
+			public Boolean run(int attempt) {
+				DeleteResult result = getWriteCollection().deleteOne(new Document("_id", id));
+				return result.getDeletedCount() == 1 ? Boolean.TRUE : attempt > 1 ? null : Boolean.FALSE;
+			}
+		});
+
+		if (deleted == null) {
+			// the object is gone either way, but it is unknown whether this client deleted it
+			cachedCount.invalidate();
+			fireDeleted(id);
+			return false;
+		}
+
+		if (deleted) {
+			cachedCount.add(-1);
+			fireDeleted(id);
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * Counts all objects stored in the collection returned by {@link #getMainCollection()} and returns the number. Counts exactly unless a different
+	 * {@link #setCountMode(CountMode) count mode} is set.
 	 * 
 	 * @return the number of stored objects
 	 */
 	public long objectCount() {
-		return getMainCollection().count();
+
+		switch (countMode) {
+		case ESTIMATED:
+			return estimatedObjectCount();
+		case CACHED:
+			return cachedCount.get();
+		default:
+			return count(new Document());
+		}
+	}
+
+	/**
+	 * Returns the number of objects in the collection from its metadata, without scanning it.
+	 * 
+	 * @return the estimated number of stored objects
+	 */
+	public long estimatedObjectCount() {
+
+		return execute(true, new RetryPolicy.Operation<Long>() {
+
+			@Override
+			public Long run(int attempt) {
+				return getMainCollection().estimatedDocumentCount(new EstimatedDocumentCountOptions().maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS));
+			}
+		});
+	}
+
+	/**
+	 * Counts the objects that match the provided filter. The count is covered (answered from an index without loading documents) if an index contains all filtered fields.
+	 * 
+	 * @param match
+	 *            the filter, an empty document counts all objects
+	 * @return the number of matching objects
+	 */
+	public long count(Document match) {
+		return count(match, null);
+	}
+
+	/**
+	 * Counts the objects that match the provided filter with the provided index, so the count is covered even if the query planner would pick a different index.
+	 * 
+	 * @param match
+	 *            the filter, an empty document counts all objects
+	 * @param hint
+	 *            the index to count with (e.g. {"name": 1}), or null to let the server choose
+	 * @return the number of matching objects
+	 */
+	public long count(Document match, Bson hint) {
+
+		CountOptions options = new CountOptions();
+
+		if (hint != null)
+			options.hint(hint);
+
+		// buffered updates may change which objects match
+		flushPending(match);
+
+		return execute(true, new RetryPolicy.Operation<Long>() {
+
+			@Override
+			public Long run(int attempt) {
+				return getMainCollection().countDocuments(match, options.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS));
+			}
+		});
+	}
+
+	/**
+	 * Returns how {@link #objectCount()} counts.
+	 * 
+	 * @return
+	 */
+	public CountMode getCountMode() {
+		return countMode;
+	}
+
+	/**
+	 * Sets how {@link #objectCount()} counts. Use {@link CountMode#ESTIMATED} or {@link CountMode#CACHED} for frequent counts of large collections (e.g. health checks) that
+	 * can tolerate a slightly outdated result.
+	 * 
+	 * @param countMode
+	 */
+	public void setCountMode(CountMode countMode) {
+		this.countMode = countMode;
+	}
+
+	/**
+	 * Sets how often the count used with {@link CountMode#CACHED} is reconciled with the exact count, which picks up changes made by other clients.
+	 * 
+	 * @param reconcileIntervalMillis
+	 *            the maximum age of the cached count
+	 */
+	public void setCountReconcileInterval(long reconcileIntervalMillis) {
+		cachedCount = newCachedCount(reconcileIntervalMillis);
+	}
+
+	/**
+	 * Returns the count used with {@link CountMode#CACHED}.
+	 * 
+	 * @return
+	 */
+	public CachedCount getCachedCount() {
+		return cachedCount;
+	}
+
+	private CachedCount newCachedCount(long reconcileIntervalMillis) {
+
+		return new CachedCount(new CachedCount.Source() {
+
+			@Override
+			public long count() {
+				return DatabaseClient.this.count(new Document());
+			}
+		}, reconcileIntervalMillis);
 	}
 
 	/**
@@ -387,6 +1799,18 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	 */
 	protected abstract Document dataToDoc(T data);
 
+	/**
+	 * Returns the update operators ($set, $unset, $push) for the fields of the provided data object that were modified since it was loaded or stored. Override this method for
+	 * data objects that track their modifications, the default implementation sets the complete document.
+	 * 
+	 * @param data
+	 *            the data object to create the update for
+	 * @return the update document, empty if nothing was modified
+	 */
+	protected Document dataToUpdate(T data) {
+		return new Document("$set", dataToDoc(data));
+	}
+
 	/**
 	 * Transforms the provided Document into a data object.
 	 * 
@@ -395,4 +1819,70 @@ public abstract class DatabaseClient<T extends MongoObject> {
 	 * @return a <T> object created from the provided Document object
 	 */
 	protected abstract T dataFromDoc(Document document);
+
+	/**
+	 * Transforms the provided Document into a data object, sharing objects with ids that were decoded before via the provided identity map. Override this method to take
+	 * advantage of the identity map, the default implementation ignores it.
+	 * 
+	 * @param document
+	 *            the document to be transformed to data
+	 * @param identities
+	 *            the identity map of the current query
+	 * @return a <T> object created from the provided Document object
+	 */
+	protected T dataFromDoc(Document document, IdentityMap identities) {
+		return dataFromDoc(document);
+	}
+
+	/**
+	 * Converts a result of the aggregation pipeline, with the buffered updates of its object applied (see {@link #enableWriteBehind(int, int, long, long)}). A result with
+	 * buffered updates is not shared via the identity map, as it differs from the stored state.
+	 * 
+	 * @param document
+	 *            the result
+	 * @param identities
+	 *            the identity map of the query
+	 * @return
+	 */
+	protected T dataFromResult(Document document, IdentityMap identities) {
+
+		WriteBehindBuffer buffer = writeBehind;
+		Object id = document.get("_id");
+
+		if (buffer == null || !(id instanceof ObjectId))
+			return dataFromDoc(document, identities);
+
+		Document current = buffer.applyPending((ObjectId) id, document);
+		return current == document ? dataFromDoc(document, identities) : dataFromDoc(current);
+	}
+
+	/**
+	 * Converts a raw result of the aggregation pipeline lazily, or eagerly if its object has buffered updates that have to be applied.
+	 */
+	private T dataFromResult(RawBsonDocument document) {
+
+		WriteBehindBuffer buffer = writeBehind;
+
+		if (buffer != null) {
+
+			BsonValue id = document.get("_id");
+
+			if (id != null && id.isObjectId() && buffer.isPending(id.asObjectId().getValue()))
+				return dataFromResult(document.decode(new DocumentCodec()), IdentityMap.NONE);
+		}
+
+		return dataFromRaw(document);
+	}
+
+	/**
+	 * Transforms the provided raw BSON document into a data object that decodes its fields on first access. Override this method to support lazy decoding, the default
+	 * implementation decodes the whole document eagerly.
+	 * 
+	 * @param document
+	 *            the raw document to be transformed to data
+	 * @return a <T> object backed by the provided raw document
+	 */
+	protected T dataFromRaw(RawBsonDocument document) {
+		return dataFromDoc(document.decode(new DocumentCodec()));
+	}
 }
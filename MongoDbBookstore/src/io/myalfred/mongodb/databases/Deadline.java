@@ -0,0 +1,152 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of one or more operations. Attach a deadline to the current thread ({@link #attach()}) and every {@link DatabaseClient} operation on that thread sends its
+ * remaining time as maxTimeMS (so the server aborts the query), does not start attempts or retries after it expired and stops reading results once it expired. A deadline can be
+ * cancelled from another thread, which takes effect at the next of these checks.
+ * <p>
+ * The checks run between attempts and between cursor batches, a request already sent is not killed (no killOp or killCursors): a single-batch query, a first() or a write
+ * keeps its connection and server thread until the server answers, or, for reads, until maxTimeMS expires. Writes can not send maxTimeMS with this driver, their wait for
+ * replication is bounded by the remaining time (wtimeout, see {@link DatabaseClient#getWriteCollection()}), the write itself is not.
+ *
+ * <pre>
+ * Deadline.Scope scope = Deadline.after(200).attach();
+ * try {
+ * 	bookStore = bookStoreDb.load(id);
+ * } finally {
+ * 	scope.close();
+ * }
+ * </pre>
+ */
+public class Deadline {
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * Attachment of a deadline to a thread, closing it restores the previously attached deadline.
+	 */
+	public static class Scope implements AutoCloseable {
+
+		private final Deadline previous;
+
+		private Scope(Deadline previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null)
+				CURRENT.remove();
+			else
+				CURRENT.set(previous);
+		}
+	}
+
+	private final long expiresAtNanos;
+
+	private volatile boolean cancelled;
+
+	/** the deadline this one was forked from, whose cancellation also cancels this one */
+	private final Deadline parent;
+
+	private Deadline(long expiresAtNanos, Deadline parent) {
+		this.expiresAtNanos = expiresAtNanos;
+		this.parent = parent;
+	}
+
+	/**
+	 * Returns a deadline that expires after the provided time.
+	 *
+	 * @param millis
+	 * @return
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), null);
+	}
+
+	/**
+	 * Returns a deadline that expires together with this one but can be cancelled on its own, e.g. for one of several concurrent requests of an operation. Cancelling this
+	 * deadline (also after the fork) cancels the fork as well.
+	 *
+	 * @return
+	 */
+	public Deadline fork() {
+		return new Deadline(expiresAtNanos, this);
+	}
+
+	/**
+	 * Returns the deadline attached to the current thread, or null if there is none.
+	 *
+	 * @return
+	 */
+	public static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Attaches this deadline to the current thread until the returned scope is closed. If a deadline that expires earlier is attached already, that one stays in effect.
+	 *
+	 * @return the scope, close it when the operations are done
+	 */
+	public Scope attach() {
+
+		Deadline previous = CURRENT.get();
+
+		if (previous == null || previous.expiresAtNanos - expiresAtNanos > 0)
+			CURRENT.set(this);
+
+		return new Scope(previous);
+	}
+
+	/**
+	 * Returns the remaining time in milliseconds (rounded up), 0 if the deadline expired.
+	 *
+	 * @return
+	 */
+	public long remainingMillis() {
+
+		long remaining = expiresAtNanos - System.nanoTime();
+		return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining + 999999);
+	}
+
+	/**
+	 * Returns true if the deadline expired.
+	 *
+	 * @return
+	 */
+	public boolean isExpired() {
+		return expiresAtNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Cancels the operations running with this deadline, they fail with a {@link DeadlineExceededException} at their next check.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Returns true if the deadline or the deadline it was forked from was cancelled.
+	 *
+	 * @return
+	 */
+	public boolean isCancelled() {
+		return cancelled || (parent != null && parent.isCancelled());
+	}
+
+	/**
+	 * Throws if the deadline expired or was cancelled.
+	 *
+	 * @throws DeadlineExceededException
+	 */
+	public void check() {
+
+		if (isCancelled())
+			throw new DeadlineExceededException("Operation cancelled", true);
+
+		if (isExpired())
+			throw new DeadlineExceededException("Deadline exceeded", false);
+	}
+}
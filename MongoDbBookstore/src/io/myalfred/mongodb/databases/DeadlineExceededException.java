@@ -0,0 +1,27 @@
+package io.myalfred.mongodb.databases;
+
+import com.mongodb.MongoClientException;
+
+/**
+ * Thrown by an operation whose {@link Deadline} expired or was cancelled before it completed. Never retried.
+ */
+public class DeadlineExceededException extends MongoClientException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean cancelled;
+
+	public DeadlineExceededException(String message, boolean cancelled) {
+		super(message);
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * Returns true if the deadline was cancelled, false if it expired.
+	 *
+	 * @return
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,370 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.MongoClientException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.ReadPreference;
+
+/**
+ * Hedges idempotent reads of a {@link DatabaseClient}: if a read did not answer within a percentile of the recent read latencies, a duplicate is sent with another read
+ * preference (so server selection can pick another member of the replica set), the first answer is returned and the other request is cancelled. A {@link RequestBudget} caps the
+ * hedges to a fraction of the reads, so a slow cluster does not get twice the load.
+ * <p>
+ * Both requests run on threads of this class, each with a {@link Deadline#fork() fork} of the caller's deadline. Cancelling the losing request cancels its fork, which stops its
+ * retries and the reading of further batches. The request itself is not interrupted, the driver would close the connection. The caller waits for the requests in short
+ * intervals and checks its deadline in between, so cancelling it (or its expiry) ends the wait and cancels the requests.
+ * <p>
+ * The number of threads is bounded (e.g. by the connection pool size, more concurrent reads would only wait for a connection). While all threads are busy, reads run
+ * unhedged on the caller's thread and slow reads are not hedged, which is counted as {@link #getSaturated() saturated}.
+ */
+public class HedgedReads {
+
+	/** the interval in which a caller waiting for its requests checks its deadline */
+	private static final long CHECK_INTERVAL_MILLIS = 10;
+
+	private final LatencyTracker latencies;
+
+	private final double percentile;
+
+	/** the minimum delay before a hedge, so fast reads are never hedged */
+	private final long minDelayMillis;
+
+	private final RequestBudget budget;
+
+	private final ReadPreference hedgePreference;
+
+	private final ExecutorService executor;
+
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong hedgesSent = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+	private final AtomicLong budgetExhausted = new AtomicLong();
+	private final AtomicLong saturated = new AtomicLong();
+
+	/**
+	 * Creates hedged reads.
+	 *
+	 * @param name
+	 *            the name of the threads
+	 * @param latencies
+	 *            the tracker of the read latencies
+	 * @param percentile
+	 *            the percentile of the read latency after which a hedge is sent, e.g. 0.95
+	 * @param minDelayMillis
+	 *            the minimum delay before a hedge
+	 * @param budget
+	 *            the budget of hedges
+	 * @param hedgePreference
+	 *            the read preference of the hedges, e.g. secondaryPreferred
+	 * @param maxThreads
+	 *            the maximum number of requests running at the same time
+	 */
+	public HedgedReads(String name, LatencyTracker latencies, double percentile, long minDelayMillis, RequestBudget budget, ReadPreference hedgePreference,
+			int maxThreads) {
+
+		this.latencies = latencies;
+		this.percentile = percentile;
+		this.minDelayMillis = minDelayMillis;
+		this.budget = budget;
+		this.hedgePreference = hedgePreference;
+
+		// no queue: a request that finds all threads busy is rejected instead of waiting behind the others
+		this.executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hedged-reads-" + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs the provided read and, if it is slow, the provided hedge. Returns the first result, throws only if all sent requests failed.
+	 *
+	 * @param read
+	 *            the read with the default read preference
+	 * @param hedge
+	 *            the same read with the {@link #getHedgePreference() hedge read preference}
+	 * @return the first result
+	 */
+	public <R> R execute(Callable<R> read, Callable<R> hedge) {
+
+		reads.incrementAndGet();
+		budget.onRequest();
+
+		Deadline parent = Deadline.current();
+		CompletionService<R> completion = new ExecutorCompletionService<>(executor);
+
+		Request<R> primary = new Request<>(read, parent, false);
+		Request<R> secondary = null;
+
+		try {
+			primary.future = completion.submit(primary);
+		} catch (RejectedExecutionException e) {
+			saturated.incrementAndGet();
+			return callUnhedged(read);
+		}
+
+		try {
+			long delayMillis = getDelayMillis();
+			Future<R> first = next(completion, parent, delayMillis);
+
+			if (first == null) {
+
+				if (budget.tryAcquire()) {
+					try {
+						Request<R> request = new Request<>(hedge, parent, true);
+						request.future = completion.submit(request);
+						secondary = request;
+						hedgesSent.incrementAndGet();
+					} catch (RejectedExecutionException e) {
+						saturated.incrementAndGet();
+					}
+				} else {
+					budgetExhausted.incrementAndGet();
+				}
+
+				first = next(completion, parent, -1);
+			}
+
+			Request<R> winner = first == primary.future ? primary : secondary;
+			Request<R> loser = winner == primary ? secondary : primary;
+
+			try {
+				R result = first.get();
+				finish(winner, loser);
+				return result;
+
+			} catch (ExecutionException e) {
+
+				// the other request may still succeed
+				if (loser == null)
+					throw unwrap(e);
+
+				try {
+					R result = next(completion, parent, -1).get();
+					finish(loser, winner);
+					return result;
+				} catch (ExecutionException other) {
+					throw unwrap(e);
+				}
+			}
+
+		} catch (DeadlineExceededException e) {
+			primary.cancel();
+			if (secondary != null)
+				secondary.cancel();
+			throw e;
+
+		} catch (InterruptedException e) {
+			primary.cancel();
+			if (secondary != null)
+				secondary.cancel();
+			Thread.currentThread().interrupt();
+			throw new MongoInterruptedException("Interrupted while waiting for a hedged read", e);
+		}
+	}
+
+	/**
+	 * Waits up to the provided time (without limit if it is negative) for the next completed request and returns it, null if none completed in time. Checks the caller's
+	 * deadline between the waits.
+	 *
+	 * @throws DeadlineExceededException
+	 *             if the caller's deadline expired or was cancelled
+	 */
+	private static <R> Future<R> next(CompletionService<R> completion, Deadline parent, long timeoutMillis) throws InterruptedException {
+
+		long endNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+
+		while (true) {
+
+			long checkNanos = TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MILLIS);
+			long waitNanos = timeoutMillis < 0 ? checkNanos : Math.min(checkNanos, endNanos - System.nanoTime());
+			Future<R> next = completion.poll(waitNanos, TimeUnit.NANOSECONDS);
+
+			if (next != null || (timeoutMillis >= 0 && endNanos - System.nanoTime() <= 0))
+				return next;
+
+			if (parent != null)
+				parent.check();
+		}
+	}
+
+	/**
+	 * Runs the provided read on the caller's thread, in the caller's deadline.
+	 */
+	private static <R> R callUnhedged(Callable<R> read) {
+		try {
+			return read.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new MongoClientException("Hedged read failed", e);
+		}
+	}
+
+	private <R> void finish(Request<R> winner, Request<R> loser) {
+
+		// a read that lost to a hedge took at least as long as the hedged read, which is a lower bound of its latency
+		latencies.record(System.nanoTime() - primaryStart(winner, loser));
+
+		if (winner.hedge)
+			hedgesWon.incrementAndGet();
+
+		if (loser != null)
+			loser.cancel();
+	}
+
+	private static <R> long primaryStart(Request<R> winner, Request<R> loser) {
+		return winner.hedge ? loser.startNanos : winner.startNanos;
+	}
+
+	private static RuntimeException unwrap(ExecutionException e) {
+
+		if (e.getCause() instanceof RuntimeException)
+			return (RuntimeException) e.getCause();
+		if (e.getCause() instanceof Error)
+			throw (Error) e.getCause();
+		return new MongoClientException("Hedged read failed", e.getCause());
+	}
+
+	/**
+	 * Returns the delay after which a read is hedged: the configured percentile of the recent read latencies, but at least the minimum delay, -1 if too few reads were observed
+	 * to hedge.
+	 *
+	 * @return
+	 */
+	public long getDelayMillis() {
+
+		long nanos = latencies.percentileNanos(percentile);
+
+		if (nanos < 0)
+			return -1;
+
+		return Math.max(minDelayMillis, TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	/**
+	 * Returns the read preference of the hedges.
+	 *
+	 * @return
+	 */
+	public ReadPreference getHedgePreference() {
+		return hedgePreference;
+	}
+
+	/**
+	 * Returns the number of hedged reads.
+	 *
+	 * @return
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	/**
+	 * Returns the number of hedges sent.
+	 *
+	 * @return
+	 */
+	public long getHedgesSent() {
+		return hedgesSent.get();
+	}
+
+	/**
+	 * Returns the number of hedges that answered before the read they duplicated.
+	 *
+	 * @return
+	 */
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+
+	/**
+	 * Returns the number of slow reads that were not hedged because the budget was exhausted.
+	 *
+	 * @return
+	 */
+	public long getBudgetExhausted() {
+		return budgetExhausted.get();
+	}
+
+	/**
+	 * Returns the number of reads that ran unhedged on the caller's thread, or were not hedged, because all threads were busy.
+	 *
+	 * @return
+	 */
+	public long getSaturated() {
+		return saturated.get();
+	}
+
+	/**
+	 * Stops the threads of this instance, running requests complete.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "reads=" + getReads() + ", hedgesSent=" + getHedgesSent() + ", hedgesWon=" + getHedgesWon() + ", budgetExhausted=" + getBudgetExhausted() + ", saturated=" + getSaturated();
+	}
+
+	/**
+	 * One of the (at most two) requests of a hedged read.
+	 */
+	private static class Request<R> implements Callable<R> {
+
+		private final Callable<R> read;
+
+		private final Deadline deadline;
+
+		private final boolean hedge;
+
+		private final long startNanos = System.nanoTime();
+
+		private Future<R> future;
+
+		private Request(Callable<R> read, Deadline parent, boolean hedge) {
+			this.read = read;
+			this.deadline = parent == null ? null : parent.fork();
+			this.hedge = hedge;
+		}
+
+		@Override
+		public R call() throws Exception {
+
+			if (deadline == null)
+				return read.call();
+
+			Deadline.Scope scope = deadline.attach();
+			try {
+				return read.call();
+			} finally {
+				scope.close();
+			}
+		}
+
+		private void cancel() {
+
+			future.cancel(false);
+
+			if (deadline != null)
+				deadline.cancel();
+		}
+	}
+}
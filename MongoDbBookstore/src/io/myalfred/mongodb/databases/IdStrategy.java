@@ -0,0 +1,78 @@
+package io.myalfred.mongodb.databases;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Strategies for generating the "_id" of new documents on the client.
+ */
+public enum IdStrategy {
+
+	/**
+	 * Regular ObjectIds. They start with a timestamp and are therefore monotonically increasing: on a collection range-sharded by "_id" all inserts hit the last chunk (and
+	 * therefore one shard).
+	 */
+	MONOTONIC {
+		@Override
+		public ObjectId next() {
+			return new ObjectId();
+		}
+	},
+
+	/**
+	 * ObjectIds with their bytes in reverse order, so they start with the fast changing counter and spread evenly over all chunks of a collection range-sharded by "_id". Each id
+	 * is a permutation of a regular ObjectId and therefore just as unique, but its timestamp ({@link ObjectId#getDate()}) is meaningless.
+	 */
+	SCATTERED {
+		@Override
+		public ObjectId next() {
+
+			byte[] bytes = new ObjectId().toByteArray();
+
+			for (int i = 0; i < bytes.length / 2; i++) {
+				byte tmp = bytes[i];
+				bytes[i] = bytes[bytes.length - 1 - i];
+				bytes[bytes.length - 1 - i] = tmp;
+			}
+
+			return new ObjectId(bytes);
+		}
+	},
+
+	/**
+	 * ObjectIds whose leading timestamp is XORed with a hash of their remaining 8 bytes (machine, process and counter), so they are uniformly distributed like the values of a
+	 * hashed shard key, while the collection can still be range-sharded by "_id" (and queried by ranges of it). The XOR is reversible, so each id is just as unique as a regular
+	 * ObjectId, but its timestamp ({@link ObjectId#getDate()}) is meaningless.
+	 */
+	HASHED {
+		@Override
+		public ObjectId next() {
+
+			byte[] bytes = new ObjectId().toByteArray();
+
+			long rest = 0;
+			for (int i = 4; i < bytes.length; i++) {
+				rest = rest << 8 | bytes[i] & 0xff;
+			}
+
+			// finalizer of MurmurHash3, every input bit affects every output bit
+			rest ^= rest >>> 33;
+			rest *= 0xff51afd7ed558ccdL;
+			rest ^= rest >>> 33;
+			rest *= 0xc4ceb9fe1a85ec53L;
+			rest ^= rest >>> 33;
+
+			for (int i = 0; i < 4; i++) {
+				bytes[i] ^= (byte) (rest >>> (56 - 8 * i));
+			}
+
+			return new ObjectId(bytes);
+		}
+	};
+
+	/**
+	 * Returns a new unique id.
+	 *
+	 * @return
+	 */
+	public abstract ObjectId next();
+}
@@ -0,0 +1,125 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The state of an in-memory index, changed in place through the writes of the clients and replaced as a whole by a build so queries never see a partially built index.
+ * <p>
+ * The changes made while a build scans are kept and replayed on the built state before it replaces the current one, so the scan does not overwrite them with what it read.
+ *
+ * @param <S>
+ *            the type of the state
+ */
+class IndexState<S> {
+
+	/**
+	 * A write through the clients, applied to the current state and, while a build is running, replayed on the state it builds.
+	 */
+	interface Change<S> {
+
+		void applyTo(S state);
+	}
+
+	/**
+	 * Fills a new state from the database.
+	 */
+	interface Scan<S> {
+
+		void into(S built);
+	}
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** replaced under the write lock */
+	private volatile S current;
+
+	/** the changes while a build is running, guarded by the write lock */
+	private List<Change<S>> writtenDuringBuild;
+
+	IndexState(S initial) {
+		current = initial;
+	}
+
+	/**
+	 * Returns the current state. States that are not safe for concurrent reads have to be read under the {@link #readLock()}.
+	 *
+	 * @return
+	 */
+	S get() {
+		return current;
+	}
+
+	/**
+	 * Returns the lock to hold while reading a state that is not safe for concurrent reads.
+	 *
+	 * @return
+	 */
+	Lock readLock() {
+		return lock.readLock();
+	}
+
+	/**
+	 * Applies a change to the current state and keeps it for a running build.
+	 *
+	 * @param change
+	 */
+	void apply(Change<S> change) {
+
+		lock.writeLock().lock();
+		try {
+			change.applyTo(current);
+
+			if (writtenDuringBuild != null)
+				writtenDuringBuild.add(change);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Fills the provided state by the scan without holding a lock, replays the changes made meanwhile on it and replaces the current state by it.
+	 *
+	 * @param built
+	 *            the new, empty state
+	 * @param scan
+	 */
+	void build(S built, Scan<S> scan) {
+
+		List<Change<S>> written = new ArrayList<>();
+
+		lock.writeLock().lock();
+		try {
+			writtenDuringBuild = written;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		try {
+			scan.into(built);
+		} catch (RuntimeException e) {
+			lock.writeLock().lock();
+			try {
+				writtenDuringBuild = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			throw e;
+		}
+
+		lock.writeLock().lock();
+		try {
+			for (Change<S> change : written) {
+				change.applyTo(built);
+			}
+
+			current = built;
+			writtenDuringBuild = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
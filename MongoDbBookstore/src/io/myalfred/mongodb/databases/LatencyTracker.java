@@ -0,0 +1,82 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent requests in a ring buffer and returns percentiles of them. Percentiles are recomputed every {@value #RECOMPUTE_INTERVAL} samples, not on
+ * every call.
+ */
+public class LatencyTracker {
+
+	/** the number of samples between two computations of the percentile */
+	private static final int RECOMPUTE_INTERVAL = 64;
+
+	private final long[] samples;
+
+	/** the number of samples required before percentiles are returned */
+	private final int minSamples;
+
+	private long count;
+
+	private double percentile = -1;
+
+	private long percentileNanos = -1;
+
+	private long computedAt = -1;
+
+	/**
+	 * Creates a tracker of the provided number of most recent samples.
+	 *
+	 * @param window
+	 *            the number of samples kept
+	 * @param minSamples
+	 *            the number of samples required before percentiles are returned
+	 */
+	public LatencyTracker(int window, int minSamples) {
+		this.samples = new long[window];
+		this.minSamples = Math.min(window, minSamples);
+	}
+
+	/**
+	 * Records the latency of a request.
+	 *
+	 * @param nanos
+	 */
+	public synchronized void record(long nanos) {
+		samples[(int) (count++ % samples.length)] = nanos;
+	}
+
+	/**
+	 * Returns the provided percentile of the recorded latencies, or -1 if there are not enough samples yet.
+	 *
+	 * @param percentile
+	 *            the percentile, e.g. 0.95
+	 * @return the latency in nanoseconds
+	 */
+	public synchronized long percentileNanos(double percentile) {
+
+		if (count < minSamples)
+			return -1;
+
+		if (percentile != this.percentile || count - computedAt >= RECOMPUTE_INTERVAL) {
+
+			long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+			Arrays.sort(sorted);
+
+			this.percentile = percentile;
+			this.percentileNanos = sorted[(int) Math.max(0, Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1))];
+			this.computedAt = count;
+		}
+
+		return percentileNanos;
+	}
+
+	/**
+	 * Returns the number of recorded latencies.
+	 *
+	 * @return
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+}
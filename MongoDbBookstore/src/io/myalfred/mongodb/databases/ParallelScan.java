@@ -0,0 +1,439 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClientException;
+import com.mongodb.client.MongoCursor;
+
+import io.myalfred.mongodb.data.IdentityMap;
+import io.myalfred.mongodb.data.MongoObject;
+
+/**
+ * Parallel scan of a full collection. The collection is split into "_id" ranges, each range is read through its own cursor (and therefore its own pooled connection) on its own
+ * thread and the documents are decoded in batches on a fork-join pool, so a scan scales with cores and connections instead of running on one cursor and one thread.
+ * <p>
+ * Every query runs like the other operations of the client (retry policy, bulkhead, maxTimeMS), within the deadline of the thread that started the scan or, without one,
+ * the client's default timeout per partition: attach a long enough deadline for large collections. A partition is retried from its start as long as none of its documents
+ * were read, a failure after that fails the scan, as the documents already passed on would be passed on again.
+ *
+ * @param <T>
+ *            the class that is managed by the scanned DatabaseClient
+ */
+public class ParallelScan<T extends MongoObject> {
+
+	/**
+	 * How the split points between the "_id" ranges are chosen.
+	 */
+	public enum SplitMethod {
+
+		/**
+		 * equal time intervals between the ObjectId timestamps of the smallest and the largest id (cheap, but uneven if inserts were bursty). Only meaningful for ids that start
+		 * with their creation time: for ids generated with {@link IdStrategy#SCATTERED} or {@link IdStrategy#HASHED} the ranges still cover the whole collection, but are split by
+		 * arbitrary leading bytes, use {@link #SAMPLE} for such collections
+		 */
+		TIMESTAMP,
+
+		/** quantiles of a random $sample of ids (one extra query, but even partitions for any insert pattern) */
+		SAMPLE
+	}
+
+	/**
+	 * Receives the decoded objects of a partition in batches. Batches of one partition are delivered in order and from one thread, batches of different partitions concurrently.
+	 *
+	 * @param <T>
+	 */
+	public interface PartitionConsumer<T> {
+
+		void accept(int partition, List<T> batch);
+	}
+
+	/** the maximum number of batches of a partition that are decoded concurrently */
+	private static final int MAX_PENDING_BATCHES = 4;
+
+	private final DatabaseClient<T> client;
+
+	private final int partitions;
+
+	private SplitMethod splitMethod = SplitMethod.TIMESTAMP;
+
+	/** the number of ids sampled per partition with {@link SplitMethod#SAMPLE} */
+	private int samplesPerPartition = 100;
+
+	/** the number of documents decoded in one fork-join task */
+	private int batchSize = 500;
+
+	private ForkJoinPool decodePool = ForkJoinPool.commonPool();
+
+	/**
+	 * Creates a scan of the main collection of the provided client.
+	 *
+	 * @param client
+	 *            the client whose main collection is scanned
+	 * @param partitions
+	 *            the number of "_id" ranges scanned concurrently
+	 */
+	public ParallelScan(DatabaseClient<T> client, int partitions) {
+		this.client = client;
+		this.partitions = partitions;
+	}
+
+	public ParallelScan<T> splitMethod(SplitMethod splitMethod) {
+		this.splitMethod = splitMethod;
+		return this;
+	}
+
+	public ParallelScan<T> samplesPerPartition(int samplesPerPartition) {
+		this.samplesPerPartition = samplesPerPartition;
+		return this;
+	}
+
+	public ParallelScan<T> batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public ParallelScan<T> decodePool(ForkJoinPool decodePool) {
+		this.decodePool = decodePool;
+		return this;
+	}
+
+	/**
+	 * Returns the "_id" range filters of the partitions, in ascending order. The first range is open at the bottom, the last one at the top, so documents inserted during the scan
+	 * are not lost between ranges.
+	 *
+	 * @return one $match filter per partition
+	 */
+	public List<Document> split() {
+
+		return toRanges(splitMethod == SplitMethod.SAMPLE ? sampleSplitPoints() : timestampSplitPoints());
+	}
+
+	/**
+	 * Returns the "_id" range filters between the provided ascending split points: one more range than split points, the first one open at the bottom and the last one open at the
+	 * top. Without split points, the only range matches all documents.
+	 *
+	 * @param splitPoints
+	 *            the ascending, distinct split points
+	 * @return one $match filter per range
+	 */
+	public static List<Document> toRanges(List<ObjectId> splitPoints) {
+
+		List<Document> ranges = new ArrayList<>();
+
+		for (int i = 0; i <= splitPoints.size(); i++) {
+
+			Document range = new Document();
+
+			if (i > 0)
+				range.append("$gte", splitPoints.get(i - 1));
+			if (i < splitPoints.size())
+				range.append("$lt", splitPoints.get(i));
+
+			ranges.add(range.isEmpty() ? new Document() : new Document("_id", range));
+		}
+
+		return ranges;
+	}
+
+	/**
+	 * Scans all partitions and hands the decoded objects to the consumer. Returns when all partitions were scanned.
+	 *
+	 * @param consumer
+	 *            the consumer of the decoded objects
+	 */
+	public void forEach(PartitionConsumer<T> consumer) {
+		forEach(split(), consumer);
+	}
+
+	private void forEach(List<Document> ranges, PartitionConsumer<T> consumer) {
+
+		// the partitions run on other threads, which have to see the caller's deadline
+		Deadline deadline = Deadline.current();
+		ExecutorService readers = Executors.newFixedThreadPool(ranges.size());
+
+		try {
+			List<Future<Void>> results = new ArrayList<>();
+
+			for (int i = 0; i < ranges.size(); i++) {
+
+				int partition = i;
+				Document range = ranges.get(i);
+
+				results.add(readers.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+
+						if (deadline == null) {
+							scanPartition(partition, range, consumer);
+							return null;
+						}
+
+						Deadline.Scope scope = deadline.attach();
+						try {
+							scanPartition(partition, range, consumer);
+							return null;
+						} finally {
+							scope.close();
+						}
+					}
+				}));
+			}
+
+			for (Future<Void> result : results) {
+				result.get();
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Parallel scan interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Parallel scan failed", e.getCause());
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Scans all partitions and returns all objects, ordered by partition (which means roughly by "_id").
+	 *
+	 * @return all data objects of the collection
+	 */
+	public List<T> toList() {
+
+		List<Document> ranges = split();
+		List<List<T>> results = new ArrayList<>();
+
+		for (int i = 0; i < ranges.size(); i++) {
+			results.add(Collections.synchronizedList(new ArrayList<T>()));
+		}
+
+		forEach(ranges, new PartitionConsumer<T>() {
+
+			@Override
+			public void accept(int partition, List<T> batch) {
+				results.get(partition).addAll(batch);
+			}
+		});
+
+		List<T> all = new ArrayList<>();
+		for (List<T> result : results) {
+			all.addAll(result);
+		}
+
+		return all;
+	}
+
+	/**
+	 * Reads one "_id" range and decodes it on the decode pool, keeping at most {@link #MAX_PENDING_BATCHES} batches in flight.
+	 */
+	private void scanPartition(int partition, Document range, PartitionConsumer<T> consumer) {
+
+		// the range filter goes first so it can use the "_id" index, every pipeline keeps the main collection's "_id"
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(new Document("$match", range));
+		pipeline.addAll(client.getAggregationPipeline(new Document()));
+
+		Deque<ForkJoinTask<List<T>>> pending = new ArrayDeque<>();
+
+		client.execute(true, new RetryPolicy.Operation<Void>() {
+
+			@Override
+			public Void run(int attempt) {
+
+				boolean read = false;
+
+				try (MongoCursor<Document> cursor = client.getMainCollection().aggregate(pipeline).allowDiskUse(true).batchSize(batchSize)
+						.maxTime(client.maxTimeMillis(), TimeUnit.MILLISECONDS).iterator()) {
+
+					List<Document> batch = new ArrayList<>();
+
+					while (cursor.hasNext()) {
+
+						Document document = cursor.next();
+						read = true;
+						batch.add(document);
+
+						if (batch.size() == batchSize) {
+							pending.add(decodePool.submit(decodeTask(batch)));
+							batch = new ArrayList<>();
+
+							if (pending.size() > MAX_PENDING_BATCHES)
+								consumer.accept(partition, pending.poll().join());
+						}
+					}
+
+					if (!batch.isEmpty())
+						pending.add(decodePool.submit(decodeTask(batch)));
+
+					return null;
+
+				} catch (RuntimeException e) {
+
+					if (read)
+						throw new MongoClientException("Scan of partition " + partition + " failed after it read documents, it can not be retried", e);
+
+					throw e;
+				}
+			}
+		});
+
+		while (!pending.isEmpty()) {
+			consumer.accept(partition, pending.poll().join());
+		}
+	}
+
+	private Callable<List<T>> decodeTask(List<Document> documents) {
+		return new Callable<List<T>>() {
+
+			@Override
+			public List<T> call() throws Exception {
+
+				List<T> decoded = new ArrayList<>(documents.size());
+				for (Document document : documents) {
+					decoded.add(client.dataFromResult(document, IdentityMap.NONE));
+				}
+				return decoded;
+			}
+		};
+	}
+
+	/**
+	 * Splits the time between the smallest and the largest ObjectId into equal intervals.
+	 */
+	private List<ObjectId> timestampSplitPoints() {
+
+		Document first = boundary(1);
+		Document last = boundary(-1);
+
+		if (first == null || !(first.get("_id") instanceof ObjectId) || !(last.get("_id") instanceof ObjectId))
+			return new ArrayList<>(); // empty or not keyed by ObjectId, scan in one partition
+
+		return timestampSplitPoints(first.getObjectId("_id"), last.getObjectId("_id"), partitions);
+	}
+
+	/**
+	 * Returns the "_id" of the first document in the provided "_id" order, null if the collection is empty.
+	 */
+	private Document boundary(int order) {
+
+		return client.execute(true, new RetryPolicy.Operation<Document>() {
+
+			@Override
+			public Document run(int attempt) {
+				return client.getMainCollection().find().projection(new Document("_id", 1)).sort(new Document("_id", order))
+						.maxTime(client.maxTimeMillis(), TimeUnit.MILLISECONDS).first();
+			}
+		});
+	}
+
+	/**
+	 * Returns the ascending, distinct split points that divide the time between the timestamps of the provided smallest and largest id into equal intervals.
+	 *
+	 * @param first
+	 *            the smallest id of the collection
+	 * @param last
+	 *            the largest id of the collection
+	 * @param partitions
+	 *            the number of partitions
+	 * @return at most partitions - 1 split points
+	 */
+	public static List<ObjectId> timestampSplitPoints(ObjectId first, ObjectId last, int partitions) {
+
+		List<ObjectId> splitPoints = new ArrayList<>();
+
+		long min = first.getTimestamp() & 0xFFFFFFFFL;
+		long max = (last.getTimestamp() & 0xFFFFFFFFL) + 1;
+
+		for (int i = 1; i < partitions; i++) {
+
+			ObjectId splitPoint = lowestObjectId(min + (max - min) * i / partitions);
+
+			if (splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint))
+				splitPoints.add(splitPoint);
+		}
+
+		return splitPoints;
+	}
+
+	/**
+	 * Picks the quantiles of a random sample of ids as split points.
+	 */
+	private List<ObjectId> sampleSplitPoints() {
+
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(new Document("$sample", new Document("size", partitions * samplesPerPartition)));
+		pipeline.add(new Document("$project", new Document("_id", 1)));
+		pipeline.add(new Document("$sort", new Document("_id", 1)));
+
+		List<ObjectId> sample = client.execute(true, new RetryPolicy.Operation<List<ObjectId>>() {
+
+			@Override
+			public List<ObjectId> run(int attempt) {
+
+				List<ObjectId> ids = new ArrayList<>();
+				for (Document document : client.getMainCollection().aggregate(pipeline).allowDiskUse(true).maxTime(client.maxTimeMillis(), TimeUnit.MILLISECONDS)) {
+					ids.add(document.getObjectId("_id"));
+				}
+				return ids;
+			}
+		});
+
+		return quantileSplitPoints(sample, partitions);
+	}
+
+	/**
+	 * Returns the ascending, distinct quantiles of the provided sample that divide it into equal parts.
+	 *
+	 * @param sample
+	 *            the sampled ids, sorted ascending
+	 * @param partitions
+	 *            the number of partitions
+	 * @return at most partitions - 1 split points, none if the sample is empty
+	 */
+	public static List<ObjectId> quantileSplitPoints(List<ObjectId> sample, int partitions) {
+
+		List<ObjectId> splitPoints = new ArrayList<>();
+
+		for (int i = 1; i < partitions && !sample.isEmpty(); i++) {
+
+			ObjectId splitPoint = sample.get(sample.size() * i / partitions);
+
+			if (splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint))
+				splitPoints.add(splitPoint);
+		}
+
+		return splitPoints;
+	}
+
+	/**
+	 * Returns the smallest ObjectId with the provided timestamp (in seconds).
+	 */
+	private static ObjectId lowestObjectId(long timestamp) {
+
+		byte[] bytes = new byte[12];
+		bytes[0] = (byte) (timestamp >> 24);
+		bytes[1] = (byte) (timestamp >> 16);
+		bytes[2] = (byte) (timestamp >> 8);
+		bytes[3] = (byte) timestamp;
+		return new ObjectId(bytes);
+	}
+}
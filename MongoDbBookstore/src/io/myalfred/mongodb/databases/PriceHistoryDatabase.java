@@ -0,0 +1,347 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+import io.myalfred.mongodb.data.TestPriceBucket;
+import io.myalfred.mongodb.data.TestPricePoint;
+import io.myalfred.mongodb.dbauth.DbAuth;
+import io.myalfred.mongodb.dbauth.DefaultAuth;
+
+/**
+ * Price history of books, stored in buckets: one document per book and time window (e.g. a day) holding at most a fixed number of prices. Appending a price is a single upsert
+ * that pushes it to the current bucket, so book documents are never rewritten and no document grows without bound. Range and latest-price queries select the buckets by the
+ * compound index {book: 1, window: 1} and only read those.
+ *
+ * <pre>
+ * { "_id": ..., "book": ObjectId, "window": Date, "count": 3, "first": Date, "last": Date, "min": 9.5, "max": 12.0, "points": [ { "t": Date, "p": 10.0 }, ... ] }
+ * </pre>
+ */
+public class PriceHistoryDatabase extends DatabaseClient<TestPriceBucket> {
+
+	/** the name of the index buckets are selected by */
+	public static final String BOOK_WINDOW_INDEX = "book_1_window_1";
+
+	/** the length of the time window of a bucket */
+	private long windowMillis = TimeUnit.DAYS.toMillis(1);
+
+	/** the maximum number of prices per bucket */
+	private int bucketSize = 200;
+
+	public PriceHistoryDatabase() {
+		super(new DefaultAuth()); // test database always connects to staging remote (not localhost)
+	}
+
+	public PriceHistoryDatabase(DbAuth auth) {
+		super(auth);
+	}
+
+	@Override
+	protected MongoCollection<Document> getMainCollection() {
+		return getCollection(Collections.TEST_DATA_PRICE_HISTORY);
+	}
+
+	@Override
+	protected List<Bson> getAggregationPipeline(Document match) {
+		List<Bson> pipe = new ArrayList<>();
+		pipe.add(new Document("$match", match));
+		return pipe;
+	}
+
+	@Override
+	protected Document dataToDoc(TestPriceBucket data) {
+		return data.toDocument();
+	}
+
+	@Override
+	protected TestPriceBucket dataFromDoc(Document document) {
+		return new TestPriceBucket(document);
+	}
+
+	/**
+	 * Creates the index range and latest-price queries (and appends) select buckets by, if it does not exist yet.
+	 */
+	public void ensureIndexes() {
+		getMainCollection().createIndex(new Document("book", 1).append("window", 1), new IndexOptions().name(BOOK_WINDOW_INDEX));
+	}
+
+	/**
+	 * Returns the length of the time window of a bucket.
+	 *
+	 * @return
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Sets the length of the time window of a bucket. Changing it for an existing collection only affects new buckets. Range queries look back one (current) window length
+	 * before the range for a bucket that starts earlier but covers it, so growing the window is safe, while shrinking it misses the prices at the start of a range that old,
+	 * longer buckets hold.
+	 *
+	 * @param windowMillis
+	 */
+	public void setWindowMillis(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Returns the maximum number of prices per bucket.
+	 *
+	 * @return
+	 */
+	public int getBucketSize() {
+		return bucketSize;
+	}
+
+	/**
+	 * Sets the maximum number of prices per bucket. Further prices of the same window go to a new bucket.
+	 *
+	 * @param bucketSize
+	 */
+	public void setBucketSize(int bucketSize) {
+		this.bucketSize = bucketSize;
+	}
+
+	/**
+	 * Appends a price of a book: pushes it to the bucket of its time window that still has room, or creates a new bucket.
+	 *
+	 * @param book
+	 *            the id of the book
+	 * @param time
+	 *            the time the price took effect
+	 * @param price
+	 * @return true if the price was stored
+	 */
+	public boolean addPrice(ObjectId book, Date time, double price) {
+
+		TestPricePoint point = new TestPricePoint(time, price);
+
+		try {
+			// appending is not idempotent, a retry after a lost response could store the price twice
+			execute(false, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+					getWriteCollection().updateOne(bucketFilter(book, point), append(point), new UpdateOptions().upsert(true));
+					return null;
+				}
+			});
+
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Appends prices of a book with one ordered bulk write, see {@link #addPrice(ObjectId, Date, double)}.
+	 *
+	 * @param book
+	 *            the id of the book
+	 * @param points
+	 *            the prices, in the order they took effect
+	 * @return true if all prices were stored
+	 */
+	public boolean addPrices(ObjectId book, List<TestPricePoint> points) {
+
+		if (points.isEmpty())
+			return true;
+
+		List<WriteModel<Document>> models = new ArrayList<>();
+
+		for (TestPricePoint point : points) {
+			models.add(new UpdateOneModel<Document>(bucketFilter(book, point), append(point), new UpdateOptions().upsert(true)));
+		}
+
+		try {
+			// ordered, so each append sees the bucket counts of the previous ones
+			execute(false, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+					getWriteCollection().bulkWrite(models, new BulkWriteOptions().ordered(true));
+					return null;
+				}
+			});
+
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the prices of a book that took effect within the provided range, ordered by time.
+	 *
+	 * @param book
+	 *            the id of the book
+	 * @param from
+	 *            the start of the range (inclusive)
+	 * @param to
+	 *            the end of the range (inclusive)
+	 * @return
+	 */
+	public List<TestPricePoint> getPrices(ObjectId book, Date from, Date to) {
+
+		// a bucket holds prices from its window start up to one window later
+		Document filter = new Document("book", book).append("window",
+				new Document("$gt", new Date(windowStart(from.getTime()) - windowMillis)).append("$lte", to));
+
+		List<TestPriceBucket> buckets = findBuckets(filter, new Document("window", 1), false);
+		List<TestPricePoint> prices = new ArrayList<>();
+
+		for (TestPriceBucket bucket : buckets) {
+
+			// buckets of the edges of the range also hold prices outside of it
+			if (bucket.getLast().before(from) || bucket.getFirst().after(to))
+				continue;
+
+			for (TestPricePoint point : bucket.getPoints()) {
+				if (!point.getTime().before(from) && !point.getTime().after(to))
+					prices.add(point);
+			}
+		}
+
+		prices.sort(BY_TIME);
+		return prices;
+	}
+
+	/**
+	 * Returns the most recent price of a book, or null if it has none. Reads only the buckets of the most recent window.
+	 *
+	 * @param book
+	 *            the id of the book
+	 * @return
+	 */
+	public TestPricePoint getLatestPrice(ObjectId book) {
+
+		TestPricePoint latest = null;
+
+		for (TestPriceBucket bucket : findBuckets(new Document("book", book), new Document("window", -1), true)) {
+			for (TestPricePoint point : bucket.getPoints()) {
+				if (latest == null || !point.getTime().before(latest.getTime()))
+					latest = point;
+			}
+		}
+
+		return latest;
+	}
+
+	/**
+	 * Returns the buckets of a book within the provided range (without their points), e.g. for daily minimum and maximum prices.
+	 *
+	 * @param book
+	 *            the id of the book
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public List<TestPriceBucket> getSummaries(ObjectId book, Date from, Date to) {
+
+		Document filter = new Document("book", book).append("window", new Document("$gte", new Date(windowStart(from.getTime()))).append("$lte", to));
+		Document projection = new Document("points", 0);
+
+		return execute(true, new RetryPolicy.Operation<List<TestPriceBucket>>() {
+
+			@Override
+			public List<TestPriceBucket> run(int attempt) {
+
+				List<TestPriceBucket> buckets = new ArrayList<>();
+
+				for (Document document : getMainCollection().find(filter).projection(projection).sort(new Document("window", 1)).maxTime(maxTimeMillis(),
+						TimeUnit.MILLISECONDS)) {
+					buckets.add(new TestPriceBucket(document));
+				}
+
+				return buckets;
+			}
+		});
+	}
+
+	/**
+	 * Deletes the whole price history.
+	 */
+	public void removeAll() {
+
+		MongoCollection<Document> collection = getCollection(Collections.TEST_DATA_PRICE_HISTORY);
+		collection.deleteMany(new Document());
+	}
+
+	/**
+	 * Returns the buckets that match the filter in the provided order. If newestWindowOnly is set, reading stops at the first bucket of another window than the first one (a
+	 * window may have several buckets).
+	 */
+	private List<TestPriceBucket> findBuckets(Document filter, Document sort, boolean newestWindowOnly) {
+
+		return execute(true, new RetryPolicy.Operation<List<TestPriceBucket>>() {
+
+			@Override
+			public List<TestPriceBucket> run(int attempt) {
+
+				List<TestPriceBucket> buckets = new ArrayList<>();
+				Date newest = null;
+
+				try (MongoCursor<Document> cursor = getMainCollection().find(filter).sort(sort).batchSize(newestWindowOnly ? 4 : 0)
+						.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS).iterator()) {
+
+					while (cursor.hasNext()) {
+
+						TestPriceBucket bucket = new TestPriceBucket(cursor.next());
+
+						if (newestWindowOnly && newest != null && !newest.equals(bucket.getWindow()))
+							break;
+
+						newest = bucket.getWindow();
+						buckets.add(bucket);
+					}
+				}
+
+				return buckets;
+			}
+		});
+	}
+
+	/**
+	 * Returns the filter of the bucket a price is appended to: the bucket of its book and window that still has room.
+	 */
+	private Document bucketFilter(ObjectId book, TestPricePoint point) {
+		return new Document("book", book).append("window", new Date(windowStart(point.getTime().getTime()))).append("count", new Document("$lt", bucketSize));
+	}
+
+	/**
+	 * Returns the update that appends a price and maintains the summary fields of the bucket. An upsert also sets "book" and "window" from the filter.
+	 */
+	private static Document append(TestPricePoint point) {
+		return new Document("$push", new Document("points", point.toDocument())).append("$inc", new Document("count", 1))
+				.append("$min", new Document("first", point.getTime()).append("min", point.getPrice()))
+				.append("$max", new Document("last", point.getTime()).append("max", point.getPrice()));
+	}
+
+	private long windowStart(long millis) {
+		return Math.floorDiv(millis, windowMillis) * windowMillis;
+	}
+
+	private static final Comparator<TestPricePoint> BY_TIME = new Comparator<TestPricePoint>() {
+
+		@Override
+		public int compare(TestPricePoint a, TestPricePoint b) {
+			return a.getTime().compareTo(b.getTime());
+		}
+	};
+}
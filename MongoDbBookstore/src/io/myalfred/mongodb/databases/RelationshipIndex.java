@@ -0,0 +1,688 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCursor;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+
+/**
+ * In-memory index of the relationships between authors, books and bookstores in both directions. Books only reference their author and bookstores only their books, this index
+ * also answers the reverse questions ("all books of an author", "all bookstores that carry an author") without a pipeline or a $lookup, and loads only the resulting objects by
+ * id.
+ * <p>
+ * Every ObjectId is mapped to a dense int id per collection, the edges are sorted int arrays per node. The index is built by one streaming scan of the books and one of the
+ * bookstores (reading only the references) and then kept up to date through the writes of the provided clients. Writes made by other clients or processes are only seen after
+ * the next {@link #build()}. The {@link AuthorSearchIndex} reads the books of its authors from this index.
+ */
+public class RelationshipIndex {
+
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * Dense int ids of the ObjectIds of one collection. Ids are never reused, removed objects just lose their edges.
+	 */
+	private static class Ids {
+
+		private final Map<ObjectId, Integer> dense = new HashMap<>();
+
+		private ObjectId[] objectIds = new ObjectId[1024];
+
+		int intern(ObjectId id) {
+
+			Integer existing = dense.get(id);
+
+			if (existing != null)
+				return existing;
+
+			int created = dense.size();
+
+			if (created == objectIds.length)
+				objectIds = Arrays.copyOf(objectIds, created * 2);
+
+			objectIds[created] = id;
+			dense.put(id, created);
+			return created;
+		}
+
+		int get(ObjectId id) {
+			Integer existing = dense.get(id);
+			return existing == null ? -1 : existing;
+		}
+
+		ObjectId get(int id) {
+			return objectIds[id];
+		}
+
+		int size() {
+			return dense.size();
+		}
+	}
+
+	/**
+	 * The edges of one relationship: a sorted int array of target ids per source id. A build appends unsorted to rows with spare capacity and sorts every row once at the end,
+	 * incremental changes copy the row.
+	 */
+	private static class Edges {
+
+		private int[][] targets = new int[1024][];
+
+		/** the number of used entries per row while appending, null once the rows are sorted */
+		private int[] sizes;
+
+		private long count;
+
+		int[] get(int source) {
+			int[] row = source < 0 || source >= targets.length ? null : targets[source];
+			return row == null ? NONE : row;
+		}
+
+		private void grow(int source) {
+			if (source >= targets.length)
+				targets = Arrays.copyOf(targets, Math.max(source + 1, targets.length * 2));
+		}
+
+		/**
+		 * Appends a target without keeping the row sorted, {@link #sortRows()} has to be called before the edges are read or changed.
+		 */
+		void append(int source, int target) {
+
+			grow(source);
+
+			if (sizes == null)
+				sizes = new int[targets.length];
+			else if (sizes.length < targets.length)
+				sizes = Arrays.copyOf(sizes, targets.length);
+
+			int[] row = targets[source];
+			int size = sizes[source];
+
+			if (row == null)
+				row = targets[source] = new int[4];
+			else if (size == row.length)
+				row = targets[source] = Arrays.copyOf(row, size * 2);
+
+			row[size] = target;
+			sizes[source] = size + 1;
+		}
+
+		/**
+		 * Sorts and deduplicates the rows filled by {@link #append(int, int)} and trims them to their size.
+		 */
+		void sortRows() {
+
+			if (sizes == null)
+				return;
+
+			count = 0;
+
+			for (int source = 0; source < sizes.length; source++) {
+
+				int[] row = targets[source];
+				int size = sizes[source];
+
+				if (row == null)
+					continue;
+
+				Arrays.sort(row, 0, size);
+
+				int distinct = 0;
+
+				for (int i = 0; i < size; i++) {
+					if (distinct == 0 || row[i] != row[distinct - 1])
+						row[distinct++] = row[i];
+				}
+
+				targets[source] = Arrays.copyOf(row, distinct);
+				count += distinct;
+			}
+
+			sizes = null;
+		}
+
+		void add(int source, int target) {
+
+			grow(source);
+
+			int[] row = get(source);
+			int position = Arrays.binarySearch(row, target);
+
+			if (position >= 0)
+				return;
+
+			int insert = -position - 1;
+			int[] updated = new int[row.length + 1];
+			System.arraycopy(row, 0, updated, 0, insert);
+			updated[insert] = target;
+			System.arraycopy(row, insert, updated, insert + 1, row.length - insert);
+			targets[source] = updated;
+			count++;
+		}
+
+		void remove(int source, int target) {
+
+			int[] row = get(source);
+			int position = Arrays.binarySearch(row, target);
+
+			if (position < 0)
+				return;
+
+			int[] updated = new int[row.length - 1];
+			System.arraycopy(row, 0, updated, 0, position);
+			System.arraycopy(row, position + 1, updated, position, row.length - position - 1);
+			targets[source] = updated.length == 0 ? null : updated;
+			count--;
+		}
+	}
+
+	/**
+	 * The dense ids and edges of all relationships, replaced as a whole by a build so queries never see a partially built index.
+	 */
+	private static class Graph {
+
+		final Ids authorIds = new Ids();
+		final Ids bookIds = new Ids();
+		final Ids storeIds = new Ids();
+
+		/** book -> author (at most one) */
+		final Edges bookAuthor = new Edges();
+
+		/** author -> books */
+		final Edges authorBooks = new Edges();
+
+		/** bookstore -> books */
+		final Edges storeBooks = new Edges();
+
+		/** book -> bookstores */
+		final Edges bookStores = new Edges();
+
+		/**
+		 * Appends the references of a scanned book, see {@link #sortRows()}.
+		 */
+		void appendBook(ObjectId id, ObjectId authorId) {
+
+			int book = bookIds.intern(id);
+
+			if (authorId == null)
+				return;
+
+			int author = authorIds.intern(authorId);
+			bookAuthor.append(book, author);
+			authorBooks.append(author, book);
+		}
+
+		/**
+		 * Appends the references of a scanned bookstore, see {@link #sortRows()}.
+		 */
+		void appendStore(ObjectId id, List<ObjectId> books) {
+
+			int store = storeIds.intern(id);
+
+			for (ObjectId bookId : books) {
+
+				if (bookId == null)
+					continue;
+
+				int book = bookIds.intern(bookId);
+				storeBooks.append(store, book);
+				bookStores.append(book, store);
+			}
+		}
+
+		void sortRows() {
+			bookAuthor.sortRows();
+			authorBooks.sortRows();
+			storeBooks.sortRows();
+			bookStores.sortRows();
+		}
+
+		void linkBook(ObjectId id, ObjectId authorId) {
+
+			int book = bookIds.intern(id);
+
+			for (int previous : bookAuthor.get(book)) {
+				bookAuthor.remove(book, previous);
+				authorBooks.remove(previous, book);
+			}
+
+			if (authorId == null)
+				return;
+
+			int author = authorIds.intern(authorId);
+			bookAuthor.add(book, author);
+			authorBooks.add(author, book);
+		}
+
+		void unlinkBook(ObjectId id) {
+
+			int book = bookIds.get(id);
+
+			if (book < 0)
+				return;
+
+			linkBook(id, null);
+
+			for (int store : bookStores.get(book)) {
+				storeBooks.remove(store, book);
+				bookStores.remove(book, store);
+			}
+		}
+
+		void linkStore(ObjectId id, List<ObjectId> books) {
+
+			int store = storeIds.intern(id);
+
+			for (int previous : storeBooks.get(store)) {
+				storeBooks.remove(store, previous);
+				bookStores.remove(previous, store);
+			}
+
+			for (ObjectId bookId : books) {
+
+				if (bookId == null)
+					continue;
+
+				int book = bookIds.intern(bookId);
+				storeBooks.add(store, book);
+				bookStores.add(book, store);
+			}
+		}
+	}
+
+	private final TestBookDatabase books;
+
+	private final TestBookStoreDatabase stores;
+
+	/** the graph, read under the read lock as its edges are not safe for concurrent reads */
+	private final IndexState<Graph> state = new IndexState<>(new Graph());
+
+	private final DatabaseClient.WriteListener<TestBook> bookListener = new DatabaseClient.WriteListener<TestBook>() {
+
+		@Override
+		public void onWritten(TestBook book) {
+			TestAuthor author = book.getAuthor();
+			putBook(book.getObjectId(), author == null ? null : author.getObjectId());
+		}
+
+		@Override
+		public void onUpdated(ObjectId id, String fieldName, Object value) {
+
+			if (!"author".equals(fieldName))
+				return;
+
+			if (value instanceof TestAuthor)
+				putBook(id, ((TestAuthor) value).getObjectId());
+			else if (value instanceof ObjectId || value == null)
+				putBook(id, (ObjectId) value);
+		}
+
+		@Override
+		public void onDeleted(ObjectId id) {
+			removeBook(id);
+		}
+	};
+
+	private final DatabaseClient.WriteListener<TestBookStore> storeListener = new DatabaseClient.WriteListener<TestBookStore>() {
+
+		@Override
+		public void onWritten(TestBookStore store) {
+
+			List<TestBook> storeBooks = store.getBooks();
+
+			if (storeBooks == null)
+				return;
+
+			List<ObjectId> ids = new ArrayList<>();
+
+			for (TestBook book : storeBooks) {
+				ids.add(book.getObjectId());
+			}
+
+			putStore(store.getObjectId(), ids);
+		}
+
+		@Override
+		public void onUpdated(ObjectId id, String fieldName, Object value) {
+
+			if (!"books".equals(fieldName) || !(value instanceof List))
+				return;
+
+			List<ObjectId> ids = new ArrayList<>();
+
+			for (Object book : (List<?>) value) {
+				if (book instanceof TestBook)
+					ids.add(((TestBook) book).getObjectId());
+				else if (book instanceof ObjectId)
+					ids.add((ObjectId) book);
+			}
+
+			putStore(id, ids);
+		}
+
+		@Override
+		public void onDeleted(ObjectId id) {
+			removeStore(id);
+		}
+	};
+
+	/**
+	 * Creates an empty index over the provided clients and starts following their writes. Call {@link #build()} to load the existing relationships.
+	 *
+	 * @param books
+	 * @param stores
+	 */
+	public RelationshipIndex(TestBookDatabase books, TestBookStoreDatabase stores) {
+		this.books = books;
+		this.stores = stores;
+
+		books.addWriteListener(bookListener);
+		stores.addWriteListener(storeListener);
+	}
+
+	/**
+	 * (Re)builds the index by one streaming scan of the books and one of the bookstores, reading only their references. Queries are answered by the previous index until the
+	 * build is done. Writes through the clients during the build are not lost.
+	 *
+	 * @return this index
+	 */
+	public RelationshipIndex build() {
+
+		state.build(new Graph(), new IndexState.Scan<Graph>() {
+
+			@Override
+			public void into(Graph built) {
+				scan(built);
+				built.sortRows();
+			}
+		});
+
+		return this;
+	}
+
+	private void scan(Graph built) {
+
+		books.flushPending();
+		stores.flushPending();
+
+		try (MongoCursor<Document> cursor = books.getMainCollection().find().projection(new Document("author", 1)).iterator()) {
+
+			while (cursor.hasNext()) {
+
+				Document book = cursor.next();
+				built.appendBook(book.getObjectId("_id"), book.getObjectId("author"));
+			}
+		}
+
+		try (MongoCursor<Document> cursor = stores.getMainCollection().find().projection(new Document("books", 1)).iterator()) {
+
+			while (cursor.hasNext()) {
+
+				Document store = cursor.next();
+				built.appendStore(store.getObjectId("_id"), store.getList("books", ObjectId.class, java.util.Collections.<ObjectId> emptyList()));
+			}
+		}
+	}
+
+	/**
+	 * Stops following the writes of the clients.
+	 */
+	public void close() {
+		books.removeWriteListener(bookListener);
+		stores.removeWriteListener(storeListener);
+	}
+
+	/**
+	 * Returns the ids of the books of the provided author, in ascending order of their dense ids.
+	 *
+	 * @param authorId
+	 * @return
+	 */
+	public List<ObjectId> getBookIdsOfAuthor(ObjectId authorId) {
+
+		state.readLock().lock();
+		try {
+			Graph current = state.get();
+			return toObjectIds(current.bookIds, current.authorBooks.get(current.authorIds.get(authorId)));
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the bookstores that carry the provided book.
+	 *
+	 * @param bookId
+	 * @return
+	 */
+	public List<ObjectId> getStoreIdsOfBook(ObjectId bookId) {
+
+		state.readLock().lock();
+		try {
+			Graph current = state.get();
+			return toObjectIds(current.storeIds, current.bookStores.get(current.bookIds.get(bookId)));
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the books of the provided bookstore.
+	 *
+	 * @param storeId
+	 * @return
+	 */
+	public List<ObjectId> getBookIdsOfStore(ObjectId storeId) {
+
+		state.readLock().lock();
+		try {
+			Graph current = state.get();
+			return toObjectIds(current.bookIds, current.storeBooks.get(current.storeIds.get(storeId)));
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the bookstores that carry at least one book of the provided author (author -> books -> bookstores).
+	 *
+	 * @param authorId
+	 * @return
+	 */
+	public List<ObjectId> getStoreIdsOfAuthor(ObjectId authorId) {
+
+		state.readLock().lock();
+		try {
+			Graph current = state.get();
+			BitSet found = new BitSet(current.storeIds.size());
+
+			for (int book : current.authorBooks.get(current.authorIds.get(authorId))) {
+				for (int store : current.bookStores.get(book)) {
+					found.set(store);
+				}
+			}
+
+			return toObjectIds(current.storeIds, found);
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the authors of the books of the provided bookstore (bookstore -> books -> authors).
+	 *
+	 * @param storeId
+	 * @return
+	 */
+	public List<ObjectId> getAuthorIdsOfStore(ObjectId storeId) {
+
+		state.readLock().lock();
+		try {
+			Graph current = state.get();
+			BitSet found = new BitSet(current.authorIds.size());
+
+			for (int book : current.storeBooks.get(current.storeIds.get(storeId))) {
+				for (int author : current.bookAuthor.get(book)) {
+					found.set(author);
+				}
+			}
+
+			return toObjectIds(current.authorIds, found);
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Loads the books of the provided author with one query by id.
+	 *
+	 * @param authorId
+	 * @return
+	 */
+	public List<TestBook> loadBooksOfAuthor(ObjectId authorId) {
+
+		List<ObjectId> ids = getBookIdsOfAuthor(authorId);
+		return ids.isEmpty() ? new ArrayList<TestBook>() : books.loadAllByIds(ids);
+	}
+
+	/**
+	 * Loads the bookstores that carry the provided book with one query by id.
+	 *
+	 * @param bookId
+	 * @return
+	 */
+	public List<TestBookStore> loadStoresOfBook(ObjectId bookId) {
+
+		List<ObjectId> ids = getStoreIdsOfBook(bookId);
+		return ids.isEmpty() ? new ArrayList<TestBookStore>() : stores.loadAllByIds(ids);
+	}
+
+	/**
+	 * Loads the bookstores that carry at least one book of the provided author with one query by id.
+	 *
+	 * @param authorId
+	 * @return
+	 */
+	public List<TestBookStore> loadStoresOfAuthor(ObjectId authorId) {
+
+		List<ObjectId> ids = getStoreIdsOfAuthor(authorId);
+		return ids.isEmpty() ? new ArrayList<TestBookStore>() : stores.loadAllByIds(ids);
+	}
+
+	/**
+	 * Returns the number of book -> author and bookstore -> book references in the index.
+	 *
+	 * @return
+	 */
+	public long getEdgeCount() {
+
+		state.readLock().lock();
+		try {
+			Graph current = state.get();
+			return current.bookAuthor.count + current.storeBooks.count;
+		} finally {
+			state.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets (or replaces) the author of a book.
+	 *
+	 * @param id
+	 * @param authorId
+	 *            the author of the book, null if it has none
+	 */
+	public void putBook(ObjectId id, ObjectId authorId) {
+
+		if (id == null)
+			return;
+
+		state.apply(new IndexState.Change<Graph>() {
+
+			@Override
+			public void applyTo(Graph graph) {
+				graph.linkBook(id, authorId);
+			}
+		});
+	}
+
+	/**
+	 * Removes a book with its author and bookstore references.
+	 *
+	 * @param id
+	 */
+	public void removeBook(ObjectId id) {
+
+		state.apply(new IndexState.Change<Graph>() {
+
+			@Override
+			public void applyTo(Graph graph) {
+				graph.unlinkBook(id);
+			}
+		});
+	}
+
+	/**
+	 * Sets (or replaces) the books of a bookstore.
+	 *
+	 * @param id
+	 * @param books
+	 *            the ids of the books of the bookstore
+	 */
+	public void putStore(ObjectId id, List<ObjectId> books) {
+
+		if (id == null)
+			return;
+
+		// the change is kept for a running build, so it must not see later changes of the caller's list
+		List<ObjectId> ids = new ArrayList<>(books);
+
+		state.apply(new IndexState.Change<Graph>() {
+
+			@Override
+			public void applyTo(Graph graph) {
+				graph.linkStore(id, ids);
+			}
+		});
+	}
+
+	/**
+	 * Removes a bookstore with its book references.
+	 *
+	 * @param id
+	 */
+	public void removeStore(ObjectId id) {
+		putStore(id, java.util.Collections.<ObjectId> emptyList());
+	}
+
+	private static List<ObjectId> toObjectIds(Ids ids, int[] dense) {
+
+		List<ObjectId> result = new ArrayList<>(dense.length);
+
+		for (int id : dense) {
+			result.add(ids.get(id));
+		}
+
+		return result;
+	}
+
+	private static List<ObjectId> toObjectIds(Ids ids, BitSet dense) {
+
+		List<ObjectId> result = new ArrayList<>(dense.cardinality());
+
+		for (int id = dense.nextSetBit(0); id >= 0; id = dense.nextSetBit(id + 1)) {
+			result.add(ids.get(id));
+		}
+
+		return result;
+	}
+}
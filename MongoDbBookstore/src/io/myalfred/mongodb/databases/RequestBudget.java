@@ -0,0 +1,60 @@
+package io.myalfred.mongodb.databases;
+
+/**
+ * Caps the number of additional requests (e.g. retries) to a fraction of the original requests. Every original request deposits {@code ratio} tokens, every additional request
+ * withdraws one. When the servers are down, retries quickly drain the budget instead of multiplying the load on the recovering servers.
+ */
+public class RequestBudget {
+
+	/** the tokens deposited per original request */
+	private final double ratio;
+
+	/** the maximum number of tokens, which is the largest burst of additional requests */
+	private final double maxTokens;
+
+	private double tokens;
+
+	/**
+	 * Creates a budget that starts full.
+	 *
+	 * @param ratio
+	 *            the tokens deposited per original request, e.g. 0.1 allows one additional request per ten original ones
+	 * @param maxTokens
+	 *            the maximum number of tokens (the largest burst of additional requests)
+	 */
+	public RequestBudget(double ratio, double maxTokens) {
+		this.ratio = ratio;
+		this.maxTokens = maxTokens;
+		this.tokens = maxTokens;
+	}
+
+	/**
+	 * Records an original request.
+	 */
+	public synchronized void onRequest() {
+		tokens = Math.min(maxTokens, tokens + ratio);
+	}
+
+	/**
+	 * Withdraws a token for an additional request.
+	 *
+	 * @return true if the additional request may be sent, false if the budget is exhausted
+	 */
+	public synchronized boolean tryAcquire() {
+
+		if (tokens < 1)
+			return false;
+
+		tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * Returns the currently available tokens.
+	 *
+	 * @return
+	 */
+	public synchronized double getTokens() {
+		return tokens;
+	}
+}
@@ -0,0 +1,100 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link RetryPolicy}.
+ */
+public class RetryMetrics {
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong recovered = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final AtomicLong budgetRejected = new AtomicLong();
+	private final AtomicLong permanentFailures = new AtomicLong();
+
+	void onOperation() {
+		operations.incrementAndGet();
+	}
+
+	void onRetry() {
+		retries.incrementAndGet();
+	}
+
+	void onRecovered() {
+		recovered.incrementAndGet();
+	}
+
+	void onExhausted() {
+		exhausted.incrementAndGet();
+	}
+
+	void onBudgetRejected() {
+		budgetRejected.incrementAndGet();
+	}
+
+	void onPermanentFailure() {
+		permanentFailures.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of operations executed (not counting retries).
+	 *
+	 * @return
+	 */
+	public long getOperations() {
+		return operations.get();
+	}
+
+	/**
+	 * Returns the number of retries sent.
+	 *
+	 * @return
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Returns the number of operations that failed transiently and succeeded on a retry.
+	 *
+	 * @return
+	 */
+	public long getRecovered() {
+		return recovered.get();
+	}
+
+	/**
+	 * Returns the number of operations that failed transiently on all attempts or ran out of time.
+	 *
+	 * @return
+	 */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+
+	/**
+	 * Returns the number of retries that were not sent because the retry budget was exhausted.
+	 *
+	 * @return
+	 */
+	public long getBudgetRejected() {
+		return budgetRejected.get();
+	}
+
+	/**
+	 * Returns the number of operations that failed with a non-transient error (or a transient error of a non-idempotent operation).
+	 *
+	 * @return
+	 */
+	public long getPermanentFailures() {
+		return permanentFailures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "operations=" + getOperations() + ", retries=" + getRetries() + ", recovered=" + getRecovered() + ", exhausted=" + getExhausted() + ", budgetRejected="
+				+ getBudgetRejected() + ", permanentFailures=" + getPermanentFailures();
+	}
+}
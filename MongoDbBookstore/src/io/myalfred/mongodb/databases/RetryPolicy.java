@@ -0,0 +1,154 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries idempotent operations that failed with a transient error (see {@link TransientErrors}) with exponential backoff and full jitter, until the maximum number of attempts
+ * is reached or the deadline would be exceeded (the policy's own deadline as well as a {@link Deadline} attached to the thread). All retries are paid from a
+ * {@link RequestBudget} so they can not amplify the load during an outage.
+ */
+public class RetryPolicy {
+
+	/**
+	 * An operation that can be attempted multiple times.
+	 *
+	 * @param <R>
+	 *            the result of the operation
+	 */
+	public interface Operation<R> {
+
+		/**
+		 * Runs the operation.
+		 *
+		 * @param attempt
+		 *            the attempt, starting at 1 (later attempts may need to tolerate effects of a previous attempt, e.g. duplicate keys)
+		 * @return the result of the operation
+		 */
+		R run(int attempt);
+	}
+
+	/** never retries */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0, new RequestBudget(0, 0));
+
+	/**
+	 * Retries up to 3 times within 10 seconds with backoffs between 100 ms and 2 s, which covers a typical replica set election. Shared by all clients that do not set their own
+	 * policy, so its budget (one retry per ten operations, bursts of up to 10 retries) is global.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(4, 100, 2000, 10000, new RequestBudget(0.1, 10));
+
+	private final int maxAttempts;
+
+	private final long initialBackoffMillis;
+
+	private final long maxBackoffMillis;
+
+	private final long deadlineMillis;
+
+	private final RequestBudget budget;
+
+	private final RetryMetrics metrics = new RetryMetrics();
+
+	/**
+	 * Creates a new retry policy.
+	 *
+	 * @param maxAttempts
+	 *            the maximum number of attempts per operation (including the first)
+	 * @param initialBackoffMillis
+	 *            the backoff cap before the first retry, doubled for every further retry
+	 * @param maxBackoffMillis
+	 *            the maximum backoff cap
+	 * @param deadlineMillis
+	 *            the time after the first attempt after which no more retries are started
+	 * @param budget
+	 *            the budget all retries are paid from, share one budget between clients to enforce a global limit
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long deadlineMillis, RequestBudget budget) {
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.deadlineMillis = deadlineMillis;
+		this.budget = budget;
+	}
+
+	/**
+	 * Executes the provided operation and retries it on transient errors if it is idempotent.
+	 *
+	 * @param idempotent
+	 *            true if running the operation more than once has the same effect as running it once
+	 * @param operation
+	 *            the operation to execute
+	 * @return the result of the operation
+	 */
+	public <R> R execute(boolean idempotent, Operation<R> operation) {
+
+		metrics.onOperation();
+		budget.onRequest();
+
+		long start = System.nanoTime();
+		Deadline deadline = Deadline.current();
+
+		for (int attempt = 1;; attempt++) {
+
+			if (deadline != null)
+				deadline.check();
+
+			try {
+
+				R result = operation.run(attempt);
+
+				if (attempt > 1)
+					metrics.onRecovered();
+
+				return result;
+
+			} catch (RuntimeException e) {
+
+				if (!idempotent || !TransientErrors.isTransient(e)) {
+					metrics.onPermanentFailure();
+					throw e;
+				}
+
+				long backoff = ThreadLocalRandom.current().nextLong(Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20)) + 1);
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+				if (attempt >= maxAttempts || elapsed + backoff >= deadlineMillis || deadline != null && backoff >= deadline.remainingMillis()) {
+					metrics.onExhausted();
+					throw e;
+				}
+
+				if (!budget.tryAcquire()) {
+					metrics.onBudgetRejected();
+					throw e;
+				}
+
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+
+				metrics.onRetry();
+			}
+		}
+	}
+
+	/**
+	 * Returns the counters of this policy.
+	 *
+	 * @return
+	 */
+	public RetryMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the budget retries of this policy are paid from.
+	 *
+	 * @return
+	 */
+	public RequestBudget getBudget() {
+		return budget;
+	}
+}
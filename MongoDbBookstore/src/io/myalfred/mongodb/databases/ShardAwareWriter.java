@@ -0,0 +1,255 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+
+import io.myalfred.mongodb.data.MongoObject;
+
+/**
+ * Bulk writer for sharded collections. Instead of sending documents in insertion order (which makes every batch scatter across all shards via mongos), each batch is grouped by
+ * the shard owning the target chunk, pre-sorted by shard key and the per-shard batches are written concurrently. New ids are generated with an {@link IdStrategy}, use
+ * {@link IdStrategy#SCATTERED} or {@link IdStrategy#HASHED} to avoid that all inserts into a collection range-sharded by "_id" hit the last chunk.
+ *
+ * @param <T>
+ *            the class that is managed by the wrapped DatabaseClient
+ */
+public class ShardAwareWriter<T extends MongoObject> implements AutoCloseable {
+
+	/** group of documents that can not be routed locally, mongos routes them */
+	private static final String UNROUTED = "";
+
+	private final DatabaseClient<T> client;
+
+	private final ShardLayout layout;
+
+	private final IdStrategy idStrategy;
+
+	private final ExecutorService executor;
+
+	/** the maximum number of documents sent to a shard in one insertMany */
+	private int batchSize = 1000;
+
+	/**
+	 * Creates a writer that reads the chunk layout of the client's main collection from the config database. If the collection is not sharded, documents are written in one
+	 * group.
+	 *
+	 * @param client
+	 *            the client to write with (connected to mongos)
+	 * @param idStrategy
+	 *            the strategy to create ids of new documents with
+	 * @param parallelism
+	 *            the maximum number of per-shard batches written concurrently
+	 */
+	public ShardAwareWriter(DatabaseClient<T> client, IdStrategy idStrategy, int parallelism) {
+		this(client, ShardLayout.load(client.getClient().getDatabase("config"), client.getMainCollection().getNamespace().getFullName()), idStrategy, parallelism);
+	}
+
+	/**
+	 * Creates a writer that routes by the provided chunk layout.
+	 *
+	 * @param client
+	 *            the client to write with
+	 * @param layout
+	 *            the chunk layout of the client's main collection, null to write all documents in one group
+	 * @param idStrategy
+	 *            the strategy to create ids of new documents with
+	 * @param parallelism
+	 *            the maximum number of per-shard batches written concurrently
+	 */
+	public ShardAwareWriter(DatabaseClient<T> client, ShardLayout layout, IdStrategy idStrategy, int parallelism) {
+		this.client = client;
+		this.layout = layout;
+		this.idStrategy = idStrategy;
+		this.executor = Executors.newFixedThreadPool(parallelism);
+	}
+
+	/**
+	 * Sets the maximum number of documents sent to a shard in one insertMany.
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Stores all data objects in the list provided as a parameter, grouped by target shard. Sets the unique MongoDb id of each stored data object. Documents are written
+	 * unordered: if storing fails, every data object the server acknowledged still gets its id and is marked clean, so storing the others again does not duplicate it.
+	 *
+	 * @param dataList
+	 *            the data objects to store in the database
+	 * @return true if the operation was successful, false if not
+	 */
+	public boolean storeAll(List<T> dataList) {
+
+		if (dataList == null || dataList.isEmpty()) {
+			return false;
+		}
+
+		List<Document> docs = new ArrayList<>();
+
+		for (T data : dataList) {
+
+			Document doc = client.dataToDoc(data);
+
+			// the id is part of the shard key in most layouts, so it has to exist before routing
+			doc.put("_id", data.getObjectId() == null ? idStrategy.next() : data.getObjectId());
+			docs.add(doc);
+		}
+
+		Map<String, List<Integer>> groups = groupByShard(docs);
+		List<Future<Boolean>> results = new ArrayList<>();
+
+		// the indexes of the documents the server acknowledged, also of groups that failed in a later batch
+		Queue<Integer> written = new ConcurrentLinkedQueue<>();
+
+		for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+			results.add(executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+
+					List<Integer> indexes = group.getValue();
+
+					for (int from = 0; from < indexes.size(); from += batchSize) {
+
+						List<Integer> batchIndexes = indexes.subList(from, Math.min(from + batchSize, indexes.size()));
+						List<Document> batch = new ArrayList<>();
+						for (int i : batchIndexes) {
+							batch.add(docs.get(i));
+						}
+
+						try {
+							insert(group.getKey(), batch);
+						} catch (MongoBulkWriteException e) {
+							// the insert is unordered, all documents without an error were written
+							Set<Integer> failed = new HashSet<>();
+							for (BulkWriteError error : e.getWriteErrors()) {
+								failed.add(error.getIndex());
+							}
+							for (int i = 0; i < batchIndexes.size(); i++) {
+								if (!failed.contains(i))
+									written.add(batchIndexes.get(i));
+							}
+							throw e;
+						}
+
+						written.addAll(batchIndexes);
+					}
+
+					return true;
+				}
+			}));
+		}
+
+		boolean success = true;
+
+		for (Future<Boolean> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				success = false;
+			} catch (ExecutionException e) {
+				success = false;
+			}
+		}
+
+		// set the unique ids to the data objects that were written, so storing the failed ones again does not insert these twice
+		for (int i : written) {
+			dataList.get(i).setObjectId(docs.get(i).getObjectId("_id"));
+			dataList.get(i).markClean();
+		}
+
+		return success;
+	}
+
+	/**
+	 * Inserts one batch of documents owned by the provided shard, called concurrently for different shards.
+	 *
+	 * @param shard
+	 *            the name of the shard owning the documents, "" if mongos routes them
+	 * @param batch
+	 *            the documents, sorted by shard key
+	 */
+	protected void insert(String shard, List<Document> batch) {
+		client.getMainCollection().insertMany(batch, new InsertManyOptions().ordered(false));
+	}
+
+	/**
+	 * Groups the indexes of the provided documents by target shard, each group sorted by shard key. Documents that can not be routed locally are grouped under "" and routed by
+	 * mongos.
+	 *
+	 * @param docs
+	 *            the documents to group
+	 * @return the document indexes per shard name
+	 */
+	public Map<String, List<Integer>> groupByShard(List<Document> docs) {
+
+		Map<String, List<Integer>> groups = new LinkedHashMap<>();
+
+		if (layout == null || layout.isHashed()) {
+
+			List<Integer> all = new ArrayList<>();
+			for (int i = 0; i < docs.size(); i++) {
+				all.add(i);
+			}
+
+			groups.put(UNROUTED, all);
+			return groups;
+		}
+
+		List<Document> keys = new ArrayList<>();
+
+		for (int i = 0; i < docs.size(); i++) {
+
+			keys.add(layout.keyOf(docs.get(i)));
+
+			String shard = layout.shardFor(docs.get(i));
+			String group = shard == null ? UNROUTED : shard;
+
+			if (!groups.containsKey(group))
+				groups.put(group, new ArrayList<Integer>());
+
+			groups.get(group).add(i);
+		}
+
+		for (List<Integer> group : groups.values()) {
+			group.sort(new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return layout.compareKeys(keys.get(i1), keys.get(i2));
+				}
+			});
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Shuts down the threads used for concurrent writes.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
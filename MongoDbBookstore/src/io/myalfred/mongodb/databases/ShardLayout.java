@@ -0,0 +1,388 @@
+package io.myalfred.mongodb.databases;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * The chunk ranges of a sharded collection: which shard owns which range of shard key values. Either read from the config metadata of a sharded cluster via
+ * {@link #load(MongoDatabase, String)} or built locally (e.g. in tests) via {@link #ShardLayout(Document)} and {@link #addChunk(Document, Document, String)}.
+ */
+public class ShardLayout {
+
+	/** the shard key pattern, e.g. { "_id": 1 } */
+	private final Document shardKey;
+
+	/** the chunks sorted by their lower bound */
+	private final List<Chunk> chunks = new ArrayList<>();
+
+	/** true if a chunk bound has a type {@link #compareValues(Object, Object)} can not order, documents are not routed locally then */
+	private boolean unroutable = false;
+
+	/**
+	 * Creates an empty layout for the provided shard key pattern.
+	 *
+	 * @param shardKey
+	 *            the shard key pattern, e.g. { "_id": 1 }
+	 */
+	public ShardLayout(Document shardKey) {
+		this.shardKey = shardKey;
+	}
+
+	/**
+	 * Reads the shard key and chunk ranges of the provided namespace from the config database of a sharded cluster (connected via mongos). Returns null if the collection is not
+	 * sharded.
+	 *
+	 * @param configDatabase
+	 *            the "config" database
+	 * @param namespace
+	 *            the namespace of the collection ("database.collection")
+	 * @return the layout of the collection, or null if it is not sharded
+	 */
+	public static ShardLayout load(MongoDatabase configDatabase, String namespace) {
+
+		Document collection = configDatabase.getCollection("collections").find(new Document("_id", namespace)).first();
+
+		if (collection == null || Boolean.TRUE.equals(collection.getBoolean("dropped")))
+			return null;
+
+		ShardLayout layout = new ShardLayout((Document) collection.get("key"));
+
+		// chunks reference their collection by namespace before MongoDb 5.0 and by uuid since
+		List<Document> ref = new ArrayList<>();
+		ref.add(new Document("ns", namespace));
+		if (collection.get("uuid") != null)
+			ref.add(new Document("uuid", collection.get("uuid")));
+
+		for (Document chunk : configDatabase.getCollection("chunks").find(new Document("$or", ref))) {
+			layout.addChunk((Document) chunk.get("min"), (Document) chunk.get("max"), chunk.getString("shard"));
+		}
+
+		return layout;
+	}
+
+	/**
+	 * Adds the chunk [min, max) owned by the provided shard.
+	 *
+	 * @param min
+	 *            the inclusive lower bound (a document in shard key pattern form, may contain MinKey)
+	 * @param max
+	 *            the exclusive upper bound (a document in shard key pattern form, may contain MaxKey)
+	 * @param shard
+	 *            the name of the shard owning the chunk
+	 * @return this layout
+	 */
+	public ShardLayout addChunk(Document min, Document max, String shard) {
+
+		Chunk chunk = new Chunk(min, max, shard);
+
+		if (!isSupported(min) || !isSupported(max))
+			unroutable = true;
+
+		int index = Collections.binarySearch(chunks, chunk, new Comparator<Chunk>() {
+
+			@Override
+			public int compare(Chunk c1, Chunk c2) {
+				return compareKeys(c1.min, c2.min);
+			}
+		});
+
+		chunks.add(index < 0 ? -index - 1 : index, chunk);
+		return this;
+	}
+
+	/**
+	 * Returns the shard key pattern.
+	 *
+	 * @return
+	 */
+	public Document getShardKey() {
+		return shardKey;
+	}
+
+	/**
+	 * Returns true if the collection uses a hashed shard key. Documents can not be routed locally then, as the chunk ranges refer to hash values.
+	 *
+	 * @return
+	 */
+	public boolean isHashed() {
+		return shardKey.containsValue("hashed");
+	}
+
+	/**
+	 * Returns the names of all shards that own at least one chunk.
+	 *
+	 * @return
+	 */
+	public Set<String> getShards() {
+
+		Set<String> shards = new LinkedHashSet<>();
+		for (Chunk chunk : chunks) {
+			shards.add(chunk.shard);
+		}
+		return shards;
+	}
+
+	/**
+	 * Extracts the shard key of the provided document, in shard key pattern form.
+	 *
+	 * @param document
+	 *            the document to extract the key from
+	 * @return the shard key values of the document (missing fields are null)
+	 */
+	public Document keyOf(Document document) {
+
+		Document key = new Document();
+
+		for (String field : shardKey.keySet()) {
+			key.append(field, getPath(document, field));
+		}
+
+		return key;
+	}
+
+	/**
+	 * Returns the name of the shard that owns the chunk the provided document falls into, or null if no chunk covers it (e.g. the layout is incomplete or stale) or its shard key
+	 * has a value type that can not be ordered locally. Documents without a shard are left to mongos.
+	 *
+	 * @param document
+	 *            the document to route
+	 * @return the target shard, or null
+	 */
+	public String shardFor(Document document) {
+
+		Document key = keyOf(document);
+
+		if (unroutable || !isSupported(key))
+			return null;
+
+		// binary search the last chunk with min <= key
+		int low = 0;
+		int high = chunks.size() - 1;
+		int found = -1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+
+			if (compareKeys(chunks.get(mid).min, key) <= 0) {
+				found = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (found < 0 || compareKeys(key, chunks.get(found).max) >= 0)
+			return null;
+
+		return chunks.get(found).shard;
+	}
+
+	/**
+	 * Compares two documents in shard key pattern form field by field, in the order of the shard key pattern.
+	 *
+	 * @param key1
+	 * @param key2
+	 * @return a negative number, zero or a positive number if key1 is less, equal or greater than key2
+	 */
+	public int compareKeys(Document key1, Document key2) {
+
+		for (String field : shardKey.keySet()) {
+
+			int result = compareValues(key1.get(field), key2.get(field));
+
+			if (result != 0)
+				return result;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Compares two BSON values in MongoDb sort order (first by type, then by value). Supports the types usable in shard keys of this sample, values of other types are considered
+	 * equal to each other and less than all supported values.
+	 *
+	 * @param value1
+	 * @param value2
+	 * @return a negative number, zero or a positive number if value1 is less, equal or greater than value2
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareValues(Object value1, Object value2) {
+
+		int rank1 = typeRank(value1);
+		int rank2 = typeRank(value2);
+
+		if (rank1 != rank2)
+			return Integer.compare(rank1, rank2);
+
+		if (rank1 == UNSUPPORTED)
+			return 0;
+
+		if (value1 instanceof Number && value2 instanceof Number)
+			return compareNumbers((Number) value1, (Number) value2);
+
+		if (value1 instanceof String && value2 instanceof String)
+			return compareStrings((String) value1, (String) value2);
+
+		if (value1 instanceof Comparable)
+			return ((Comparable) value1).compareTo(value2);
+
+		return 0; // null, MinKey, MaxKey
+	}
+
+	/**
+	 * Compares two numbers by value. Integral numbers are compared as longs, as doubles can not represent all longs above 2^53.
+	 */
+	private static int compareNumbers(Number number1, Number number2) {
+
+		if (isIntegral(number1) && isIntegral(number2))
+			return Long.compare(number1.longValue(), number2.longValue());
+
+		int result = Double.compare(number1.doubleValue(), number2.doubleValue());
+
+		// equal as doubles, but e.g. a long and the double nearest to it may still differ
+		if (result == 0 && isFinite(number1) && isFinite(number2))
+			return toBigDecimal(number1).compareTo(toBigDecimal(number2));
+
+		return result;
+	}
+
+	/**
+	 * Compares two strings by their UTF-8 bytes, like MongoDb (without collation). String.compareTo compares UTF-16 units, which orders characters above U+FFFF (surrogate
+	 * pairs) before U+E000 to U+FFFF.
+	 */
+	private static int compareStrings(String string1, String string2) {
+
+		byte[] bytes1 = string1.getBytes(StandardCharsets.UTF_8);
+		byte[] bytes2 = string2.getBytes(StandardCharsets.UTF_8);
+
+		for (int i = 0; i < Math.min(bytes1.length, bytes2.length); i++) {
+
+			int result = Integer.compare(bytes1[i] & 0xFF, bytes2[i] & 0xFF);
+
+			if (result != 0)
+				return result;
+		}
+
+		return Integer.compare(bytes1.length, bytes2.length);
+	}
+
+	private static boolean isIntegral(Number number) {
+		return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+	}
+
+	private static boolean isFinite(Number number) {
+
+		if (number instanceof Decimal128)
+			return ((Decimal128) number).isFinite();
+
+		return !Double.isNaN(number.doubleValue()) && !Double.isInfinite(number.doubleValue());
+	}
+
+	private static BigDecimal toBigDecimal(Number number) {
+
+		if (isIntegral(number))
+			return BigDecimal.valueOf(number.longValue());
+
+		if (number instanceof Decimal128) {
+			try {
+				return ((Decimal128) number).bigDecimalValue();
+			} catch (ArithmeticException e) {
+				return BigDecimal.ZERO; // negative zero has no BigDecimal value
+			}
+		}
+
+		return new BigDecimal(number.doubleValue());
+	}
+
+	/**
+	 * Returns true if all values of the provided document in shard key pattern form have a type that can be ordered locally.
+	 */
+	private boolean isSupported(Document key) {
+
+		for (String field : shardKey.keySet()) {
+			if (typeRank(key.get(field)) == UNSUPPORTED)
+				return false;
+		}
+
+		return true;
+	}
+
+	/** the rank of value types {@link #compareValues(Object, Object)} can not order */
+	private static final int UNSUPPORTED = -1;
+
+	/**
+	 * Returns the rank of the type of the provided value in the MongoDb comparison order, or {@link #UNSUPPORTED}.
+	 */
+	private static int typeRank(Object value) {
+
+		if (value instanceof MinKey)
+			return 0;
+		if (value == null)
+			return 1;
+		if (value instanceof Number)
+			return 2;
+		if (value instanceof String)
+			return 3;
+		if (value instanceof ObjectId)
+			return 7;
+		if (value instanceof Boolean)
+			return 8;
+		if (value instanceof Date)
+			return 9;
+		if (value instanceof BsonTimestamp)
+			return 10;
+		if (value instanceof MaxKey)
+			return 12;
+
+		return UNSUPPORTED;
+	}
+
+	/**
+	 * Returns the value at the provided (possibly dotted) path of the document.
+	 */
+	private static Object getPath(Document document, String path) {
+
+		Object value = document;
+
+		for (String part : path.split("\\.")) {
+			if (!(value instanceof Map))
+				return null;
+			value = ((Map<?, ?>) value).get(part);
+		}
+
+		return value;
+	}
+
+	/**
+	 * A range [min, max) of shard key values owned by one shard.
+	 */
+	private static class Chunk {
+
+		private final Document min;
+		private final Document max;
+		private final String shard;
+
+		private Chunk(Document min, Document max, String shard) {
+			this.min = min;
+			this.max = max;
+			this.shard = shard;
+		}
+	}
+}
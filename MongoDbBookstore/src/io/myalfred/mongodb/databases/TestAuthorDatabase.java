@@ -4,11 +4,14 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 
 import com.mongodb.client.MongoCollection;
 
+import io.myalfred.mongodb.data.IdentityMap;
 import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.dbauth.DbAuth;
 import io.myalfred.mongodb.dbauth.DefaultAuth;
 
 
@@ -17,6 +20,10 @@ public class TestAuthorDatabase extends DatabaseClient<TestAuthor> {
 	public TestAuthorDatabase() {
 		super(new DefaultAuth()); // test database always connects to staging remote (not localhost)
 	}
+
+	public TestAuthorDatabase(DbAuth auth) {
+		super(auth);
+	}
 	
 	@Override
 	protected List<Bson> getAggregationPipeline(Document match) {
@@ -35,11 +42,26 @@ public class TestAuthorDatabase extends DatabaseClient<TestAuthor> {
 		return data.toDocument();
 	}
 
+	@Override
+	protected Document dataToUpdate(TestAuthor data) {
+		return data.toUpdateDocument();
+	}
+
 	@Override
 	protected TestAuthor dataFromDoc(Document document) {
 		return new TestAuthor(document);
 	}
 
+	@Override
+	protected TestAuthor dataFromDoc(Document document, IdentityMap identities) {
+		return TestAuthor.resolve(document, identities);
+	}
+
+	@Override
+	protected TestAuthor dataFromRaw(RawBsonDocument document) {
+		return new TestAuthor(document);
+	}
+
 	public void removeAll() {
 
 		MongoCollection<Document> collection = getCollection(Collections.TEST_DATA_AUTHOR);
@@ -4,20 +4,30 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoCollection;
 
+import io.myalfred.mongodb.data.IdentityMap;
 import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.dbauth.DbAuth;
 import io.myalfred.mongodb.dbauth.DefaultAuth;
 
 
 public class TestBookDatabase extends DatabaseClient<TestBook> {
 
+	private volatile AuthorSearchIndex authorIndex;
+
 	public TestBookDatabase() {
 		super(new DefaultAuth()); // test database always connects to staging remote (not localhost)
 	}
 
+	public TestBookDatabase(DbAuth auth) {
+		super(auth);
+	}
+
 	@Override
 	protected MongoCollection<Document> getMainCollection() {
 		return getCollection(Collections.TEST_DATA_BOOK);
@@ -32,18 +42,71 @@ public class TestBookDatabase extends DatabaseClient<TestBook> {
 		return pipe;
 	}
 
+	@Override
+	protected boolean isJoinedField(String field) {
+		return "author".equals(field);
+	}
+
 	@Override
 	protected Document dataToDoc(TestBook data) {
 		return data.toDocument();
 	}
 
+	@Override
+	protected Document dataToUpdate(TestBook data) {
+		return data.toUpdateDocument();
+	}
+
 	@Override
 	protected TestBook dataFromDoc(Document document) {
 		return new TestBook(document);
 	}
 
+	@Override
+	protected TestBook dataFromDoc(Document document, IdentityMap identities) {
+		return TestBook.resolve(document, identities);
+	}
+
+	@Override
+	protected TestBook dataFromRaw(RawBsonDocument document) {
+		return new TestBook(document);
+	}
+
+	/**
+	 * Returns a book whose author has the provided last name, or null. With an author index (see {@link #setAuthorIndex(AuthorSearchIndex)}) the book is looked up in memory and
+	 * loaded by id, instead of joining every book with its author on the server.
+	 * 
+	 * @param authorLastName
+	 * @return
+	 */
 	public TestBook findLastName(String authorLastName) {
-		return aggregationQueryFirst(new Document("author.lastName", authorLastName));
+
+		AuthorSearchIndex index = authorIndex;
+
+		if (index != null) {
+			ObjectId id = index.findFirstBookByLastName(authorLastName);
+			return id == null ? null : load(id);
+		}
+
+		return hedgedQueryFirst(new Document("author.lastName", authorLastName));
+	}
+
+	/**
+	 * Sets the author index {@link #findLastName(String)} uses, null to query the database.
+	 * 
+	 * @param authorIndex
+	 */
+	public void setAuthorIndex(AuthorSearchIndex authorIndex) {
+		this.authorIndex = authorIndex;
+	}
+
+	/**
+	 * Returns the author index {@link #findLastName(String)} uses, or null.
+	 * 
+	 * @return
+	 */
+	public AuthorSearchIndex getAuthorIndex() {
+		return authorIndex;
 	}
 
 	public void removeAll() {
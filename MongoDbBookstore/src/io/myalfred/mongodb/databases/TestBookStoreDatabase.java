@@ -1,22 +1,35 @@
 package io.myalfred.mongodb.databases;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 
 import com.mongodb.client.MongoCollection;
 
+import io.myalfred.mongodb.data.IdentityMap;
 import io.myalfred.mongodb.data.TestBookStore;
+import io.myalfred.mongodb.dbauth.DbAuth;
 import io.myalfred.mongodb.dbauth.DefaultAuth;
 
 public class TestBookStoreDatabase extends DatabaseClient<TestBookStore> {
 
+	/** the fields of a bookstore document that the aggregation pipeline keeps unchanged */
+	private static final Set<String> STORE_FIELDS = new HashSet<>(Arrays.asList("_id", "name"));
+
 	public TestBookStoreDatabase() {
 		super(new DefaultAuth()); // test database always connects to staging remote (not localhost)
 	}
 
+	public TestBookStoreDatabase(DbAuth auth) {
+		super(auth);
+	}
+
 	@Override
 	protected MongoCollection<Document> getMainCollection() {
 		return getCollection(Collections.TEST_DATA_BOOKSTORE);
@@ -25,6 +38,13 @@ public class TestBookStoreDatabase extends DatabaseClient<TestBookStore> {
 	@Override
 	protected List<Bson> getAggregationPipeline(Document match) {
 		List<Bson> pipe = new ArrayList<>();
+
+		// a match on the fields of the bookstore itself selects the same bookstores before the joins, so only those are joined instead of all
+		boolean early = STORE_FIELDS.containsAll(match.keySet());
+
+		if (early)
+			pipe.add(new Document("$match", match));
+
 		pipe.add(new Document("$unwind", "$books"));
 		pipe.add(new Document("$lookup", new Document("from", Collections.TEST_DATA_BOOK).append("localField", "books").append("foreignField", "_id").append("as", "books")));
 		pipe.add(new Document("$unwind", "$books"));
@@ -32,21 +52,44 @@ public class TestBookStoreDatabase extends DatabaseClient<TestBookStore> {
 				new Document("from", Collections.TEST_DATA_AUTHOR).append("localField", "books.author").append("foreignField", "_id").append("as", "authors")));
 		pipe.add(new Document("$unwind", "$authors"));
 		pipe.add(new Document("$group", new Document("_id", "$_id").append("name", new Document("$first", "$name")).append("books",
-				new Document("$push", new Document("author", "$authors").append("prices", "$books.prices")))));
-		pipe.add(new Document("$match", match));
+				new Document("$push", new Document("_id", "$books._id").append("author", "$authors").append("prices", "$books.prices")))));
+		if (!early)
+			pipe.add(new Document("$match", match));
+
 		return pipe;
 	}
 
+	@Override
+	protected boolean isJoinedField(String field) {
+		// everything but the fields of the bookstore itself is rebuilt by the $group
+		return !STORE_FIELDS.contains(field);
+	}
+
 	@Override
 	protected Document dataToDoc(TestBookStore data) {
 		return data.toDocument();
 	}
 
+	@Override
+	protected Document dataToUpdate(TestBookStore data) {
+		return data.toUpdateDocument();
+	}
+
 	@Override
 	protected TestBookStore dataFromDoc(Document document) {
 		return new TestBookStore(document);
 	}
 
+	@Override
+	protected TestBookStore dataFromDoc(Document document, IdentityMap identities) {
+		return TestBookStore.resolve(document, identities);
+	}
+
+	@Override
+	protected TestBookStore dataFromRaw(RawBsonDocument document) {
+		return new TestBookStore(document);
+	}
+
 	public void removeAll() {
 
 		MongoCollection<Document> collection = getCollection(Collections.TEST_DATA_BOOKSTORE);
@@ -0,0 +1,71 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the operations of a {@link DatabaseClient} that ran with a {@link Deadline}.
+ */
+public class TimeoutMetrics {
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong exceeded = new AtomicLong();
+	private final AtomicLong serverTimeouts = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+
+	void onOperation() {
+		operations.incrementAndGet();
+	}
+
+	void onExceeded() {
+		exceeded.incrementAndGet();
+	}
+
+	void onServerTimeout() {
+		serverTimeouts.incrementAndGet();
+	}
+
+	void onCancelled() {
+		cancelled.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of operations that ran with a deadline.
+	 *
+	 * @return
+	 */
+	public long getOperations() {
+		return operations.get();
+	}
+
+	/**
+	 * Returns the number of operations the client stopped because their deadline expired.
+	 *
+	 * @return
+	 */
+	public long getExceeded() {
+		return exceeded.get();
+	}
+
+	/**
+	 * Returns the number of operations the server aborted because they exceeded their maxTimeMS.
+	 *
+	 * @return
+	 */
+	public long getServerTimeouts() {
+		return serverTimeouts.get();
+	}
+
+	/**
+	 * Returns the number of operations stopped because their deadline was cancelled.
+	 *
+	 * @return
+	 */
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	@Override
+	public String toString() {
+		return "operations=" + getOperations() + ", exceeded=" + getExceeded() + ", serverTimeouts=" + getServerTimeouts() + ", cancelled=" + getCancelled();
+	}
+}
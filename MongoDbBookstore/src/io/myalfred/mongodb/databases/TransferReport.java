@@ -0,0 +1,70 @@
+package io.myalfred.mongodb.databases;
+
+/**
+ * Result of an export or import of a {@link CollectionTransfer}.
+ */
+public class TransferReport {
+
+	private final long documents;
+
+	private final long bytes;
+
+	private final long elapsedMillis;
+
+	TransferReport(long documents, long bytes, long elapsedMillis) {
+		this.documents = documents;
+		this.bytes = bytes;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Returns the number of transferred documents.
+	 *
+	 * @return
+	 */
+	public long getDocuments() {
+		return documents;
+	}
+
+	/**
+	 * Returns the number of transferred bytes of BSON (uncompressed).
+	 *
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns how long the transfer took.
+	 *
+	 * @return
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns the throughput in documents per second.
+	 *
+	 * @return
+	 */
+	public double getDocumentsPerSecond() {
+		return documents * 1000.0 / Math.max(1, elapsedMillis);
+	}
+
+	/**
+	 * Returns the throughput in megabytes (of uncompressed BSON) per second.
+	 *
+	 * @return
+	 */
+	public double getMegabytesPerSecond() {
+		return bytes / (1024.0 * 1024.0) * 1000.0 / Math.max(1, elapsedMillis);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d documents, %.1f MB in %d ms (%.0f docs/s, %.1f MB/s)", documents, bytes / (1024.0 * 1024.0), elapsedMillis, getDocumentsPerSecond(),
+				getMegabytesPerSecond());
+	}
+}
@@ -0,0 +1,120 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+
+/**
+ * Classifies exceptions of the MongoDb driver into transient errors (network errors, failover, write conflicts) that are worth retrying and permanent errors.
+ */
+public abstract class TransientErrors {
+
+	/** the error code of a duplicate key error */
+	public static final int DUPLICATE_KEY = 11000;
+
+	/** server error codes that are caused by failover, shutdown, network problems or write conflicts */
+	private static final Set<Integer> TRANSIENT_CODES = new HashSet<>(Arrays.asList( //
+			6, // HostUnreachable
+			7, // HostNotFound
+			89, // NetworkTimeout
+			91, // ShutdownInProgress
+			112, // WriteConflict
+			189, // PrimarySteppedDown
+			262, // ExceededTimeLimit (server internal, not maxTimeMS)
+			9001, // SocketException
+			10107, // NotMaster
+			11600, // InterruptedAtShutdown
+			11602, // InterruptedDueToReplStateChange
+			13435, // NotMasterNoSlaveOk
+			13436 // NotMasterOrSecondary
+	));
+
+	/**
+	 * Returns true if the provided exception is transient, which means the same operation may succeed if it is retried a little later.
+	 *
+	 * @param e
+	 *            the exception to classify
+	 * @return true if the exception is transient
+	 */
+	public static boolean isTransient(Throwable e) {
+
+		if (e instanceof MongoSocketException || e instanceof MongoTimeoutException || e instanceof MongoNotPrimaryException
+				|| e instanceof MongoNodeIsRecoveringException)
+			return true;
+
+		if (!(e instanceof MongoException))
+			return false;
+
+		MongoException mongoException = (MongoException) e;
+
+		if (mongoException.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL) || mongoException.hasErrorLabel("RetryableWriteError"))
+			return true;
+
+		if (e instanceof MongoBulkWriteException) {
+
+			MongoBulkWriteException bulkException = (MongoBulkWriteException) e;
+
+			if (bulkException.getWriteConcernError() != null && TRANSIENT_CODES.contains(bulkException.getWriteConcernError().getCode()))
+				return true;
+
+			for (BulkWriteError error : bulkException.getWriteErrors()) {
+				if (!isTransient(error))
+					return false;
+			}
+
+			return !bulkException.getWriteErrors().isEmpty();
+		}
+
+		return TRANSIENT_CODES.contains(mongoException.getCode());
+	}
+
+	/**
+	 * Returns true if the provided error of a single write of a bulk write is transient.
+	 *
+	 * @param error
+	 *            the write error to classify
+	 * @return true if the error is transient
+	 */
+	public static boolean isTransient(BulkWriteError error) {
+		return TRANSIENT_CODES.contains(error.getCode());
+	}
+
+	/**
+	 * Returns true if the provided exception only consists of duplicate key errors on "_id". On a retried insert this means the previous attempt succeeded after all.
+	 *
+	 * @param e
+	 *            the exception to check
+	 * @return true if the exception is a duplicate "_id" error
+	 */
+	public static boolean isDuplicateId(Throwable e) {
+
+		if (e instanceof MongoBulkWriteException) {
+
+			MongoBulkWriteException bulkException = (MongoBulkWriteException) e;
+
+			for (BulkWriteError error : bulkException.getWriteErrors()) {
+				if (error.getCode() != DUPLICATE_KEY || !isIdIndex(error.getMessage()))
+					return false;
+			}
+
+			return bulkException.getWriteConcernError() == null && !bulkException.getWriteErrors().isEmpty();
+		}
+
+		return e instanceof MongoException && ((MongoException) e).getCode() == DUPLICATE_KEY && isIdIndex(e.getMessage());
+	}
+
+	/**
+	 * Returns true if the message of a duplicate key error refers to the "_id" index.
+	 */
+	private static boolean isIdIndex(String message) {
+		return message != null && message.contains("index: _id_ ");
+	}
+}
@@ -0,0 +1,75 @@
+package io.myalfred.mongodb.databases;
+
+/**
+ * Result of {@link DatabaseClient#warmUp(org.bson.Document)}.
+ */
+public class WarmUpReport {
+
+	private final int connections;
+
+	private final long connectMillis;
+
+	private final int preloaded;
+
+	private final long preloadMillis;
+
+	private final long elapsedMillis;
+
+	WarmUpReport(int connections, long connectMillis, int preloaded, long preloadMillis, long elapsedMillis) {
+		this.connections = connections;
+		this.connectMillis = connectMillis;
+		this.preloaded = preloaded;
+		this.preloadMillis = preloadMillis;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Returns the number of connections that were opened and authenticated concurrently.
+	 *
+	 * @return
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Returns how long opening the connections took.
+	 *
+	 * @return
+	 */
+	public long getConnectMillis() {
+		return connectMillis;
+	}
+
+	/**
+	 * Returns the number of preloaded objects.
+	 *
+	 * @return
+	 */
+	public int getPreloaded() {
+		return preloaded;
+	}
+
+	/**
+	 * Returns how long preloading took.
+	 *
+	 * @return
+	 */
+	public long getPreloadMillis() {
+		return preloadMillis;
+	}
+
+	/**
+	 * Returns how long the whole warm-up took.
+	 *
+	 * @return
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "connections=" + connections + " (" + connectMillis + " ms), preloaded=" + preloaded + " (" + preloadMillis + " ms), elapsed=" + elapsedMillis + " ms";
+	}
+}
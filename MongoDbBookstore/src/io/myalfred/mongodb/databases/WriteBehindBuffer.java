@@ -0,0 +1,709 @@
+package io.myalfred.mongodb.databases;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Buffers field updates of a {@link DatabaseClient} in memory and writes them as one unordered bulkWrite once enough objects have pending updates or the flush interval has
+ * passed. Multiple updates of the same field of the same object are merged, so only the latest value is written. The number of objects with pending updates is bounded: when the
+ * buffer is full, callers block until a flush made room (backpressure).
+ * <p>
+ * Reads of the client see the buffered updates without a flush: they are applied to the loaded documents ({@link #applyPending(ObjectId, Document)}). Only reads that filter on
+ * a field with a pending update, or that can not apply it because the aggregation pipeline replaces the field, flush first ({@link #needsFlush(ObjectId, Set)}). The
+ * {@link DatabaseClient.WriteListener}s of the client are told about an update once a flush wrote it.
+ * <p>
+ * Updates that fail with a transient error are put back and written by the next flush. Updates the server rejects (e.g. because of a validation error) are dropped, counted and
+ * reported to the {@link DropListener}, so one bad update does not block the buffer and the reads of the client.
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+
+	/**
+	 * Receives the buffered updates that were dropped because the server rejected them. The {@link DatabaseClient.WriteListener}s of the client are not told about these
+	 * updates.
+	 */
+	public interface DropListener {
+
+		/**
+		 * Called on the flushing thread after the update of the object with the provided id was dropped.
+		 *
+		 * @param id
+		 *            the id of the object
+		 * @param fields
+		 *            the fields the dropped update would have set
+		 * @param code
+		 *            the error code of the server
+		 * @param message
+		 *            the error message of the server
+		 */
+		void onDropped(ObjectId id, Document fields, int code, String message);
+	}
+
+	/** marks a dotted path that can not be resolved within a pending value, see {@link #withPath(Object, String, Object)} */
+	private static final Object UNRESOLVED = new Object();
+
+	private final DatabaseClient<?> client;
+
+	/** the maximum number of objects with pending updates */
+	private final int capacity;
+
+	/** the number of objects with pending updates that triggers a flush */
+	private final int flushSize;
+
+	/** how long a caller waits for room in a full buffer before the update is rejected */
+	private final long offerTimeoutMillis;
+
+	/** the pending $set fields per object id, in order of the first pending update */
+	private final LinkedHashMap<ObjectId, Document> pending = new LinkedHashMap<>();
+
+	/** the updates the running flush writes, they still count as pending until the write completed */
+	private Map<ObjectId, Document> inFlight = Collections.emptyMap();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notFull = lock.newCondition();
+
+	/** serializes flushes, so updates of the same field are written in order */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private final ScheduledExecutorService flusher;
+
+	private final Thread shutdownHook;
+
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedObjects = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+	private final AtomicLong droppedObjects = new AtomicLong();
+
+	private volatile DropListener dropListener;
+
+	/**
+	 * Creates a buffer that flushes periodically and when flushSize objects have pending updates. The buffer is also flushed when the JVM shuts down.
+	 *
+	 * @param client
+	 *            the client whose main collection the updates are written to
+	 * @param capacity
+	 *            the maximum number of objects with pending updates
+	 * @param flushSize
+	 *            the number of objects with pending updates that triggers a flush
+	 * @param flushIntervalMillis
+	 *            the maximum time an update stays in the buffer (roughly)
+	 * @param offerTimeoutMillis
+	 *            how long a caller waits for room in a full buffer
+	 */
+	public WriteBehindBuffer(DatabaseClient<?> client, int capacity, int flushSize, long flushIntervalMillis, long offerTimeoutMillis) {
+		this.client = client;
+		this.capacity = capacity;
+		this.flushSize = Math.min(flushSize, capacity);
+		this.offerTimeoutMillis = offerTimeoutMillis;
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "write-behind-" + client.getMainCollection().getNamespace().getCollectionName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		flusher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+		this.shutdownHook = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Buffers the update of the provided field. Blocks while the buffer is full.
+	 *
+	 * @param id
+	 *            the id of the object to update
+	 * @param fieldName
+	 *            the name of the field to update
+	 * @param value
+	 *            the new value
+	 * @throws RejectedExecutionException
+	 *             if the buffer stayed full for the offer timeout
+	 * @throws MongoException
+	 *             if a pending update of a parent field had to be written first (see {@link #merge(Document, String, Object)}) and that failed
+	 */
+	public void put(ObjectId id, String fieldName, Object value) {
+
+		while (!offer(id, fieldName, value)) {
+			// a parent field is pending with a value the sub-field can not be set in, so it is written first
+			flush();
+		}
+	}
+
+	/**
+	 * Buffers the update, returns false if it conflicts with a pending update of a parent field.
+	 */
+	private boolean offer(ObjectId id, String fieldName, Object value) {
+
+		boolean triggerFlush;
+
+		lock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+
+			while (!pending.containsKey(id) && pending.size() + inFlight.size() >= capacity) {
+
+				if (remaining <= 0)
+					throw new RejectedExecutionException("Write-behind buffer is full (" + capacity + " objects)");
+
+				flusher.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						flushQuietly();
+					}
+				});
+
+				remaining = notFull.awaitNanos(remaining);
+			}
+
+			Document fields = pending.get(id);
+
+			if (fields == null) {
+				fields = new Document();
+				pending.put(id, fields);
+			}
+
+			if (!merge(fields, fieldName, value))
+				return false;
+
+			updates.incrementAndGet();
+
+			triggerFlush = pending.size() == flushSize;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in the write-behind buffer", e);
+		} finally {
+			lock.unlock();
+		}
+
+		if (triggerFlush) {
+			flusher.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					flushQuietly();
+				}
+			});
+		}
+
+		return true;
+	}
+
+	/**
+	 * Merges the update of the provided field into the pending fields of an object. The update supersedes a pending value of the same field and of its sub-fields. If a parent
+	 * field is pending (e.g. "author" when "author.name" is updated, or "prices" when "prices.0" is updated), the value is set within a copy of the parent value, so $set does
+	 * not receive conflicting paths. Returns false if that is not possible, e.g. because the parent is pending as null.
+	 */
+	private boolean merge(Document fields, String fieldName, Object value) {
+
+		if (fields.containsKey(fieldName))
+			coalesced.incrementAndGet();
+
+		Iterator<String> keys = fields.keySet().iterator();
+
+		while (keys.hasNext()) {
+
+			String key = keys.next();
+
+			if (key.startsWith(fieldName + ".")) {
+				keys.remove();
+				coalesced.incrementAndGet();
+
+			} else if (fieldName.startsWith(key + ".")) {
+
+				// no sub-field of fieldName can be pending next to its parent, so nothing was removed yet
+				Object merged = withPath(fields.get(key), fieldName.substring(key.length() + 1), value);
+
+				if (merged == UNRESOLVED)
+					return false;
+
+				fields.put(key, merged);
+				coalesced.incrementAndGet();
+				return true;
+			}
+		}
+
+		fields.put(fieldName, value);
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the provided document or list with the value at the provided dotted path replaced, the way $set would replace it: missing fields are created and lists
+	 * are padded with null up to a missing index. Returns {@link #UNRESOLVED} where $set would fail or the result is not known locally, e.g. below a null or a scalar value.
+	 */
+	private static Object withPath(Object container, String path, Object value) {
+
+		int dot = path.indexOf('.');
+		String head = dot < 0 ? path : path.substring(0, dot);
+
+		if (container instanceof Document) {
+
+			Document copy = new Document((Document) container);
+
+			if (dot < 0) {
+				copy.put(head, value);
+				return copy;
+			}
+
+			Object child = withPath(copy.containsKey(head) ? copy.get(head) : new Document(), path.substring(dot + 1), value);
+
+			if (child == UNRESOLVED)
+				return UNRESOLVED;
+
+			copy.put(head, child);
+			return copy;
+		}
+
+		if (container instanceof List && head.matches("\\d{1,6}")) {
+
+			List<Object> copy = new ArrayList<>((List<?>) container);
+			int index = Integer.parseInt(head);
+			boolean missing = index >= copy.size();
+
+			while (copy.size() <= index) {
+				copy.add(null);
+			}
+
+			if (dot < 0) {
+				copy.set(index, value);
+				return copy;
+			}
+
+			Object child = withPath(missing ? new Document() : copy.get(index), path.substring(dot + 1), value);
+
+			if (child == UNRESOLVED)
+				return UNRESOLVED;
+
+			copy.set(index, child);
+			return copy;
+		}
+
+		return UNRESOLVED;
+	}
+
+	/**
+	 * Returns true if the object with the provided id has pending updates (including updates of a flush that is still running).
+	 *
+	 * @param id
+	 * @return
+	 */
+	public boolean isPending(ObjectId id) {
+
+		lock.lock();
+		try {
+			return pending.containsKey(id) || inFlight.containsKey(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the provided document (a result of the client's aggregation pipeline) with the pending updates of the object with the provided id applied the way $set
+	 * applies them, or the document itself if the object has no pending updates. Updates that can not be applied locally (e.g. a sub-field below a scalar) are skipped, the
+	 * server rejects them as well.
+	 *
+	 * @param id
+	 *            the id of the object
+	 * @param document
+	 *            the document as the server returned it
+	 * @return the document as it will be once the pending updates are written
+	 */
+	public Document applyPending(ObjectId id, Document document) {
+
+		Document writing;
+		Document buffered;
+
+		lock.lock();
+		try {
+			writing = inFlight.get(id);
+			buffered = pending.get(id);
+
+			if (writing == null && buffered == null)
+				return document;
+
+			// merge replaces the values of the buffered documents, it does not modify them
+			writing = writing == null ? null : new Document(writing);
+			buffered = buffered == null ? null : new Document(buffered);
+		} finally {
+			lock.unlock();
+		}
+
+		// the running flush was buffered first
+		return apply(apply(document, writing), buffered);
+	}
+
+	private static Document apply(Document document, Document fields) {
+
+		if (fields == null)
+			return document;
+
+		Document result = document;
+
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+
+			Object applied = withPath(result, field.getKey(), field.getValue());
+
+			if (applied != UNRESOLVED)
+				result = (Document) applied;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns true if a pending update (of the object with the provided id, or of any object if it is null) sets one of the provided top-level fields or a field the aggregation
+	 * pipeline of the client replaces (see {@link DatabaseClient#isJoinedField(String)}). Such updates can not be applied to query results, so they have to be written before
+	 * the read.
+	 *
+	 * @param id
+	 *            the id of the object, null for all objects
+	 * @param fields
+	 *            the top-level fields a query filters on
+	 * @return
+	 */
+	public boolean needsFlush(ObjectId id, Set<String> fields) {
+
+		lock.lock();
+		try {
+			if (id != null)
+				return needsFlush(pending.get(id), fields) || needsFlush(inFlight.get(id), fields);
+
+			for (Document updates : pending.values()) {
+				if (needsFlush(updates, fields))
+					return true;
+			}
+
+			for (Document updates : inFlight.values()) {
+				if (needsFlush(updates, fields))
+					return true;
+			}
+
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean needsFlush(Document updates, Set<String> fields) {
+
+		if (updates == null)
+			return false;
+
+		for (String key : updates.keySet()) {
+
+			int dot = key.indexOf('.');
+			String root = dot < 0 ? key : key.substring(0, dot);
+
+			if (fields.contains(root) || client.isJoinedField(root))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the number of objects with pending updates (including updates of a flush that is still running).
+	 *
+	 * @return
+	 */
+	public int size() {
+
+		lock.lock();
+		try {
+			return pending.size() + inFlight.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all pending updates. Updates that fail with a transient error are put back into the buffer (unless they were superseded in the meantime), if the whole write failed
+	 * that way the exception is thrown. Updates the server rejected are dropped and reported to the {@link DropListener}.
+	 *
+	 * @throws MongoException
+	 *             if the write failed as a whole, e.g. because the server is not reachable
+	 */
+	public void flush() {
+
+		flushLock.lock();
+		try {
+			Map<ObjectId, Document> batch;
+
+			lock.lock();
+			try {
+				if (pending.isEmpty())
+					return;
+
+				batch = new LinkedHashMap<>(pending);
+				pending.clear();
+				inFlight = batch;
+			} finally {
+				lock.unlock();
+			}
+
+			List<ObjectId> ids = new ArrayList<>(batch.keySet());
+			List<WriteModel<Document>> writes = new ArrayList<>();
+
+			for (Map.Entry<ObjectId, Document> entry : batch.entrySet()) {
+				writes.add(new UpdateOneModel<Document>(new Document("_id", entry.getKey()), new Document("$set", entry.getValue())));
+			}
+
+			try {
+				client.getRetryPolicy().execute(true, new RetryPolicy.Operation<Void>() {
+
+					@Override
+					public Void run(int attempt) {
+						write(writes);
+						return null;
+					}
+				});
+
+				flushes.incrementAndGet();
+				flushedObjects.addAndGet(batch.size());
+				requeue(null);
+
+				for (Map.Entry<ObjectId, Document> entry : batch.entrySet()) {
+					client.fireFlushed(entry.getKey(), entry.getValue());
+				}
+
+			} catch (MongoBulkWriteException e) {
+
+				// the write is unordered, all writes without an error were applied
+				Map<ObjectId, Document> retry = new LinkedHashMap<>();
+				Map<ObjectId, Document> written = new LinkedHashMap<>(batch);
+
+				for (BulkWriteError error : e.getWriteErrors()) {
+
+					ObjectId id = ids.get(error.getIndex());
+					written.remove(id);
+
+					if (TransientErrors.isTransient(error))
+						retry.put(id, batch.get(id));
+					else
+						drop(id, batch.get(id), error.getCode(), error.getMessage());
+				}
+
+				failedFlushes.incrementAndGet();
+				flushedObjects.addAndGet(written.size());
+				requeue(retry);
+
+				for (Map.Entry<ObjectId, Document> entry : written.entrySet()) {
+					client.fireFlushed(entry.getKey(), entry.getValue());
+				}
+
+			} catch (RuntimeException e) {
+
+				failedFlushes.incrementAndGet();
+
+				if (TransientErrors.isTransient(e) || e instanceof DeadlineExceededException) {
+					requeue(batch);
+				} else {
+					requeue(null);
+
+					int code = e instanceof MongoException ? ((MongoException) e).getCode() : -1;
+					for (Map.Entry<ObjectId, Document> entry : batch.entrySet()) {
+						drop(entry.getKey(), entry.getValue(), code, e.getMessage());
+					}
+				}
+
+				throw e;
+
+			} finally {
+				// a snapshot refresh during the write may have fetched the state before it
+				for (ObjectId id : ids) {
+					client.markWritten(id);
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the updates of a flush as one unordered bulk write.
+	 *
+	 * @param writes
+	 *            the $set updates, one per object
+	 */
+	protected void write(List<WriteModel<Document>> writes) {
+		client.getWriteCollection().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+	}
+
+	private void drop(ObjectId id, Document fields, int code, String message) {
+
+		droppedObjects.incrementAndGet();
+
+		DropListener listener = dropListener;
+
+		if (listener != null)
+			listener.onDropped(id, fields, code, message);
+	}
+
+	/**
+	 * Ends the running flush and puts the updates of the batch back if it failed, without overwriting updates that were buffered in the meantime.
+	 */
+	private void requeue(Map<ObjectId, Document> batch) {
+
+		lock.lock();
+		try {
+			inFlight = Collections.emptyMap();
+			notFull.signalAll();
+
+			if (batch == null)
+				return;
+
+			for (Map.Entry<ObjectId, Document> entry : batch.entrySet()) {
+
+				Document newer = pending.get(entry.getKey());
+
+				if (newer == null) {
+					pending.put(entry.getKey(), entry.getValue());
+				} else {
+					for (Map.Entry<String, Object> field : entry.getValue().entrySet()) {
+						if (!newer.containsKey(field.getKey()))
+							newer.put(field.getKey(), field.getValue());
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			// the updates were put back, the next flush tries again
+		}
+	}
+
+	/**
+	 * Stops the periodic flushes and writes all pending updates.
+	 */
+	@Override
+	public void close() {
+
+		flusher.shutdown();
+
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// already shutting down, the hook flushes as well
+		}
+
+		flush();
+	}
+
+	/**
+	 * Returns the number of buffered updates.
+	 *
+	 * @return
+	 */
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	/**
+	 * Returns the number of buffered updates that were merged into a pending update of the same field (and therefore not written separately).
+	 *
+	 * @return
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of successful flushes.
+	 *
+	 * @return
+	 */
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * Returns the number of object updates written by all flushes.
+	 *
+	 * @return
+	 */
+	public long getFlushedObjects() {
+		return flushedObjects.get();
+	}
+
+	/**
+	 * Returns the number of flushes that failed as a whole or for some of their updates.
+	 *
+	 * @return
+	 */
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * Returns the number of object updates that were dropped because the server rejected them.
+	 *
+	 * @return
+	 */
+	public long getDroppedObjects() {
+		return droppedObjects.get();
+	}
+
+	/**
+	 * Sets the listener that is told about dropped updates, null to only count them.
+	 *
+	 * @param dropListener
+	 */
+	public void setDropListener(DropListener dropListener) {
+		this.dropListener = dropListener;
+	}
+}
@@ -1,5 +1,10 @@
 package io.myalfred.mongodb.dbauth;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Database authentication object.
  * 
@@ -26,22 +31,277 @@ public class DbAuth {
 	/** default auth mechanism */
 	public final String authMechanism = "SCRAM-SHA-1";
 
+	/** zstd wire compression (MongoDb 4.2+, requires zstd-jni on the classpath) */
+	public static final String COMPRESSOR_ZSTD = "zstd";
+
+	/** snappy wire compression (MongoDb 3.4+, requires snappy-java on the classpath) */
+	public static final String COMPRESSOR_SNAPPY = "snappy";
+
+	/** zlib wire compression (MongoDb 3.6+, no additional dependencies) */
+	public static final String COMPRESSOR_ZLIB = "zlib";
+
 	/** default SSL is disabled */
 	protected boolean sslEnabled = false;
 
+	/** default the hostname of the server certificate is verified */
+	protected boolean sslInvalidHostNameAllowed = false;
+
+	/** the wire compressors to offer the server, in order of preference; default no compression */
+	protected List<String> compressors = new ArrayList<>();
+
+	/** the seed list of servers ("host" or "host:port"), e.g. the replica set members or the mongos routers of a sharded cluster */
+	protected List<String> hosts;
+
+	/** the name of the replica set to connect to, null if the servers are not a replica set (or mongos routers) */
+	protected String replicaSetName;
+
+	/** true if the servers are discovered via the DNS SRV record of the (single) host ("mongodb+srv") */
+	protected boolean srvDiscovery = false;
+
+	/** how long to wait for a suitable server before an operation fails in milliseconds, -1 uses the driver default */
+	protected int serverSelectionTimeout = -1;
+
+	/** the latency window in milliseconds in which servers are considered equally near, -1 uses the driver default */
+	protected int localThreshold = -1;
+
+	/** the read preference (e.g. "secondaryPreferred" or "nearest"), null reads from the primary */
+	protected String readPreference;
+
+	/** the number of connections per server the pool keeps open, -1 uses the driver default (none) */
+	protected int minPoolSize = -1;
+
+	/** how long a read from a connection may block in milliseconds, -1 uses the driver default (no limit) */
+	protected int socketTimeout = -1;
+
 	public DbAuth(String username, String pw, String databaseName, String ip) {
+		this(username, pw, databaseName, Arrays.asList(ip));
+	}
+
+	public DbAuth(String username, String pw, String databaseName, List<String> hosts) {
 		this.username = username;
 		this.password = pw;
 		this.databaseName = databaseName;
-		this.serverIp = ip;
+		this.hosts = new ArrayList<>(hosts);
+		this.serverIp = this.hosts.get(0);
+
+		for (String host : this.hosts) {
+			// "::1:27017" could be the address ::1 with a port or the address ::1:27017
+			if (!host.startsWith("[") && host.indexOf(':') != host.lastIndexOf(':'))
+				throw new IllegalArgumentException("IPv6 addresses must be given in brackets, e.g. \"[::1]\" or \"[::1]:27017\": " + host);
+		}
 	}
 
 	/**
-	 * Returns the IP address of the MongoDb server.
+	 * Returns the IP address of the (first) MongoDb server.
 	 * 
 	 * @return
 	 */
 	public String getServerIp() {
 		return serverIp;
 	}
+
+	/**
+	 * Returns the seed list of servers, each entry as "host:port" (IPv6 addresses as "[address]:port"). Entries without a port use the default {@link #port}.
+	 * 
+	 * @return
+	 */
+	public List<String> getHosts() {
+
+		List<String> result = new ArrayList<>();
+
+		for (String host : hosts) {
+			// SRV discovery resolves the ports via DNS, IPv6 literals are given as "[::1]" or "[::1]:port", so the port follows the last "]"
+			if (srvDiscovery || host.indexOf(':', host.lastIndexOf(']') + 1) >= 0)
+				result.add(host);
+			else
+				result.add(host + ":" + port);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the name of the replica set to connect to, or null if none is configured.
+	 * 
+	 * @return
+	 */
+	public String getReplicaSetName() {
+		return replicaSetName;
+	}
+
+	/**
+	 * Sets the name of the replica set to connect to. The seed list does not need to contain all members, the others are discovered.
+	 * 
+	 * @param replicaSetName
+	 */
+	public void setReplicaSetName(String replicaSetName) {
+		this.replicaSetName = replicaSetName;
+	}
+
+	/**
+	 * Returns true if the servers are discovered via DNS SRV lookup of the host ("mongodb+srv").
+	 * 
+	 * @return
+	 */
+	public boolean isSrvDiscovery() {
+		return srvDiscovery;
+	}
+
+	/**
+	 * Enables discovery of the servers via the DNS SRV record of the host ("mongodb+srv"). Requires exactly one host without a port. Note that SRV discovery enables SSL by
+	 * default.
+	 * 
+	 * @param srvDiscovery
+	 */
+	public void setSrvDiscovery(boolean srvDiscovery) {
+		this.srvDiscovery = srvDiscovery;
+	}
+
+	/**
+	 * Returns the server selection timeout in milliseconds, -1 if the driver default is used.
+	 * 
+	 * @return
+	 */
+	public int getServerSelectionTimeout() {
+		return serverSelectionTimeout;
+	}
+
+	/**
+	 * Sets how long an operation waits for a suitable server (e.g. a new primary during failover) before it fails.
+	 * 
+	 * @param millis
+	 */
+	public void setServerSelectionTimeout(int millis) {
+		this.serverSelectionTimeout = millis;
+	}
+
+	/**
+	 * Returns the local threshold in milliseconds, -1 if the driver default is used.
+	 * 
+	 * @return
+	 */
+	public int getLocalThreshold() {
+		return localThreshold;
+	}
+
+	/**
+	 * Sets the latency window: all eligible servers whose round trip time is within this many milliseconds of the fastest one are selected randomly, which spreads the load
+	 * across replica set members and mongos routers.
+	 * 
+	 * @param millis
+	 */
+	public void setLocalThreshold(int millis) {
+		this.localThreshold = millis;
+	}
+
+	/**
+	 * Returns the number of connections per server the pool keeps open, -1 if the driver default is used.
+	 * 
+	 * @return
+	 */
+	public int getMinPoolSize() {
+		return minPoolSize;
+	}
+
+	/**
+	 * Sets the number of connections per server the pool keeps open (and re-opens in the background after they were closed), so requests do not wait for connection handshakes
+	 * and authentication. See DatabaseClient#warmUp to open them on startup.
+	 * 
+	 * @param minPoolSize
+	 */
+	public void setMinPoolSize(int minPoolSize) {
+		this.minPoolSize = minPoolSize;
+	}
+
+	/**
+	 * Returns the socket timeout in milliseconds, -1 if the driver default is used.
+	 * 
+	 * @return
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	/**
+	 * Sets how long a read from a connection may block before the connection is closed. A last resort against stuck connections (deadlines bound queries on the server via
+	 * maxTimeMS), so it should be well above the longest expected operation.
+	 * 
+	 * @param millis
+	 */
+	public void setSocketTimeout(int millis) {
+		this.socketTimeout = millis;
+	}
+
+	/**
+	 * Returns the read preference name, or null if reads go to the primary.
+	 * 
+	 * @return
+	 */
+	public String getReadPreference() {
+		return readPreference;
+	}
+
+	/**
+	 * Sets the read preference by name ("primary", "primaryPreferred", "secondary", "secondaryPreferred" or "nearest").
+	 * 
+	 * @param readPreference
+	 */
+	public void setReadPreference(String readPreference) {
+		this.readPreference = readPreference;
+	}
+
+	/**
+	 * Returns true if the connection to the server is encrypted with TLS/SSL.
+	 * 
+	 * @return
+	 */
+	public boolean isSslEnabled() {
+		return sslEnabled;
+	}
+
+	/**
+	 * Enables or disables TLS/SSL for the connection to the server.
+	 * 
+	 * @param sslEnabled
+	 */
+	public void setSslEnabled(boolean sslEnabled) {
+		this.sslEnabled = sslEnabled;
+	}
+
+	/**
+	 * Returns true if a server certificate that does not match the server hostname is accepted.
+	 * 
+	 * @return
+	 */
+	public boolean isSslInvalidHostNameAllowed() {
+		return sslInvalidHostNameAllowed;
+	}
+
+	/**
+	 * Allows server certificates that do not match the server hostname (e.g. when connecting via IP address). Only has an effect if SSL is enabled.
+	 * 
+	 * @param allowed
+	 */
+	public void setSslInvalidHostNameAllowed(boolean allowed) {
+		this.sslInvalidHostNameAllowed = allowed;
+	}
+
+	/**
+	 * Returns the names of the wire compressors offered to the server, in order of preference.
+	 * 
+	 * @return
+	 */
+	public List<String> getCompressors() {
+		return Collections.unmodifiableList(compressors);
+	}
+
+	/**
+	 * Sets the wire compressors to offer to the server, in order of preference (e.g. {@link #COMPRESSOR_ZSTD}, {@link #COMPRESSOR_SNAPPY}, {@link #COMPRESSOR_ZLIB}). The server
+	 * picks the first one it supports, no compressors disables compression.
+	 * 
+	 * @param compressors
+	 */
+	public void setCompressors(String... compressors) {
+		this.compressors = new ArrayList<>(Arrays.asList(compressors));
+	}
 }
@@ -0,0 +1,123 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.Document;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+import io.myalfred.mongodb.databases.TestBookDatabase;
+import io.myalfred.mongodb.databases.TestBookStoreDatabase;
+import io.myalfred.mongodb.dbauth.DbAuth;
+import io.myalfred.mongodb.dbauth.DefaultAuth;
+
+/**
+ * Compares bytes on the wire and latency of loading full bookstores (books with embedded authors) with wire compression disabled and with each supported compressor. The
+ * byte counts are read from the "network" section of the server's serverStatus, so the database user needs the clusterMonitor role and the server should not serve other
+ * traffic while the benchmark runs.
+ * 
+ * Usage: CompressionBenchmark [iterations]
+ */
+public class CompressionBenchmark {
+
+	private static final String[][] MODES = { {}, { DbAuth.COMPRESSOR_ZLIB }, { DbAuth.COMPRESSOR_SNAPPY }, { DbAuth.COMPRESSOR_ZSTD } };
+
+	public static void main(String[] args) {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+		seedIfEmpty();
+
+		System.out.println(String.format("%-8s %10s %10s %10s %16s %16s %8s", "mode", "avg ms", "p50 ms", "p95 ms", "logical B/op", "physical B/op", "ratio"));
+
+		for (String[] compressors : MODES) {
+
+			DbAuth auth = new DefaultAuth();
+			auth.setCompressors(compressors);
+
+			try (StatsClient client = new StatsClient(auth)) {
+
+				// warm up connection pool and server caches
+				client.loadAll();
+				client.loadAll();
+
+				Document before = client.networkStats();
+				List<Long> latencies = new ArrayList<>();
+
+				for (int i = 0; i < iterations; i++) {
+					long start = System.nanoTime();
+					client.loadAll();
+					latencies.add(System.nanoTime() - start);
+				}
+
+				Document after = client.networkStats();
+
+				long logical = (getLong(after, "bytesOut") - getLong(before, "bytesOut")) / iterations;
+				long physical = (getLong(after, "physicalBytesOut") - getLong(before, "physicalBytesOut")) / iterations;
+
+				Collections.sort(latencies);
+				long sum = 0;
+				for (long l : latencies) {
+					sum += l;
+				}
+
+				System.out.println(String.format("%-8s %10.2f %10.2f %10.2f %16d %16d %8.2f", compressors.length == 0 ? "none" : compressors[0], sum / (double) iterations / 1e6,
+						latencies.get(iterations / 2) / 1e6, latencies.get((int) (iterations * 0.95)) / 1e6, logical, physical, physical == 0 ? 0.0 : logical / (double) physical));
+			}
+		}
+	}
+
+	private static long getLong(Document document, String key) {
+		Number value = (Number) document.get(key);
+		return value == null ? 0 : value.longValue();
+	}
+
+	/**
+	 * Seeds a bookstore with many books by few authors (a highly compressible result) if no bookstores exist yet.
+	 */
+	private static void seedIfEmpty() {
+
+		try (TestBookStoreDatabase bookStoreDb = new TestBookStoreDatabase();
+				TestAuthorDatabase authorDb = new TestAuthorDatabase();
+				TestBookDatabase bookDb = new TestBookDatabase()) {
+
+			if (bookStoreDb.objectCount() > 0)
+				return;
+
+			List<TestAuthor> authors = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				authors.add(new TestAuthor("first" + i, "last" + i));
+			}
+			authorDb.storeAll(authors);
+
+			List<TestBook> books = new ArrayList<>();
+			for (int i = 0; i < 2000; i++) {
+				books.add(new TestBook(authors.get(i % authors.size()), 10.0 + i % 7, 12.0 + i % 5));
+			}
+			bookDb.storeAll(books);
+
+			TestBookStore store = new TestBookStore();
+			store.setName("Benchmark");
+			store.setBooks(books);
+			bookStoreDb.store(store);
+		}
+	}
+
+	/**
+	 * Bookstore client that can also read the server's network statistics.
+	 */
+	private static class StatsClient extends TestBookStoreDatabase {
+
+		StatsClient(DbAuth auth) {
+			super(auth);
+		}
+
+		Document networkStats() {
+			return (Document) getDatabase().runCommand(new Document("serverStatus", 1)).get("network");
+		}
+	}
+}
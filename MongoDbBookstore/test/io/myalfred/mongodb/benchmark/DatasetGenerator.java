@@ -0,0 +1,216 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import io.myalfred.mongodb.data.MongoObject;
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+
+/**
+ * Generates a synthetic bookstore dataset of configurable size with a realistic skew: the number of books per author follows a Zipfian distribution (a few authors wrote
+ * thousands of books, most wrote one or none) and every bookstore carries many books, popular books in more stores than others. Author i is named "first{i}" "last{i}".
+ * <p>
+ * Objects are generated and stored in batches, only their ids are kept, so millions of objects can be generated with little memory.
+ */
+public class DatasetGenerator {
+
+	/**
+	 * Receives the generated objects in batches and stores them, setting their ids.
+	 */
+	public interface Sink {
+
+		void storeAuthors(List<TestAuthor> authors);
+
+		void storeBooks(List<TestBook> books);
+
+		void storeBookStores(List<TestBookStore> stores);
+	}
+
+	/**
+	 * The ids of a generated dataset.
+	 */
+	public static class Dataset {
+
+		private final ObjectId[] authorIds;
+
+		private final ObjectId[] bookIds;
+
+		private final ObjectId[] storeIds;
+
+		Dataset(ObjectId[] authorIds, ObjectId[] bookIds, ObjectId[] storeIds) {
+			this.authorIds = authorIds;
+			this.bookIds = bookIds;
+			this.storeIds = storeIds;
+		}
+
+		public ObjectId[] getAuthorIds() {
+			return authorIds;
+		}
+
+		/**
+		 * Returns the ids of the books, the first ones are the most popular (in the most bookstores).
+		 *
+		 * @return
+		 */
+		public ObjectId[] getBookIds() {
+			return bookIds;
+		}
+
+		public ObjectId[] getStoreIds() {
+			return storeIds;
+		}
+	}
+
+	private int authors = 100000;
+
+	private int books = 1000000;
+
+	private int stores = 100;
+
+	private int booksPerStore = 2000;
+
+	/** the skew of the books per author and of the bookstores per book */
+	private double theta = 0.99;
+
+	private int batchSize = 1000;
+
+	private long seed = 42;
+
+	public DatasetGenerator authors(int authors) {
+		this.authors = authors;
+		return this;
+	}
+
+	public DatasetGenerator books(int books) {
+		this.books = books;
+		return this;
+	}
+
+	public DatasetGenerator stores(int stores) {
+		this.stores = stores;
+		return this;
+	}
+
+	public DatasetGenerator booksPerStore(int booksPerStore) {
+		this.booksPerStore = booksPerStore;
+		return this;
+	}
+
+	public DatasetGenerator theta(double theta) {
+		this.theta = theta;
+		return this;
+	}
+
+	public DatasetGenerator batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public DatasetGenerator seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Generates the dataset into the provided sink: first the authors, then the books, then the bookstores.
+	 *
+	 * @param sink
+	 * @return the ids of the generated objects
+	 */
+	public Dataset generate(Sink sink) {
+
+		Random random = new Random(seed);
+
+		ObjectId[] authorIds = new ObjectId[authors];
+		List<TestAuthor> authorBatch = new ArrayList<>(batchSize);
+
+		for (int i = 0; i < authors; i++) {
+
+			authorBatch.add(new TestAuthor("first" + i, "last" + i));
+
+			if (authorBatch.size() == batchSize || i == authors - 1) {
+				sink.storeAuthors(authorBatch);
+				collectIds(authorBatch, authorIds, i + 1 - authorBatch.size());
+				authorBatch = new ArrayList<>(batchSize);
+			}
+		}
+
+		ZipfianGenerator authorOfBook = new ZipfianGenerator(authors, theta);
+		ObjectId[] bookIds = new ObjectId[books];
+		List<TestBook> bookBatch = new ArrayList<>(batchSize);
+
+		for (int i = 0; i < books; i++) {
+
+			TestAuthor author = new TestAuthor();
+			author.setObjectId(authorIds[(int) authorOfBook.next(random)]);
+			bookBatch.add(new TestBook(author, 5.0 + random.nextInt(4000) / 100.0));
+
+			if (bookBatch.size() == batchSize || i == books - 1) {
+				sink.storeBooks(bookBatch);
+				collectIds(bookBatch, bookIds, i + 1 - bookBatch.size());
+				bookBatch = new ArrayList<>(batchSize);
+			}
+		}
+
+		ZipfianGenerator bookOfStore = new ZipfianGenerator(books, theta);
+		ObjectId[] storeIds = new ObjectId[stores];
+		List<TestBookStore> storeBatch = new ArrayList<>();
+		int carried = Math.min(booksPerStore, books);
+
+		for (int i = 0; i < stores; i++) {
+
+			// popular books are in most stores, each store adds a long tail of its own
+			Set<Integer> selected = new LinkedHashSet<>();
+
+			for (int attempt = 0; selected.size() < carried && attempt < carried * 4; attempt++) {
+				selected.add((int) bookOfStore.next(random));
+			}
+
+			while (selected.size() < carried) {
+				selected.add(random.nextInt(books));
+			}
+
+			List<TestBook> storeBooks = new ArrayList<>(carried);
+
+			for (int book : selected) {
+				TestBook reference = new TestBook();
+				reference.setObjectId(bookIds[book]);
+				storeBooks.add(reference);
+			}
+
+			TestBookStore store = new TestBookStore();
+			store.setName("store" + i);
+			store.setBooks(storeBooks);
+			storeBatch.add(store);
+
+			// a store with thousands of books is a large document, so stores are stored in smaller batches
+			if (storeBatch.size() * carried >= batchSize * 100 || i == stores - 1) {
+				sink.storeBookStores(storeBatch);
+				collectIds(storeBatch, storeIds, i + 1 - storeBatch.size());
+				storeBatch = new ArrayList<>();
+			}
+		}
+
+		return new Dataset(authorIds, bookIds, storeIds);
+	}
+
+	private static void collectIds(List<? extends MongoObject> stored, ObjectId[] ids, int offset) {
+
+		for (int i = 0; i < stored.size(); i++) {
+
+			ObjectId id = stored.get(i).getObjectId();
+
+			if (id == null)
+				throw new IllegalStateException("The sink did not set the id of a stored object");
+
+			ids[offset + i] = id;
+		}
+	}
+}
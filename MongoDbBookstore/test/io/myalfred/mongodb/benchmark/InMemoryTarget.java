@@ -0,0 +1,166 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+
+/**
+ * In-memory stand-in for the database, to test the harness and the generator (and to measure the client side alone) without a server. Reads decode the same documents the
+ * clients decode, an optional service time per request simulates the round trip.
+ */
+public class InMemoryTarget implements LoadTarget {
+
+	private final ConcurrentMap<ObjectId, Document> authors = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<ObjectId, Document> books = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<ObjectId, List<ObjectId>> stores = new ConcurrentHashMap<>();
+
+	/** the first book per author last name, like the first result of the findLastName pipeline */
+	private final ConcurrentMap<String, ObjectId> firstBookByLastName = new ConcurrentHashMap<>();
+
+	private final long serviceTimeNanos;
+
+	/**
+	 * Creates an empty stand-in.
+	 *
+	 * @param serviceTimeMicros
+	 *            the time each request takes, 0 to answer immediately
+	 */
+	public InMemoryTarget(long serviceTimeMicros) {
+		this.serviceTimeNanos = TimeUnit.MICROSECONDS.toNanos(serviceTimeMicros);
+	}
+
+	@Override
+	public void storeAuthors(List<TestAuthor> batch) {
+
+		for (TestAuthor author : batch) {
+			author.setObjectId(new ObjectId());
+			authors.put(author.getObjectId(), author.toDocument().append("_id", author.getObjectId()));
+			author.markClean();
+		}
+	}
+
+	@Override
+	public void storeBooks(List<TestBook> batch) {
+
+		for (TestBook book : batch) {
+
+			book.setObjectId(new ObjectId());
+			Document document = book.toDocument();
+			books.put(book.getObjectId(), document);
+			book.markClean();
+
+			Document author = authors.get(document.getObjectId("author"));
+
+			if (author != null)
+				firstBookByLastName.putIfAbsent(author.getString("lastName"), book.getObjectId());
+		}
+	}
+
+	@Override
+	public void storeBookStores(List<TestBookStore> batch) {
+
+		for (TestBookStore store : batch) {
+
+			List<ObjectId> ids = new ArrayList<>();
+
+			for (TestBook book : store.getBooks()) {
+				ids.add(book.getObjectId());
+			}
+
+			store.setObjectId(new ObjectId());
+			stores.put(store.getObjectId(), ids);
+			store.markClean();
+		}
+	}
+
+	@Override
+	public TestBook load(ObjectId bookId) {
+		serve();
+		return decode(bookId);
+	}
+
+	@Override
+	public List<TestBook> loadAll(List<ObjectId> bookIds) {
+
+		serve();
+
+		List<TestBook> result = new ArrayList<>();
+
+		for (ObjectId id : bookIds) {
+			TestBook book = decode(id);
+			if (book != null)
+				result.add(book);
+		}
+
+		return result;
+	}
+
+	@Override
+	public TestBook findLastName(String authorLastName) {
+
+		serve();
+
+		ObjectId id = firstBookByLastName.get(authorLastName);
+		return id == null ? null : decode(id);
+	}
+
+	@Override
+	public boolean updatePrice(ObjectId bookId, double price) {
+
+		serve();
+
+		while (true) {
+
+			Document book = books.get(bookId);
+
+			if (book == null)
+				return false;
+
+			Document updated = new Document(book);
+			updated.put("prices", Collections.singletonList(price));
+
+			if (books.replace(bookId, book, updated))
+				return true;
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Returns the book with its author embedded, like the result of the book pipeline.
+	 */
+	private TestBook decode(ObjectId id) {
+
+		Document book = books.get(id);
+
+		if (book == null)
+			return null;
+
+		Document joined = new Document("_id", id).append("author", authors.get(book.getObjectId("author"))).append("prices", book.get("prices"));
+		return new TestBook(joined);
+	}
+
+	private void serve() {
+
+		long end = System.nanoTime() + serviceTimeNanos;
+
+		while (serviceTimeNanos > 0 && System.nanoTime() < end) {
+			LockSupport.parkNanos(end - System.nanoTime());
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds with log-linear buckets: values below 64 are exact, larger values are kept with 32 buckets per power of two (an error of at
+ * most about 3%). Safe for concurrent recording.
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR = 64;
+
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - 6) * SUB_BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+
+		long micros = Math.max(0, nanos / 1000);
+
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Returns the latency in microseconds below or at which the provided fraction of the recorded latencies are (the upper bound of its bucket), 0 if nothing was recorded.
+	 *
+	 * @param percentile
+	 *            e.g. 0.99
+	 * @return
+	 */
+	public long percentileMicros(double percentile) {
+
+		long total = count.get();
+
+		if (total == 0)
+			return 0;
+
+		long target = Math.max(1, (long) Math.ceil(percentile * total));
+		long seen = 0;
+
+		for (int i = 0; i < counts.length(); i++) {
+
+			seen += counts.get(i);
+
+			if (seen >= target)
+				return Math.min(max.get(), upperBound(i));
+		}
+
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMeanMicros() {
+		long total = count.get();
+		return total == 0 ? 0 : sum.get() / (double) total;
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	private static int index(long micros) {
+
+		if (micros < LINEAR)
+			return (int) micros;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros); // >= 6
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+
+		if (index < LINEAR)
+			return index;
+
+		int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+		long sub = (index - LINEAR) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+}
@@ -0,0 +1,385 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongBinaryOperator;
+
+import org.bson.types.ObjectId;
+
+import io.myalfred.mongodb.dbauth.DbAuth;
+
+/**
+ * Multi-threaded load test of a mixed workload of book loads by id, loads of several books by id, findLastName queries and price updates on a generated dataset. Books and
+ * authors are picked with a Zipfian distribution, so a few are hot.
+ * <p>
+ * A closed-loop run keeps a fixed number of requests in flight: every thread sends its next request when the previous one answered, so it measures the maximum throughput, but
+ * a slow server also slows down the requests and hides its stalls. An open-loop run sends requests at a fixed rate, each at its scheduled time, and measures every latency from
+ * the scheduled time instead of the actual send time. A stall then shows up in the latency of all requests that should have been sent during it (no coordinated omission).
+ * <p>
+ * Usage: LoadHarness [memory|mongo] [closed|open] [threads] [seconds] [ops/s (open loop)] [books] [--hosts=host[:port][,host[:port]...] --user=name --password=pw
+ * --database=name] [--reset]
+ * <p>
+ * The mongo mode needs the server and credentials to connect with. The generated dataset is added to the collections, they are only emptied before with --reset.
+ */
+public class LoadHarness {
+
+	/**
+	 * The operations of the workload.
+	 */
+	public enum Operation {
+		LOAD, LOAD_ALL, FIND_LAST_NAME, UPDATE
+	}
+
+	/**
+	 * Throughput and latency percentiles of a run, per operation.
+	 */
+	public static class Report {
+
+		private final Map<Operation, LatencyHistogram> latencies;
+
+		private final long errors;
+
+		private final long elapsedMillis;
+
+		Report(Map<Operation, LatencyHistogram> latencies, long errors, long elapsedMillis) {
+			this.latencies = latencies;
+			this.errors = errors;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public LatencyHistogram getLatencies(Operation operation) {
+			return latencies.get(operation);
+		}
+
+		public long getOperations() {
+
+			long operations = 0;
+
+			for (LatencyHistogram histogram : latencies.values()) {
+				operations += histogram.getCount();
+			}
+
+			return operations;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public double getOperationsPerSecond() {
+			return getOperations() * 1000.0 / Math.max(1, elapsedMillis);
+		}
+
+		@Override
+		public String toString() {
+
+			StringBuilder builder = new StringBuilder(
+					String.format("%d operations in %d ms (%.0f ops/s), %d errors%n", getOperations(), elapsedMillis, getOperationsPerSecond(), errors));
+			builder.append(String.format("%-15s %10s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+
+			for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+
+				LatencyHistogram histogram = entry.getValue();
+
+				builder.append(String.format("%-15s %10d %10.0f %10d %10d %10d %10d %10d%n", entry.getKey(), histogram.getCount(), histogram.getMeanMicros(),
+						histogram.percentileMicros(0.5), histogram.percentileMicros(0.9), histogram.percentileMicros(0.99), histogram.percentileMicros(0.999),
+						histogram.getMaxMicros()));
+			}
+
+			return builder.toString();
+		}
+	}
+
+	private final LoadTarget target;
+
+	private final DatasetGenerator.Dataset dataset;
+
+	private int threads = 16;
+
+	private long durationMillis = 30000;
+
+	private long warmUpMillis = 5000;
+
+	/** the relative weights of the operations, in the order of {@link Operation} */
+	private int[] weights = { 60, 10, 10, 20 };
+
+	/** the number of books of a LOAD_ALL */
+	private int loadAllSize = 20;
+
+	private double theta = 0.99;
+
+	private ZipfianGenerator books;
+
+	private ZipfianGenerator authors;
+
+	public LoadHarness(LoadTarget target, DatasetGenerator.Dataset dataset) {
+		this.target = target;
+		this.dataset = dataset;
+	}
+
+	public LoadHarness threads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	public LoadHarness duration(long durationMillis) {
+		this.durationMillis = durationMillis;
+		return this;
+	}
+
+	public LoadHarness warmUp(long warmUpMillis) {
+		this.warmUpMillis = warmUpMillis;
+		return this;
+	}
+
+	public LoadHarness weights(int load, int loadAll, int findLastName, int update) {
+		this.weights = new int[] { load, loadAll, findLastName, update };
+		return this;
+	}
+
+	public LoadHarness loadAllSize(int loadAllSize) {
+		this.loadAllSize = loadAllSize;
+		return this;
+	}
+
+	public LoadHarness theta(double theta) {
+		this.theta = theta;
+		return this;
+	}
+
+	/**
+	 * Runs the workload with a fixed number of requests in flight (one per thread) for the configured duration, after the warm-up.
+	 *
+	 * @return
+	 */
+	public Report runClosedLoop() {
+		return run(0);
+	}
+
+	/**
+	 * Runs the workload at the provided rate for the configured duration, after the warm-up. Latencies are measured from the time each request was scheduled. Use enough threads
+	 * to keep up with the rate while the target is slow, requests wait for a free thread otherwise (which is measured, too).
+	 *
+	 * @param operationsPerSecond
+	 * @return
+	 */
+	public Report runOpenLoop(double operationsPerSecond) {
+		return run((long) (TimeUnit.SECONDS.toNanos(1) / operationsPerSecond));
+	}
+
+	private Report run(long intervalNanos) {
+
+		books = new ZipfianGenerator(dataset.getBookIds().length, theta);
+		authors = new ZipfianGenerator(dataset.getAuthorIds().length, theta);
+
+		Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new LatencyHistogram());
+		}
+
+		AtomicLong errors = new AtomicLong();
+		AtomicLong schedule = new AtomicLong();
+		AtomicLong finished = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(threads);
+
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmUpMillis);
+		long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+		for (int t = 0; t < threads; t++) {
+
+			Thread worker = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Random random = ThreadLocalRandom.current();
+
+						while (true) {
+
+							long scheduled;
+
+							if (intervalNanos > 0) {
+
+								scheduled = start + schedule.getAndIncrement() * intervalNanos;
+
+								if (scheduled >= end)
+									break;
+
+								while (System.nanoTime() < scheduled) {
+									LockSupport.parkNanos(scheduled - System.nanoTime());
+								}
+
+							} else {
+
+								scheduled = System.nanoTime();
+
+								if (scheduled >= end)
+									break;
+							}
+
+							Operation operation = pick(random);
+
+							try {
+								execute(operation, random);
+							} catch (RuntimeException e) {
+								if (scheduled >= measureFrom)
+									errors.incrementAndGet();
+								continue;
+							}
+
+							if (scheduled >= measureFrom)
+								latencies.get(operation).record(System.nanoTime() - scheduled);
+						}
+					} finally {
+						// a slow target finishes the open loop's backlog after the end, so throughput is measured until the last request answered
+						finished.accumulateAndGet(System.nanoTime(), new LongBinaryOperator() {
+
+							@Override
+							public long applyAsLong(long previous, long now) {
+								return Math.max(previous, now);
+							}
+						});
+						done.countDown();
+					}
+				}
+			}, "load-" + t);
+
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Load test interrupted", e);
+		}
+
+		return new Report(latencies, errors.get(), TimeUnit.NANOSECONDS.toMillis(finished.get() - measureFrom));
+	}
+
+	private Operation pick(Random random) {
+
+		int total = 0;
+
+		for (int weight : weights) {
+			total += weight;
+		}
+
+		int selected = random.nextInt(total);
+
+		for (Operation operation : Operation.values()) {
+
+			selected -= weights[operation.ordinal()];
+
+			if (selected < 0)
+				return operation;
+		}
+
+		return Operation.LOAD;
+	}
+
+	private void execute(Operation operation, Random random) {
+
+		switch (operation) {
+
+		case LOAD:
+			target.load(book(random));
+			break;
+
+		case LOAD_ALL:
+			List<ObjectId> ids = new ArrayList<>(loadAllSize);
+			for (int i = 0; i < loadAllSize; i++) {
+				ids.add(book(random));
+			}
+			target.loadAll(ids);
+			break;
+
+		case FIND_LAST_NAME:
+			target.findLastName("last" + authors.next(random));
+			break;
+
+		case UPDATE:
+			target.updatePrice(book(random), 5.0 + random.nextInt(4000) / 100.0);
+			break;
+		}
+	}
+
+	private ObjectId book(Random random) {
+		return dataset.getBookIds()[(int) books.next(random)];
+	}
+
+	public static void main(String[] args) {
+
+		List<String> positional = new ArrayList<>();
+		Map<String, String> options = new HashMap<>();
+
+		for (String arg : args) {
+
+			if (!arg.startsWith("--")) {
+				positional.add(arg);
+				continue;
+			}
+
+			int equals = arg.indexOf('=');
+
+			if (equals < 0)
+				options.put(arg.substring(2), "true");
+			else
+				options.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+
+		String mode = positional.size() > 0 ? positional.get(0) : "memory";
+		String loop = positional.size() > 1 ? positional.get(1) : "closed";
+		int threads = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 16;
+		int seconds = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : 30;
+		double rate = positional.size() > 4 ? Double.parseDouble(positional.get(4)) : 1000;
+		int bookCount = positional.size() > 5 ? Integer.parseInt(positional.get(5)) : 1000000;
+
+		DatasetGenerator generator = new DatasetGenerator().books(bookCount).authors(Math.max(1, bookCount / 10)).stores(Math.max(1, bookCount / 10000));
+
+		LoadTarget target;
+
+		if ("mongo".equals(mode)) {
+
+			if (!options.keySet().containsAll(Arrays.asList("hosts", "user", "password", "database")))
+				throw new IllegalArgumentException("The mongo mode needs --hosts=host[:port][,host[:port]...] --user=name --password=pw --database=name");
+
+			DbAuth auth = new DbAuth(options.get("user"), options.get("password"), options.get("database"), Arrays.asList(options.get("hosts").split(",")));
+			MongoTarget mongo = new MongoTarget(auth);
+
+			if (options.containsKey("reset"))
+				mongo.removeAll();
+
+			target = mongo;
+		} else {
+			target = new InMemoryTarget(200);
+		}
+
+		try {
+			long start = System.currentTimeMillis();
+			DatasetGenerator.Dataset dataset = generator.generate(target);
+			System.out.println("generated " + dataset.getAuthorIds().length + " authors, " + dataset.getBookIds().length + " books, " + dataset.getStoreIds().length
+					+ " bookstores in " + (System.currentTimeMillis() - start) + " ms");
+
+			LoadHarness harness = new LoadHarness(target, dataset).threads(threads).duration(TimeUnit.SECONDS.toMillis(seconds));
+			Report report = "open".equals(loop) ? harness.runOpenLoop(rate) : harness.runClosedLoop();
+
+			System.out.println(report);
+		} finally {
+			target.close();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import io.myalfred.mongodb.data.TestBook;
+
+/**
+ * The system a {@link LoadHarness} runs its workload against: a MongoDb server through the database clients ({@link MongoTarget}) or an in-memory stand-in
+ * ({@link InMemoryTarget}).
+ */
+public interface LoadTarget extends DatasetGenerator.Sink, AutoCloseable {
+
+	TestBook load(ObjectId bookId);
+
+	List<TestBook> loadAll(List<ObjectId> bookIds);
+
+	TestBook findLastName(String authorLastName);
+
+	boolean updatePrice(ObjectId bookId, double price);
+
+	@Override
+	void close();
+}
@@ -0,0 +1,90 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+import io.myalfred.mongodb.databases.TestBookDatabase;
+import io.myalfred.mongodb.databases.TestBookStoreDatabase;
+import io.myalfred.mongodb.dbauth.DbAuth;
+
+/**
+ * Runs the workload of a {@link LoadHarness} against a MongoDb server through the database clients of this project.
+ */
+public class MongoTarget implements LoadTarget {
+
+	private final TestAuthorDatabase authorDb;
+
+	private final TestBookDatabase bookDb;
+
+	private final TestBookStoreDatabase bookStoreDb;
+
+	public MongoTarget(DbAuth auth) {
+		this.authorDb = new TestAuthorDatabase(auth);
+		this.bookDb = new TestBookDatabase(auth);
+		this.bookStoreDb = new TestBookStoreDatabase(auth);
+	}
+
+	/**
+	 * Deletes all authors, books and bookstores.
+	 */
+	public void removeAll() {
+		bookStoreDb.removeAll();
+		bookDb.removeAll();
+		authorDb.removeAll();
+	}
+
+	@Override
+	public void storeAuthors(List<TestAuthor> authors) {
+		if (!authorDb.storeAll(authors))
+			throw new IllegalStateException("Could not store authors");
+	}
+
+	@Override
+	public void storeBooks(List<TestBook> books) {
+		if (!bookDb.storeAll(books))
+			throw new IllegalStateException("Could not store books");
+	}
+
+	@Override
+	public void storeBookStores(List<TestBookStore> stores) {
+		if (!bookStoreDb.storeAll(stores))
+			throw new IllegalStateException("Could not store bookstores");
+	}
+
+	@Override
+	public TestBook load(ObjectId bookId) {
+		return bookDb.load(bookId);
+	}
+
+	@Override
+	public List<TestBook> loadAll(List<ObjectId> bookIds) {
+		return bookDb.loadAllByIds(bookIds);
+	}
+
+	@Override
+	public TestBook findLastName(String authorLastName) {
+		return bookDb.findLastName(authorLastName);
+	}
+
+	@Override
+	public boolean updatePrice(ObjectId bookId, double price) {
+		return bookDb.update(bookId, "prices", Collections.singletonList(price));
+	}
+
+	public TestBookDatabase getBookDb() {
+		return bookDb;
+	}
+
+	@Override
+	public void close() {
+		authorDb.close();
+		bookDb.close();
+		bookStoreDb.close();
+	}
+}
@@ -0,0 +1,80 @@
+package io.myalfred.mongodb.benchmark;
+
+import java.util.Random;
+
+/**
+ * Draws ranks 0..n-1 with a Zipfian distribution: rank 0 is the most popular, rank i is drawn about (i+1)^-theta as often. Uses the constant time method of Gray et al. ("Quickly
+ * Generating Billion-Record Synthetic Databases"), only the setup is linear in n. Instances are immutable, the random source is passed per call so threads do not share one.
+ */
+public class ZipfianGenerator {
+
+	private final long items;
+
+	private final double theta;
+
+	private final double alpha;
+
+	private final double zetan;
+
+	private final double eta;
+
+	/**
+	 * Creates a generator of ranks 0..items-1.
+	 *
+	 * @param items
+	 *            the number of ranks
+	 * @param theta
+	 *            the skew, between 0 (exclusive, uniform) and 1 (exclusive, extremely skewed), e.g. 0.99
+	 */
+	public ZipfianGenerator(long items, double theta) {
+
+		if (items < 1 || theta <= 0 || theta >= 1)
+			throw new IllegalArgumentException("items must be positive and theta between 0 and 1 (exclusive)");
+
+		this.items = items;
+		this.theta = theta;
+		this.alpha = 1.0 / (1.0 - theta);
+		this.zetan = zeta(items, theta);
+		this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+	}
+
+	/**
+	 * Returns the next rank.
+	 *
+	 * @param random
+	 * @return a rank between 0 and items-1
+	 */
+	public long next(Random random) {
+
+		double u = random.nextDouble();
+		double uz = u * zetan;
+
+		if (uz < 1.0)
+			return 0;
+
+		if (items > 1 && uz < 1.0 + Math.pow(0.5, theta))
+			return 1;
+
+		return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+	}
+
+	/**
+	 * Returns the number of ranks.
+	 *
+	 * @return
+	 */
+	public long getItems() {
+		return items;
+	}
+
+	private static double zeta(long n, double theta) {
+
+		double sum = 0;
+
+		for (long i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+
+		return sum;
+	}
+}
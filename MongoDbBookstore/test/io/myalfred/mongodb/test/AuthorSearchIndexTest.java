@@ -0,0 +1,143 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.databases.AuthorSearchIndex;
+import io.myalfred.mongodb.databases.RelationshipIndex;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+import io.myalfred.mongodb.databases.TestBookDatabase;
+import io.myalfred.mongodb.databases.TestBookStoreDatabase;
+import io.myalfred.mongodb.databases.WriteBehindBuffer;
+
+public class AuthorSearchIndexTest {
+
+	private TestAuthorDatabase authors;
+
+	private TestBookDatabase books;
+
+	private TestBookStoreDatabase stores;
+
+	private RelationshipIndex relationships;
+
+	private AuthorSearchIndex index;
+
+	private ObjectId tolkien = new ObjectId();
+	private ObjectId tolstoy = new ObjectId();
+	private ObjectId camus = new ObjectId();
+
+	@Before
+	public void setUp() {
+
+		authors = OfflineClients.authors();
+		books = OfflineClients.books();
+		stores = OfflineClients.bookStores();
+
+		relationships = new RelationshipIndex(books, stores);
+		index = new AuthorSearchIndex(authors, relationships);
+		index.putAuthor(tolkien, "John Ronald", "Tolkien");
+		index.putAuthor(tolstoy, "Leo", "Tolstoy");
+		index.putAuthor(camus, "Albert", "Cam\u00fcs");
+	}
+
+	@After
+	public void tearDown() {
+		index.close();
+		relationships.close();
+		authors.close();
+		books.close();
+		stores.close();
+	}
+
+	@Test
+	public void testPrefix() {
+
+		assertEquals(Arrays.asList(tolkien, tolstoy), index.findAuthors("tol", 10));
+		assertEquals(Arrays.asList(tolkien), index.findAuthors("TOLK", 10));
+		assertEquals(Arrays.asList(tolkien), index.findAuthors("john ronald t", 10));
+		assertEquals(Arrays.asList(tolkien), index.findAuthors("tol", 1));
+		assertEquals(3, index.findAuthors("", 10).size());
+		assertTrue(index.findAuthors("x", 10).isEmpty());
+	}
+
+	@Test
+	public void testAccents() {
+
+		assertEquals(Arrays.asList(camus), index.findAuthors("camus", 10));
+
+		List<TestAuthor> suggestions = index.suggest("cam", 10);
+		assertEquals(1, suggestions.size());
+		assertEquals("Cam\u00fcs", suggestions.get(0).getLastName());
+		assertEquals(camus, suggestions.get(0).getObjectId());
+	}
+
+	@Test
+	public void testPostings() {
+
+		ObjectId hobbit = new ObjectId();
+		ObjectId lotr = new ObjectId();
+		ObjectId war = new ObjectId();
+
+		// the postings are read from the relationship index
+		relationships.putBook(lotr, tolkien);
+		relationships.putBook(hobbit, tolkien);
+		relationships.putBook(war, tolstoy);
+
+		assertEquals(Arrays.asList(hobbit, lotr), index.getBooks(tolkien));
+		assertEquals(Arrays.asList(hobbit, lotr, war), index.findBooks("tol", 10));
+		assertEquals(hobbit, index.findFirstBookByLastName("Tolkien"));
+		assertNull(index.findFirstBookByLastName("tolkien"));
+
+		// moving a book to another author
+		relationships.putBook(hobbit, tolstoy);
+		assertEquals(Arrays.asList(lotr), index.getBooks(tolkien));
+		assertEquals(Arrays.asList(hobbit, war), index.getBooks(tolstoy));
+
+		relationships.removeBook(lotr);
+		assertTrue(index.getBooks(tolkien).isEmpty());
+	}
+
+	@Test
+	public void testRenameAndRemove() {
+
+		index.putAuthor(tolstoy, "Lev", "Tolstoi");
+		assertEquals(Arrays.asList(tolstoy), index.findAuthors("tolstoi", 10));
+		assertTrue(index.findAuthors("tolstoy", 10).isEmpty());
+		assertTrue(index.findAuthors("leo", 10).isEmpty());
+
+		index.removeAuthor(tolkien);
+		assertTrue(index.findAuthors("tolk", 10).isEmpty());
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void testFollowsClientWrites() {
+
+		WriteBehindBuffer authorUpdates = OfflineClients.acknowledgingBuffer(authors);
+		WriteBehindBuffer bookUpdates = OfflineClients.acknowledgingBuffer(books);
+
+		authorUpdates.put(tolkien, "lastName", "Tolkien-Reuel");
+		ObjectId book = new ObjectId();
+		bookUpdates.put(book, "author", camus);
+
+		// buffered updates are indexed once they are written
+		assertTrue(index.findAuthors("tolkien-r", 10).isEmpty());
+		assertTrue(index.getBooks(camus).isEmpty());
+
+		authorUpdates.close();
+		bookUpdates.close();
+
+		assertEquals(Arrays.asList(tolkien), index.findAuthors("tolkien-r", 10));
+		assertEquals(Arrays.asList(book), index.getBooks(camus));
+	}
+}
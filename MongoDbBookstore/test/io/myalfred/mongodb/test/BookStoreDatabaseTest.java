@@ -275,4 +275,26 @@ public class BookStoreDatabaseTest {
 		authorDb.removeAll();
 		assertEquals(0, authorDb.objectCount());
 	}
+
+	@Test
+	public void testUpsertDeleted() {
+
+		authorDb.removeAll();
+
+		TestAuthor author = new TestAuthor("Dan", "Brown");
+		assertTrue(authorDb.store(author));
+
+		author = authorDb.load(author.getObjectId());
+		assertTrue(authorDb.delete(author.getObjectId()));
+
+		// only the first name is modified, but the deleted author has to be inserted completely
+		author.setFirstName("Daniel");
+		assertTrue(authorDb.upsert(author));
+
+		TestAuthor reinserted = authorDb.load(author.getObjectId());
+		assertEquals("Daniel", reinserted.getFirstName());
+		assertEquals("Brown", reinserted.getLastName());
+
+		authorDb.removeAll();
+	}
 }
@@ -0,0 +1,87 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.databases.BsonFile;
+
+public class BsonFileTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		roundTrip(false);
+	}
+
+	@Test
+	public void testCompressedRoundTrip() throws IOException {
+		roundTrip(true);
+	}
+
+	@Test
+	public void testTruncatedFile() throws IOException {
+
+		Path file = Files.createTempFile("transfer", ".bson");
+		ByteBuffer document = raw(new Document("_id", new ObjectId()).append("name", "Truncated")).getByteBuffer().asNIO();
+		byte[] bytes = new byte[document.remaining()];
+		document.get(bytes);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+
+		try (BsonFile.Reader reader = BsonFile.reader(file)) {
+			reader.next();
+			fail("truncated document was read");
+		} catch (EOFException e) {
+			// expected
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private void roundTrip(boolean compress) throws IOException {
+
+		Path file = Files.createTempFile("transfer", ".bson");
+		List<RawBsonDocument> documents = new ArrayList<>();
+
+		// larger than the read buffer, so documents span buffer boundaries and one document grows the buffer
+		for (int i = 0; i < 3000; i++) {
+			documents.add(raw(new Document("_id", new ObjectId()).append("title", "Book " + i).append("prices", Arrays.asList(i, i * 0.5))));
+		}
+		documents.add(raw(new Document("_id", new ObjectId()).append("blob", new String(new char[3 << 20]).replace('\0', 'x'))));
+
+		try (BsonFile.Writer writer = BsonFile.writer(file, compress)) {
+			for (RawBsonDocument document : documents) {
+				writer.write(document.getByteBuffer().asNIO());
+			}
+		}
+
+		try (BsonFile.Reader reader = BsonFile.reader(file)) {
+
+			for (RawBsonDocument document : documents) {
+				assertEquals(document, reader.next());
+			}
+
+			assertNull(reader.next());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static RawBsonDocument raw(Document document) {
+		return new RawBsonDocument(document, new DocumentCodec());
+	}
+}
@@ -0,0 +1,125 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.myalfred.mongodb.databases.AdaptiveLimiter;
+import io.myalfred.mongodb.databases.Bulkhead;
+import io.myalfred.mongodb.databases.BulkheadFullException;
+
+public class BulkheadTest {
+
+	@Test
+	public void testLimitGrowsWithoutQueueing() {
+
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 100);
+
+		for (int i = 0; i < 100; i++) {
+			limiter.onSample(TimeUnit.MILLISECONDS.toNanos(5), limiter.getLimit(), false);
+		}
+
+		assertEquals(100, limiter.getLimit());
+	}
+
+	@Test
+	public void testLimitShrinksWithLatency() {
+
+		AdaptiveLimiter limiter = new AdaptiveLimiter(50, 1, 100);
+		limiter.onSample(TimeUnit.MILLISECONDS.toNanos(5), 50, false);
+
+		for (int i = 0; i < 100; i++) {
+			limiter.onSample(TimeUnit.MILLISECONDS.toNanos(50), limiter.getLimit(), false);
+		}
+
+		assertTrue(limiter.getLimit() < 10);
+	}
+
+	@Test
+	public void testDropsHalveLimit() {
+
+		AdaptiveLimiter limiter = new AdaptiveLimiter(41, 1, 100);
+		limiter.onSample(0, 0, true);
+
+		assertEquals(21, limiter.getLimit());
+	}
+
+	@Test
+	public void testUnusedLimitDoesNotGrow() {
+
+		AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 100);
+
+		for (int i = 0; i < 100; i++) {
+			limiter.onSample(TimeUnit.MILLISECONDS.toNanos(5), 1, false);
+		}
+
+		assertEquals(20, limiter.getLimit());
+	}
+
+	@Test
+	public void testLoadShedding() {
+
+		Bulkhead bulkhead = new Bulkhead("test", new AdaptiveLimiter(1, 1, 1), 0, 1000);
+		Bulkhead.Permit permit = bulkhead.acquire();
+
+		try {
+			bulkhead.acquire();
+			fail("acquired a permit over the limit with no queue");
+		} catch (BulkheadFullException e) {
+			assertEquals(1, bulkhead.getRejected());
+		}
+
+		permit.release();
+		bulkhead.acquire().release();
+		assertEquals(2, bulkhead.getAdmitted());
+	}
+
+	@Test
+	public void testQueueTimeout() {
+
+		Bulkhead bulkhead = new Bulkhead("test", new AdaptiveLimiter(1, 1, 1), 10, 50);
+		Bulkhead.Permit permit = bulkhead.acquire();
+		long start = System.nanoTime();
+
+		try {
+			bulkhead.acquire();
+			fail("acquired a permit over the limit");
+		} catch (BulkheadFullException e) {
+			assertEquals(1, bulkhead.getTimedOut());
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		}
+
+		permit.release();
+	}
+
+	@Test
+	public void testQueuedRequestGetsReleasedPermit() throws InterruptedException {
+
+		Bulkhead bulkhead = new Bulkhead("test", new AdaptiveLimiter(1, 1, 1), 10, 5000);
+		Bulkhead.Permit permit = bulkhead.acquire();
+		CountDownLatch admitted = new CountDownLatch(1);
+
+		Thread waiter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				bulkhead.acquire().release();
+				admitted.countDown();
+			}
+		});
+		waiter.start();
+
+		while (bulkhead.getQueued() == 0) {
+			Thread.sleep(1);
+		}
+
+		permit.release();
+		assertTrue(admitted.await(5, TimeUnit.SECONDS));
+		assertEquals(0, bulkhead.getInFlight());
+	}
+}
@@ -0,0 +1,71 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import io.myalfred.mongodb.databases.CachedCount;
+
+public class CachedCountTest {
+
+	@Test
+	public void testLocalChanges() {
+
+		AtomicLong server = new AtomicLong(10);
+		CachedCount count = new CachedCount(source(server), 60000);
+
+		assertEquals(10, count.get());
+		assertEquals(1, count.getReconciliations());
+
+		count.add(3);
+		count.add(-1);
+		server.set(12);
+
+		assertEquals(12, count.get());
+		assertEquals(1, count.getReconciliations());
+	}
+
+	@Test
+	public void testReconciliation() {
+
+		AtomicLong server = new AtomicLong(5);
+		CachedCount count = new CachedCount(source(server), 60000);
+
+		assertEquals(5, count.get());
+
+		// another client stored objects
+		server.set(8);
+		count.add(1);
+		assertEquals(6, count.get());
+
+		count.invalidate();
+		assertEquals(8, count.get());
+		assertEquals(2, count.getReconciliations());
+	}
+
+	@Test
+	public void testReconcileInterval() {
+
+		AtomicLong server = new AtomicLong(1);
+		CachedCount count = new CachedCount(source(server), 0);
+
+		count.get();
+		server.set(2);
+
+		assertEquals(2, count.get());
+		assertEquals(2, count.getReconciliations());
+	}
+
+	private static CachedCount.Source source(AtomicLong server) {
+
+		return new CachedCount.Source() {
+
+			@Override
+			public long count() {
+				return server.get();
+			}
+		};
+	}
+}
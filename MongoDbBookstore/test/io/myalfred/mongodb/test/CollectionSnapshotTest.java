@@ -0,0 +1,218 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.myalfred.mongodb.databases.CollectionSnapshot;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+
+/**
+ * Tests the file format and the refresh of {@link CollectionSnapshot} without a database: the snapshot fetches from an in-memory collection and has no change stream, so it
+ * refreshes like on a standalone server (by rebuilding).
+ */
+public class CollectionSnapshotTest {
+
+	/**
+	 * Snapshot of an in-memory collection, which runs an optional action in every fetch.
+	 */
+	private static class LocalSnapshot extends CollectionSnapshot {
+
+		private final TreeMap<ObjectId, Document> collection;
+
+		private Runnable duringFetch;
+
+		LocalSnapshot(TestAuthorDatabase client, Path file, TreeMap<ObjectId, Document> collection) {
+			super(client, file);
+			this.collection = collection;
+		}
+
+		@Override
+		protected BsonDocument currentResumeToken() {
+			return null;
+		}
+
+		@Override
+		protected TreeMap<ObjectId, ByteBuffer> fetch(Document match) {
+
+			Document filter = (Document) match.get("_id");
+			TreeMap<ObjectId, ByteBuffer> documents = new TreeMap<>();
+
+			for (Map.Entry<ObjectId, Document> entry : collection.entrySet()) {
+
+				ObjectId id = entry.getKey();
+
+				if (filter == null || ((List<?>) filter.get("$in")).contains(id))
+					documents.put(id, new RawBsonDocument(entry.getValue(), new DocumentCodec()).getByteBuffer().asNIO());
+			}
+
+			if (duringFetch != null)
+				duringFetch.run();
+
+			return documents;
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TestAuthorDatabase authors;
+
+	private TreeMap<ObjectId, Document> collection;
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+
+		authors = OfflineClients.authors();
+		collection = new TreeMap<>();
+		file = folder.getRoot().toPath().resolve("authors.snapshot");
+
+		for (String name : Arrays.asList("Brown", "King", "Tolstoy")) {
+			insert(name);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		authors.close();
+	}
+
+	@Test
+	public void testBuildAndGet() {
+
+		CollectionSnapshot snapshot = new LocalSnapshot(authors, file, collection).open();
+
+		assertTrue(Files.exists(file));
+		assertEquals(3, snapshot.size());
+
+		for (Map.Entry<ObjectId, Document> entry : collection.entrySet()) {
+			assertTrue(snapshot.contains(entry.getKey()));
+			assertEquals(entry.getValue(), snapshot.get(entry.getKey()).decode(new DocumentCodec()));
+			assertEquals(entry.getValue(), snapshot.getDocument(entry.getKey()));
+		}
+
+		assertNull(snapshot.get(new ObjectId()));
+		assertEquals(6, snapshot.getHits());
+		assertEquals(1, snapshot.getMisses());
+	}
+
+	@Test
+	public void testRefreshMergesChanges() {
+
+		CollectionSnapshot snapshot = new LocalSnapshot(authors, file, collection).open();
+
+		ObjectId updated = collection.firstKey();
+		ObjectId deleted = collection.lastKey();
+
+		collection.get(updated).put("lastName", "Brown-Smith");
+		snapshot.markStale(updated);
+		collection.remove(deleted);
+		snapshot.markStale(deleted);
+		ObjectId inserted = insert("Zola");
+
+		// written by another client, so not marked
+		ObjectId other = collection.higherKey(updated);
+		collection.get(other).put("lastName", "King-Bachman");
+
+		// written ids are read from the server until the refresh
+		assertFalse(snapshot.contains(updated));
+		assertNull(snapshot.get(deleted));
+
+		snapshot.refresh();
+
+		assertEquals(3, snapshot.size());
+		assertEquals("Brown-Smith", snapshot.get(updated).getString("lastName").getValue());
+		assertNull(snapshot.get(deleted));
+		assertFalse(snapshot.contains(deleted));
+		assertEquals("Zola", snapshot.get(inserted).getString("lastName").getValue());
+		assertEquals("King-Bachman", snapshot.getDocument(other).getString("lastName"));
+	}
+
+	@Test
+	public void testReopenWithoutChangeStream() {
+
+		new LocalSnapshot(authors, file, collection).open();
+
+		// changed while the process was down, without a change stream the existing file can only be rebuilt
+		ObjectId changed = collection.firstKey();
+		collection.get(changed).put("lastName", "Brown-Smith");
+		collection.remove(collection.lastKey());
+
+		CollectionSnapshot reopened = new LocalSnapshot(authors, file, collection).open();
+
+		assertEquals(2, reopened.size());
+
+		for (Map.Entry<ObjectId, Document> entry : collection.entrySet()) {
+			assertEquals(entry.getValue(), reopened.getDocument(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void testInvalidFileRebuilt() throws IOException {
+
+		Files.write(file, "not a snapshot, but longer than the header".getBytes("US-ASCII"));
+
+		CollectionSnapshot snapshot = new LocalSnapshot(authors, file, collection).open();
+
+		assertEquals(3, snapshot.size());
+		assertTrue(snapshot.contains(collection.firstKey()));
+	}
+
+	@Test
+	public void testWriteDuringRefreshStaysStale() {
+
+		LocalSnapshot snapshot = new LocalSnapshot(authors, file, collection);
+		snapshot.open();
+
+		ObjectId id = collection.firstKey();
+		collection.get(id).put("lastName", "First");
+		snapshot.markStale(id);
+
+		// a second write lands after the refresh fetched the first one
+		snapshot.duringFetch = new Runnable() {
+
+			@Override
+			public void run() {
+				collection.get(id).put("lastName", "Second");
+				snapshot.markStale(id);
+			}
+		};
+
+		snapshot.refresh();
+		assertFalse(snapshot.contains(id));
+
+		snapshot.duringFetch = null;
+		snapshot.refresh();
+		assertEquals("Second", snapshot.get(id).getString("lastName").getValue());
+	}
+
+	private ObjectId insert(String lastName) {
+
+		ObjectId id = new ObjectId();
+		collection.put(id, new Document("_id", id).append("firstName", "A").append("lastName", lastName));
+		return id;
+	}
+}
@@ -0,0 +1,95 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.benchmark.DatasetGenerator;
+import io.myalfred.mongodb.benchmark.InMemoryTarget;
+import io.myalfred.mongodb.benchmark.LatencyHistogram;
+import io.myalfred.mongodb.benchmark.LoadHarness;
+import io.myalfred.mongodb.benchmark.ZipfianGenerator;
+
+public class DatasetGeneratorTest {
+
+	@Test
+	public void testZipfianSkew() {
+
+		ZipfianGenerator zipf = new ZipfianGenerator(1000, 0.99);
+		Random random = new Random(1);
+		int[] counts = new int[1000];
+
+		for (int i = 0; i < 200000; i++) {
+			counts[(int) zipf.next(random)]++;
+		}
+
+		// rank i is drawn about (i+1)^-0.99 as often as rank 0
+		assertEquals(2.0, counts[0] / (double) counts[1], 0.2);
+		assertEquals(10.0, counts[0] / (double) counts[9], 1.5);
+		assertTrue(counts[0] > counts[99] * 50);
+
+		int top10 = 0;
+		for (int i = 0; i < 10; i++) {
+			top10 += counts[i];
+		}
+		assertTrue(top10 > 200000 * 0.3);
+	}
+
+	@Test
+	public void testZipfianBounds() {
+
+		ZipfianGenerator zipf = new ZipfianGenerator(3, 0.5);
+		Random random = new Random(1);
+
+		for (int i = 0; i < 10000; i++) {
+			long rank = zipf.next(random);
+			assertTrue(rank >= 0 && rank < 3);
+		}
+	}
+
+	@Test
+	public void testHistogram() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (int micros = 1; micros <= 10000; micros++) {
+			histogram.record(micros * 1000L);
+		}
+
+		assertEquals(10000, histogram.getCount());
+		assertEquals(5000, histogram.percentileMicros(0.5), 5000 * 0.04);
+		assertEquals(9900, histogram.percentileMicros(0.99), 9900 * 0.04);
+		assertEquals(10000, histogram.percentileMicros(1.0));
+
+		LatencyHistogram exact = new LatencyHistogram();
+		exact.record(50000);
+		assertEquals(50, exact.percentileMicros(0.5));
+	}
+
+	@Test
+	public void testGenerateAndRun() {
+
+		InMemoryTarget target = new InMemoryTarget(0);
+		DatasetGenerator.Dataset dataset = new DatasetGenerator().authors(100).books(2000).stores(5).booksPerStore(300).batchSize(100).generate(target);
+
+		assertEquals(100, dataset.getAuthorIds().length);
+		assertEquals(2000, new HashSet<ObjectId>(Arrays.asList(dataset.getBookIds())).size());
+		assertEquals(5, dataset.getStoreIds().length);
+
+		LoadHarness harness = new LoadHarness(target, dataset).threads(4).warmUp(50).duration(200);
+
+		LoadHarness.Report closed = harness.runClosedLoop();
+		assertTrue(closed.getOperations() > 0);
+		assertEquals(0, closed.getErrors());
+
+		LoadHarness.Report open = harness.runOpenLoop(2000);
+		assertEquals(400, open.getOperations(), 40);
+		assertTrue(open.getLatencies(LoadHarness.Operation.LOAD).getCount() > 0);
+	}
+}
@@ -0,0 +1,25 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.myalfred.mongodb.dbauth.DbAuth;
+
+public class DbAuthTest {
+
+	@Test
+	public void testHostPorts() {
+
+		DbAuth auth = new DbAuth("user", "pw", "test", Arrays.asList("db0.example.net", "db1.example.net:27018", "[::1]", "[fe80::1]:27019", "10.0.0.1"));
+
+		assertEquals(Arrays.asList("db0.example.net:27017", "db1.example.net:27018", "[::1]:27017", "[fe80::1]:27019", "10.0.0.1:27017"), auth.getHosts());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUnbracketedIPv6() {
+		new DbAuth("user", "pw", "test", "::1");
+	}
+}
@@ -0,0 +1,203 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.Test;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+
+import io.myalfred.mongodb.databases.Deadline;
+import io.myalfred.mongodb.databases.DeadlineExceededException;
+import io.myalfred.mongodb.databases.RequestBudget;
+import io.myalfred.mongodb.databases.RetryPolicy;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+
+public class DeadlineTest {
+
+	@Test
+	public void testScopes() {
+
+		Deadline outer = Deadline.after(1000);
+		Deadline later = Deadline.after(5000);
+		Deadline earlier = Deadline.after(100);
+
+		assertNull(Deadline.current());
+
+		Deadline.Scope scope = outer.attach();
+
+		Deadline.Scope inner = later.attach();
+		assertSame(outer, Deadline.current()); // the earlier deadline stays in effect
+		inner.close();
+
+		inner = earlier.attach();
+		assertSame(earlier, Deadline.current());
+		inner.close();
+
+		assertSame(outer, Deadline.current());
+		scope.close();
+
+		assertNull(Deadline.current());
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+
+		Deadline deadline = Deadline.after(20);
+
+		assertTrue(deadline.remainingMillis() > 0);
+		deadline.check();
+
+		Thread.sleep(30);
+
+		assertTrue(deadline.isExpired());
+		assertEquals(0, deadline.remainingMillis());
+
+		try {
+			deadline.check();
+			fail("expired deadline passed the check");
+		} catch (DeadlineExceededException e) {
+			assertFalse(e.isCancelled());
+		}
+	}
+
+	@Test
+	public void testForkFollowsParent() {
+
+		Deadline parent = Deadline.after(10000);
+		Deadline fork = parent.fork();
+		Deadline other = parent.fork();
+
+		fork.cancel();
+		assertTrue(fork.isCancelled());
+		assertFalse(parent.isCancelled());
+		assertFalse(other.isCancelled());
+
+		// cancelled after the fork
+		parent.cancel();
+		assertTrue(other.isCancelled());
+
+		try {
+			other.check();
+			fail("fork of a cancelled deadline passed the check");
+		} catch (DeadlineExceededException e) {
+			assertTrue(e.isCancelled());
+		}
+	}
+
+	@Test
+	public void testCancellationStopsRetries() {
+
+		RetryPolicy policy = new RetryPolicy(10, 1, 5, 10000, new RequestBudget(1, 100));
+		Deadline deadline = Deadline.after(10000);
+		AtomicInteger attempts = new AtomicInteger();
+
+		Deadline.Scope scope = deadline.attach();
+
+		try {
+			policy.execute(true, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+					attempts.incrementAndGet();
+
+					// cancelled by "another thread" while the attempt runs
+					deadline.cancel();
+					throw commandException(189);
+				}
+			});
+
+			fail("cancelled operation completed");
+
+		} catch (DeadlineExceededException e) {
+			assertTrue(e.isCancelled());
+		} finally {
+			scope.close();
+		}
+
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	public void testNoRetryBeyondDeadline() {
+
+		RetryPolicy policy = new RetryPolicy(10, 1000, 1000, 60000, new RequestBudget(1, 100));
+		AtomicInteger attempts = new AtomicInteger();
+		long start = System.nanoTime();
+
+		Deadline.Scope scope = Deadline.after(50).attach();
+
+		try {
+			policy.execute(true, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+					attempts.incrementAndGet();
+					throw commandException(189);
+				}
+			});
+
+			fail("failing operation completed");
+
+		} catch (MongoCommandException e) {
+			// a backoff of up to a second does not fit into the deadline, or the deadline expired after a short one
+		} catch (DeadlineExceededException e) {
+			// expired before the next attempt
+		} finally {
+			scope.close();
+		}
+
+		assertTrue(attempts.get() <= 2);
+		assertTrue(System.nanoTime() - start < 1000000000L);
+	}
+
+	private static MongoCommandException commandException(int code) {
+		return new MongoCommandException(BsonDocument.parse("{ ok: 0, code: " + code + ", errmsg: 'test' }"), new ServerAddress());
+	}
+
+	@Test
+	public void testWritesWaitForReplicationWithinDeadline() {
+
+		WriteCollectionClient authors = new WriteCollectionClient();
+
+		try {
+			assertNull(authors.getWriteCollection().getWriteConcern().getWTimeout(TimeUnit.MILLISECONDS));
+
+			Deadline.Scope scope = Deadline.after(5000).attach();
+			try {
+				long wtimeout = authors.getWriteCollection().getWriteConcern().getWTimeout(TimeUnit.MILLISECONDS);
+				assertTrue(wtimeout > 4000 && wtimeout <= 5000);
+			} finally {
+				scope.close();
+			}
+		} finally {
+			authors.close();
+		}
+	}
+
+	/**
+	 * Offline author client that exposes the collection its writes use.
+	 */
+	private static class WriteCollectionClient extends TestAuthorDatabase {
+
+		WriteCollectionClient() {
+			super(OfflineClients.auth());
+		}
+
+		@Override
+		public MongoCollection<Document> getWriteCollection() {
+			return super.getWriteCollection();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+
+public class DirtyTrackingTest {
+
+	private Document bookDocument() {
+		Document author = new Document("_id", new ObjectId()).append("firstName", "Dan").append("lastName", "Brown");
+		return new Document("_id", new ObjectId()).append("author", author).append("prices", Arrays.asList(10.0, 12.5));
+	}
+
+	@Test
+	public void testLoadedObjectsAreClean() {
+
+		TestBook book = new TestBook(bookDocument());
+		assertFalse(book.isDirty());
+		assertTrue(book.toUpdateDocument().isEmpty());
+	}
+
+	@Test
+	public void testOnlyModifiedFields() {
+
+		TestAuthor author = new TestAuthor(new Document("_id", new ObjectId()).append("firstName", "Dan").append("lastName", "Brown"));
+		author.setLastName("King");
+		author.setFirstName(null);
+
+		assertEquals(new Document("$set", new Document("lastName", "King")).append("$unset", new Document("firstName", "")), author.toUpdateDocument());
+
+		author.markClean();
+		assertTrue(author.toUpdateDocument().isEmpty());
+	}
+
+	@Test
+	public void testAppendedPrices() {
+
+		TestBook book = new TestBook(bookDocument());
+		book.addPrice(9.99);
+		book.addPrice(8.99);
+
+		assertEquals(4, book.getPrices().size());
+		assertEquals(new Document("$push", new Document("prices", new Document("$each", Arrays.asList(9.99, 8.99)))), book.toUpdateDocument());
+
+		// replacing all prices supersedes the appended ones
+		book.setPrices(Arrays.asList(1.0));
+		book.addPrice(2.0);
+		assertEquals(new Document("$set", new Document("prices", Arrays.asList(1.0, 2.0))), book.toUpdateDocument());
+	}
+
+	@Test
+	public void testNewObjectsAreDirty() {
+
+		TestAuthor author = new TestAuthor("Dan", "Brown");
+		author.setObjectId(new ObjectId());
+
+		TestBook book = new TestBook(author, 1.0);
+		assertEquals(author.getObjectId(), ((Document) book.toUpdateDocument().get("$set")).get("author"));
+
+		TestBookStore store = new TestBookStore(new Document("_id", new ObjectId()).append("name", "Thalia").append("books", Arrays.asList(bookDocument())));
+		book.setObjectId(new ObjectId());
+		store.addBook(book);
+
+		assertEquals(2, store.getBooks().size());
+		assertEquals(new Document("$push", new Document("books", new Document("$each", Arrays.asList(book.getObjectId())))), store.toUpdateDocument());
+	}
+}
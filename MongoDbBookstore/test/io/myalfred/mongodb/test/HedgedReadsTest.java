@@ -0,0 +1,209 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.mongodb.ReadPreference;
+
+import io.myalfred.mongodb.databases.Deadline;
+import io.myalfred.mongodb.databases.DeadlineExceededException;
+import io.myalfred.mongodb.databases.HedgedReads;
+import io.myalfred.mongodb.databases.LatencyTracker;
+import io.myalfred.mongodb.databases.RequestBudget;
+
+public class HedgedReadsTest {
+
+	@Test
+	public void testPercentile() {
+
+		LatencyTracker tracker = new LatencyTracker(100, 10);
+
+		for (int i = 1; i <= 9; i++) {
+			tracker.record(i);
+		}
+		assertEquals(-1, tracker.percentileNanos(0.9));
+
+		for (int i = 10; i <= 100; i++) {
+			tracker.record(i);
+		}
+		assertEquals(90, tracker.percentileNanos(0.9));
+		assertEquals(100, tracker.percentileNanos(1.0));
+		assertEquals(1, tracker.percentileNanos(0.0));
+	}
+
+	@Test
+	public void testSlowReadIsHedged() {
+
+		HedgedReads hedging = warmedUp(new RequestBudget(1, 10));
+
+		String result = hedging.execute(answer("read", 2000), answer("hedge", 0));
+
+		assertEquals("hedge", result);
+		assertEquals(1, hedging.getHedgesSent());
+		assertEquals(1, hedging.getHedgesWon());
+		hedging.shutdown();
+	}
+
+	@Test
+	public void testFastReadIsNotHedged() {
+
+		HedgedReads hedging = warmedUp(new RequestBudget(1, 10));
+
+		assertEquals("read", hedging.execute(answer("read", 0), answer("hedge", 0)));
+		assertEquals(0, hedging.getHedgesSent());
+		hedging.shutdown();
+	}
+
+	@Test
+	public void testBudgetCapsHedges() {
+
+		HedgedReads hedging = warmedUp(new RequestBudget(0, 1));
+
+		assertEquals("hedge", hedging.execute(answer("read", 500), answer("hedge", 0)));
+		assertEquals("read", hedging.execute(answer("read", 50), answer("hedge", 0)));
+		assertEquals(1, hedging.getHedgesSent());
+		assertEquals(1, hedging.getBudgetExhausted());
+		hedging.shutdown();
+	}
+
+	@Test
+	public void testSaturatedReadsAreNotHedged() {
+
+		// the slow read takes the only thread, so its hedge can not be sent
+		HedgedReads hedging = warmedUp(new RequestBudget(1, 10), 1);
+
+		assertEquals("read", hedging.execute(answer("read", 200), answer("hedge", 0)));
+		assertEquals(0, hedging.getHedgesSent());
+		assertEquals(1, hedging.getSaturated());
+		hedging.shutdown();
+	}
+
+	@Test
+	public void testFailedReadFallsBackToHedge() {
+
+		HedgedReads hedging = warmedUp(new RequestBudget(1, 10));
+
+		Callable<String> failing = new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				Thread.sleep(50);
+				throw new IllegalStateException("failed");
+			}
+		};
+
+		assertEquals("hedge", hedging.execute(failing, answer("hedge", 100)));
+		hedging.shutdown();
+	}
+
+	@Test
+	public void testLoserIsCancelled() throws InterruptedException {
+
+		HedgedReads hedging = warmedUp(new RequestBudget(1, 10));
+		final Deadline[] primary = new Deadline[1];
+
+		Callable<String> read = new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				primary[0] = Deadline.current();
+				Thread.sleep(200);
+				return "read";
+			}
+		};
+
+		Deadline.Scope scope = Deadline.after(5000).attach();
+		try {
+			assertEquals("hedge", hedging.execute(read, answer("hedge", 0)));
+			assertTrue(primary[0].isCancelled());
+			assertTrue(!Deadline.current().isCancelled());
+		} finally {
+			scope.close();
+		}
+		hedging.shutdown();
+	}
+
+	@Test
+	public void testCancelledCallerStopsWaiting() throws InterruptedException {
+
+		HedgedReads hedging = warmedUp(new RequestBudget(0, 0));
+		Deadline deadline = Deadline.after(10000);
+		final Deadline[] primary = new Deadline[1];
+
+		Callable<String> read = new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				primary[0] = Deadline.current();
+				Thread.sleep(2000);
+				return "read";
+			}
+		};
+
+		Thread canceller = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				deadline.cancel();
+			}
+		});
+
+		long start = System.nanoTime();
+		Deadline.Scope scope = deadline.attach();
+		canceller.start();
+
+		try {
+			hedging.execute(read, answer("hedge", 2000));
+			fail("cancelled read completed");
+		} catch (DeadlineExceededException e) {
+			assertTrue(e.isCancelled());
+		} finally {
+			scope.close();
+		}
+
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertTrue(primary[0].isCancelled());
+		canceller.join();
+		hedging.shutdown();
+	}
+
+	/**
+	 * Returns hedged reads that observed read latencies of about 1 ms.
+	 */
+	private static HedgedReads warmedUp(RequestBudget budget) {
+		return warmedUp(budget, 10);
+	}
+
+	private static HedgedReads warmedUp(RequestBudget budget, int maxThreads) {
+
+		LatencyTracker tracker = new LatencyTracker(100, 10);
+
+		for (int i = 0; i < 10; i++) {
+			tracker.record(1000000);
+		}
+
+		return new HedgedReads("test", tracker, 0.95, 20, budget, ReadPreference.secondaryPreferred(), maxThreads);
+	}
+
+	private static Callable<String> answer(String value, long millis) {
+
+		return new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				Thread.sleep(millis);
+				return value;
+			}
+		};
+	}
+}
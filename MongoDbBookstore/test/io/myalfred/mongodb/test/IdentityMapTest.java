@@ -0,0 +1,72 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.data.IdentityMap;
+import io.myalfred.mongodb.data.TestBookStore;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+
+public class IdentityMapTest {
+
+	@Test
+	public void testSharedAuthors() {
+
+		ObjectId kingId = new ObjectId();
+		List<Document> books = new ArrayList<>();
+
+		for (int i = 0; i < 100; i++) {
+			// each author document is a separate instance, as decoded from the wire
+			Document author = new Document("_id", kingId).append("firstName", new String("Stephen")).append("lastName", new String("King"));
+			books.add(new Document("_id", new ObjectId()).append("author", author).append("prices", Arrays.asList(10.0)));
+		}
+
+		Document storeDoc = new Document("_id", new ObjectId()).append("name", "Thalia").append("books", books);
+
+		TestBookStore shared = new TestBookStore(storeDoc, new IdentityMap());
+		assertEquals(100, shared.getBooks().size());
+		assertSame(shared.getBooks().get(0).getAuthor(), shared.getBooks().get(99).getAuthor());
+		assertEquals(kingId, shared.getBooks().get(99).getAuthor().getObjectId());
+
+		TestBookStore unshared = new TestBookStore(storeDoc);
+		assertNotSame(unshared.getBooks().get(0).getAuthor(), unshared.getBooks().get(99).getAuthor());
+		assertNotSame(unshared.getBooks().get(0).getAuthor().getFirstName(), unshared.getBooks().get(99).getAuthor().getFirstName());
+	}
+
+	@Test
+	public void testPreloadRequiresSessionScope() {
+
+		TestAuthorDatabase authors = OfflineClients.authors();
+
+		try {
+			authors.warmUp(new Document());
+			fail("preloaded objects that would be discarded");
+		} catch (IllegalStateException e) {
+			assertFalse(authors.isWarmedUp());
+		} finally {
+			authors.close();
+		}
+	}
+
+	@Test
+	public void testSharedStrings() {
+
+		IdentityMap identities = new IdentityMap();
+
+		String first = identities.intern(new String("King"));
+		assertSame(first, identities.intern(new String("King")));
+		assertEquals(0, identities.size());
+		assertEquals(null, IdentityMap.NONE.intern(null));
+	}
+}
@@ -0,0 +1,55 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.data.TestBookStore;
+
+public class LazyDecodingTest {
+
+	private final ObjectId bookId = new ObjectId();
+	private final ObjectId authorId = new ObjectId();
+
+	private Document bookDocument() {
+		Document author = new Document("_id", authorId).append("firstName", "Dan").append("lastName", "Brown");
+		return new Document("_id", bookId).append("author", author).append("prices", Arrays.asList(10.0, 12.5));
+	}
+
+	@Test
+	public void testLazyBook() {
+
+		TestBook book = new TestBook(new RawBsonDocument(bookDocument(), new DocumentCodec()));
+
+		assertEquals(bookId, book.getObjectId());
+		assertEquals(bookId.toHexString(), book.getId());
+		assertEquals(12.5, book.getPrices().get(1), 0.001);
+		assertEquals("Brown", book.getAuthor().getLastName());
+		assertEquals(authorId, book.getAuthor().getObjectId());
+
+		// set fields are not overwritten by the raw document
+		book.setPrices(Arrays.asList(1.0));
+		assertEquals(1, book.getPrices().size());
+		assertEquals(authorId, book.toDocument().getObjectId("author"));
+	}
+
+	@Test
+	public void testLazyBookStore() {
+
+		Document storeDoc = new Document("_id", new ObjectId()).append("name", "Thalia").append("books", Arrays.asList(bookDocument(), bookDocument()));
+		TestBookStore store = new TestBookStore(new RawBsonDocument(storeDoc, new DocumentCodec()));
+
+		assertEquals("Thalia", store.getName());
+		assertEquals(2, store.getBooks().size());
+		assertEquals("Dan", store.getBooks().get(1).getAuthor().getFirstName());
+		assertTrue(store.hasValidObjectId());
+	}
+}
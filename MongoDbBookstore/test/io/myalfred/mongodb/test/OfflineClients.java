@@ -0,0 +1,60 @@
+package io.myalfred.mongodb.test;
+
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.WriteModel;
+
+import io.myalfred.mongodb.databases.DatabaseClient;
+import io.myalfred.mongodb.databases.RetryPolicy;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+import io.myalfred.mongodb.databases.TestBookDatabase;
+import io.myalfred.mongodb.databases.TestBookStoreDatabase;
+import io.myalfred.mongodb.databases.WriteBehindBuffer;
+import io.myalfred.mongodb.dbauth.DbAuth;
+
+/**
+ * Clients for tests that run without a database: they point to a local address without a server, fail after 50 ms and do not retry.
+ */
+final class OfflineClients {
+
+	private OfflineClients() {
+	}
+
+	static DbAuth auth() {
+
+		DbAuth auth = new DbAuth("user", "pw", "test", "127.0.0.1");
+		auth.setServerSelectionTimeout(50);
+		return auth;
+	}
+
+	static TestAuthorDatabase authors() {
+		return offline(new TestAuthorDatabase(auth()));
+	}
+
+	static TestBookDatabase books() {
+		return offline(new TestBookDatabase(auth()));
+	}
+
+	static TestBookStoreDatabase bookStores() {
+		return offline(new TestBookStoreDatabase(auth()));
+	}
+
+	/**
+	 * Returns a write-behind buffer for the provided client whose flushes succeed without writing anything, so the client's write listeners are called.
+	 */
+	static WriteBehindBuffer acknowledgingBuffer(DatabaseClient<?> client) {
+		return new WriteBehindBuffer(client, 10, 100, 60000, 200) {
+
+			@Override
+			protected void write(List<WriteModel<Document>> writes) {
+			}
+		};
+	}
+
+	private static <C extends DatabaseClient<?>> C offline(C client) {
+		client.setRetryPolicy(RetryPolicy.NONE);
+		return client;
+	}
+}
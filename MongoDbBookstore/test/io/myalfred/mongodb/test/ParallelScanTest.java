@@ -0,0 +1,105 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.databases.ParallelScan;
+
+/**
+ * Tests the split point computation and range bounds of {@link ParallelScan}, which do not need a database.
+ */
+public class ParallelScanTest {
+
+	@Test
+	public void testRangeBounds() {
+
+		ObjectId split1 = new ObjectId("5835b19b0000000000000000");
+		ObjectId split2 = new ObjectId("5835b1a00000000000000000");
+
+		List<Document> ranges = ParallelScan.toRanges(Arrays.asList(split1, split2));
+
+		assertEquals(3, ranges.size());
+		assertEquals(new Document("_id", new Document("$lt", split1)), ranges.get(0)); // open at the bottom
+		assertEquals(new Document("_id", new Document("$gte", split1).append("$lt", split2)), ranges.get(1));
+		assertEquals(new Document("_id", new Document("$gte", split2)), ranges.get(2)); // open at the top
+	}
+
+	@Test
+	public void testSinglePartition() {
+
+		// an empty collection or one partition has no split points, the only range matches everything
+		assertEquals(Arrays.asList(new Document()), ParallelScan.toRanges(new ArrayList<ObjectId>()));
+
+		ObjectId first = new ObjectId("5835b19b0000000000000000");
+		ObjectId last = new ObjectId("5935b19b0000000000000000");
+
+		assertTrue(ParallelScan.timestampSplitPoints(first, last, 1).isEmpty());
+		assertTrue(ParallelScan.quantileSplitPoints(new ArrayList<ObjectId>(), 8).isEmpty());
+		assertTrue(ParallelScan.quantileSplitPoints(Arrays.asList(first, last), 1).isEmpty());
+	}
+
+	@Test
+	public void testTimestampSplitPoints() {
+
+		ObjectId first = new ObjectId("5835b19b4e5a9ca2509e437c");
+		ObjectId last = new ObjectId("5835b1a34e5a9ca2509e437c"); // 8 seconds later
+
+		List<ObjectId> splitPoints = ParallelScan.timestampSplitPoints(first, last, 3);
+
+		// [0x5835b19b, 0x5835b1a4) in thirds
+		assertEquals(Arrays.asList(new ObjectId("5835b19e0000000000000000"), new ObjectId("5835b1a10000000000000000")), splitPoints);
+		assertCovers(ParallelScan.toRanges(splitPoints), first, last);
+
+		// more partitions than seconds: duplicate split points are dropped
+		splitPoints = ParallelScan.timestampSplitPoints(first, first, 4);
+		assertEquals(Arrays.asList(new ObjectId("5835b19b0000000000000000")), splitPoints);
+	}
+
+	@Test
+	public void testQuantileSplitPoints() {
+
+		List<ObjectId> sample = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			sample.add(new ObjectId(String.format("5835b19b%016x", i)));
+		}
+
+		List<ObjectId> splitPoints = ParallelScan.quantileSplitPoints(sample, 4);
+
+		assertEquals(Arrays.asList(sample.get(25), sample.get(50), sample.get(75)), splitPoints);
+		assertCovers(ParallelScan.toRanges(splitPoints), sample.get(0), sample.get(99));
+	}
+
+	/**
+	 * Asserts that each of the provided ids falls into exactly one of the ranges.
+	 */
+	private static void assertCovers(List<Document> ranges, ObjectId... ids) {
+
+		for (ObjectId id : ids) {
+
+			int matches = 0;
+
+			for (Document range : ranges) {
+
+				Document bounds = (Document) range.get("_id");
+				ObjectId gte = bounds == null ? null : bounds.getObjectId("$gte");
+				ObjectId lt = bounds == null ? null : bounds.getObjectId("$lt");
+
+				if ((gte == null || id.compareTo(gte) >= 0) && (lt == null || id.compareTo(lt) < 0))
+					matches++;
+			}
+
+			assertEquals(1, matches);
+		}
+
+		assertFalse(ranges.isEmpty());
+	}
+}
@@ -0,0 +1,83 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.myalfred.mongodb.data.TestPriceBucket;
+import io.myalfred.mongodb.data.TestPricePoint;
+import io.myalfred.mongodb.databases.PriceHistoryDatabase;
+
+public class PriceHistoryDatabaseTest {
+
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	/** midnight (UTC) of a day, so the buckets are predictable */
+	private static final long START = 1700006400000L;
+
+	private PriceHistoryDatabase priceDb = new PriceHistoryDatabase();
+
+	@Before
+	public void setUp() {
+		priceDb.removeAll();
+		priceDb.ensureIndexes();
+		priceDb.setBucketSize(10);
+	}
+
+	@Test
+	public void testBucketing() {
+
+		ObjectId book = new ObjectId();
+
+		// 25 prices on day one, 5 on day two
+		for (int i = 0; i < 30; i++) {
+			long time = i < 25 ? START + i * 60000L : START + DAY + i * 60000L;
+			assertTrue(priceDb.addPrice(book, new Date(time), 10.0 + i));
+		}
+
+		List<TestPriceBucket> summaries = priceDb.getSummaries(book, new Date(START), new Date(START + 2 * DAY));
+
+		assertEquals(4, summaries.size());
+		assertEquals(10, summaries.get(0).getCount());
+		assertEquals(new Date(START), summaries.get(0).getWindow());
+		assertEquals(new Date(START + DAY), summaries.get(3).getWindow());
+		assertEquals(5, summaries.get(3).getCount());
+		assertEquals(35.0, summaries.get(3).getMin(), 0);
+		assertEquals(39.0, summaries.get(3).getMax(), 0);
+	}
+
+	@Test
+	public void testRangeAndLatest() {
+
+		ObjectId book = new ObjectId();
+		List<TestPricePoint> points = new ArrayList<>();
+
+		for (int i = 0; i < 48; i++) {
+			points.add(new TestPricePoint(new Date(START + i * TimeUnit.HOURS.toMillis(1)), 20.0 + i));
+		}
+
+		assertTrue(priceDb.addPrices(book, points));
+		assertTrue(priceDb.addPrice(new ObjectId(), new Date(START + 100 * DAY), 99.0));
+
+		List<TestPricePoint> range = priceDb.getPrices(book, new Date(START + TimeUnit.HOURS.toMillis(20)), new Date(START + TimeUnit.HOURS.toMillis(30)));
+
+		assertEquals(11, range.size());
+		assertEquals(40.0, range.get(0).getPrice(), 0);
+		assertEquals(50.0, range.get(10).getPrice(), 0);
+
+		TestPricePoint latest = priceDb.getLatestPrice(book);
+		assertEquals(67.0, latest.getPrice(), 0);
+		assertEquals(new Date(START + TimeUnit.HOURS.toMillis(47)), latest.getTime());
+
+		assertNull(priceDb.getLatestPrice(new ObjectId()));
+	}
+}
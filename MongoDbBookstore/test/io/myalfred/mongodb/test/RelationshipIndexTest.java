@@ -0,0 +1,118 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.myalfred.mongodb.databases.RelationshipIndex;
+import io.myalfred.mongodb.databases.TestBookDatabase;
+import io.myalfred.mongodb.databases.TestBookStoreDatabase;
+import io.myalfred.mongodb.databases.WriteBehindBuffer;
+
+public class RelationshipIndexTest {
+
+	private TestBookDatabase books;
+
+	private TestBookStoreDatabase stores;
+
+	private RelationshipIndex index;
+
+	private ObjectId king = new ObjectId();
+	private ObjectId brown = new ObjectId();
+
+	private ObjectId it = new ObjectId();
+	private ObjectId shining = new ObjectId();
+	private ObjectId inferno = new ObjectId();
+
+	private ObjectId thalia = new ObjectId();
+	private ObjectId hugendubel = new ObjectId();
+
+	@Before
+	public void setUp() {
+
+		books = OfflineClients.books();
+		stores = OfflineClients.bookStores();
+
+		index = new RelationshipIndex(books, stores);
+		index.putBook(it, king);
+		index.putBook(shining, king);
+		index.putBook(inferno, brown);
+		index.putStore(thalia, Arrays.asList(it, inferno));
+		index.putStore(hugendubel, Arrays.asList(shining));
+	}
+
+	@After
+	public void tearDown() {
+		index.close();
+		books.close();
+		stores.close();
+	}
+
+	@Test
+	public void testReverseTraversals() {
+
+		assertEquals(Arrays.asList(it, shining), index.getBookIdsOfAuthor(king));
+		assertEquals(Arrays.asList(thalia), index.getStoreIdsOfBook(inferno));
+		assertEquals(Arrays.asList(thalia, hugendubel), index.getStoreIdsOfAuthor(king));
+		assertEquals(Arrays.asList(thalia), index.getStoreIdsOfAuthor(brown));
+		assertEquals(Arrays.asList(king, brown), index.getAuthorIdsOfStore(thalia));
+		assertEquals(6, index.getEdgeCount());
+	}
+
+	@Test
+	public void testUnknownIds() {
+
+		assertTrue(index.getBookIdsOfAuthor(new ObjectId()).isEmpty());
+		assertTrue(index.getStoreIdsOfAuthor(new ObjectId()).isEmpty());
+		assertTrue(index.loadStoresOfAuthor(new ObjectId()).isEmpty());
+	}
+
+	@Test
+	public void testIncrementalChanges() {
+
+		// the shining changes its author, hugendubel no longer carries a book of king
+		index.putBook(shining, brown);
+		assertEquals(Arrays.asList(it), index.getBookIdsOfAuthor(king));
+		assertEquals(Arrays.asList(thalia), index.getStoreIdsOfAuthor(king));
+		assertEquals(Arrays.asList(thalia, hugendubel), index.getStoreIdsOfAuthor(brown));
+
+		index.putStore(hugendubel, Arrays.asList(shining, it));
+		assertEquals(Arrays.asList(thalia, hugendubel), index.getStoreIdsOfBook(it));
+
+		index.removeBook(it);
+		assertTrue(index.getBookIdsOfAuthor(king).isEmpty());
+		assertEquals(Arrays.asList(hugendubel), index.getStoreIdsOfBook(shining));
+		assertEquals(Arrays.asList(shining), index.getBookIdsOfStore(hugendubel));
+
+		index.removeStore(thalia);
+		assertTrue(index.getStoreIdsOfBook(inferno).isEmpty());
+		assertEquals(Arrays.asList(hugendubel), index.getStoreIdsOfAuthor(brown));
+	}
+
+	@Test
+	public void testFollowsClientWrites() {
+
+		WriteBehindBuffer bookUpdates = OfflineClients.acknowledgingBuffer(books);
+		WriteBehindBuffer storeUpdates = OfflineClients.acknowledgingBuffer(stores);
+
+		ObjectId carrie = new ObjectId();
+		bookUpdates.put(carrie, "author", king);
+		storeUpdates.put(hugendubel, "books", Arrays.asList(shining, carrie));
+
+		// buffered updates are indexed once they are written
+		assertEquals(Arrays.asList(it, shining), index.getBookIdsOfAuthor(king));
+		assertTrue(index.getStoreIdsOfBook(carrie).isEmpty());
+
+		bookUpdates.close();
+		storeUpdates.close();
+
+		assertEquals(Arrays.asList(it, shining, carrie), index.getBookIdsOfAuthor(king));
+		assertEquals(Arrays.asList(hugendubel), index.getStoreIdsOfBook(carrie));
+	}
+}
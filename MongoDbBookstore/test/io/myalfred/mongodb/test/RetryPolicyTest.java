@@ -0,0 +1,99 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+
+import io.myalfred.mongodb.databases.RequestBudget;
+import io.myalfred.mongodb.databases.RetryPolicy;
+import io.myalfred.mongodb.databases.TransientErrors;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testClassification() {
+
+		assertTrue(TransientErrors.isTransient(new MongoSocketReadException("reset", new ServerAddress())));
+		assertTrue(TransientErrors.isTransient(commandException(189))); // PrimarySteppedDown
+		assertTrue(TransientErrors.isTransient(commandException(112))); // WriteConflict
+		assertFalse(TransientErrors.isTransient(commandException(2))); // BadValue
+		assertFalse(TransientErrors.isTransient(new IllegalStateException()));
+	}
+
+	@Test
+	public void testRetriesTransientErrors() {
+
+		RetryPolicy policy = new RetryPolicy(3, 1, 5, 10000, new RequestBudget(0.1, 10));
+
+		int result = policy.execute(true, new RetryPolicy.Operation<Integer>() {
+
+			@Override
+			public Integer run(int attempt) {
+				if (attempt < 3)
+					throw commandException(10107); // NotMaster
+				return attempt;
+			}
+		});
+
+		assertEquals(3, result);
+		assertEquals(2, policy.getMetrics().getRetries());
+		assertEquals(1, policy.getMetrics().getRecovered());
+	}
+
+	@Test
+	public void testNoRetryOfNonIdempotentOperations() {
+
+		RetryPolicy policy = new RetryPolicy(3, 1, 5, 10000, new RequestBudget(0.1, 10));
+
+		try {
+			policy.execute(false, new RetryPolicy.Operation<Void>() {
+
+				@Override
+				public Void run(int attempt) {
+					throw commandException(10107);
+				}
+			});
+			fail();
+		} catch (MongoCommandException e) {
+			assertEquals(0, policy.getMetrics().getRetries());
+			assertEquals(1, policy.getMetrics().getPermanentFailures());
+		}
+	}
+
+	@Test
+	public void testBudget() {
+
+		RetryPolicy policy = new RetryPolicy(10, 1, 1, 10000, new RequestBudget(0.1, 2));
+
+		for (int i = 0; i < 5; i++) {
+			try {
+				policy.execute(true, new RetryPolicy.Operation<Void>() {
+
+					@Override
+					public Void run(int attempt) {
+						throw commandException(91); // ShutdownInProgress
+					}
+				});
+				fail();
+			} catch (MongoCommandException e) {
+				// expected
+			}
+		}
+
+		// the two initial tokens plus 0.5 deposited by the five operations allow two retries
+		assertEquals(2, policy.getMetrics().getRetries());
+		assertEquals(5, policy.getMetrics().getBudgetRejected());
+	}
+
+	private static MongoCommandException commandException(int code) {
+		return new MongoCommandException(BsonDocument.parse("{ ok: 0, code: " + code + ", errmsg: 'test' }"), new ServerAddress());
+	}
+}
@@ -0,0 +1,159 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+
+import io.myalfred.mongodb.data.TestAuthor;
+import io.myalfred.mongodb.databases.IdStrategy;
+import io.myalfred.mongodb.databases.ShardAwareWriter;
+import io.myalfred.mongodb.databases.ShardLayout;
+import io.myalfred.mongodb.databases.TestAuthorDatabase;
+
+/**
+ * Tests the routing and the concurrent per-shard writes of {@link ShardAwareWriter} without a database, the inserts are recorded instead of sent.
+ */
+public class ShardAwareWriterTest {
+
+	private static final ObjectId SPLIT1 = new ObjectId("5835b19b0000000000000000");
+	private static final ObjectId SPLIT2 = new ObjectId("5835b1a00000000000000000");
+
+	private TestAuthorDatabase authors;
+
+	private ShardLayout layout;
+
+	@Before
+	public void setUp() {
+
+		authors = OfflineClients.authors();
+
+		layout = new ShardLayout(new Document("_id", 1));
+		layout.addChunk(new Document("_id", new MinKey()), new Document("_id", SPLIT1), "shard0");
+		layout.addChunk(new Document("_id", SPLIT1), new Document("_id", SPLIT2), "shard1");
+		layout.addChunk(new Document("_id", SPLIT2), new Document("_id", new MaxKey()), "shard2");
+	}
+
+	@After
+	public void tearDown() {
+		authors.close();
+	}
+
+	@Test
+	public void testGroupByShard() {
+
+		List<Document> docs = Arrays.asList(new Document("_id", new ObjectId("5835b1a10000000000000002")), new Document("_id", new ObjectId("5835b19a0000000000000000")),
+				new Document("_id", new ObjectId("5835b1a10000000000000001")), new Document("_id", new Binary(new byte[] { 1 })),
+				new Document("_id", new ObjectId("5835b19c0000000000000000")));
+
+		try (ShardAwareWriter<TestAuthor> writer = new ShardAwareWriter<>(authors, layout, IdStrategy.MONOTONIC, 2)) {
+
+			Map<String, List<Integer>> groups = writer.groupByShard(docs);
+
+			assertEquals(Arrays.asList(1), groups.get("shard0"));
+			assertEquals(Arrays.asList(4), groups.get("shard1"));
+			assertEquals(Arrays.asList(2, 0), groups.get("shard2")); // sorted by shard key
+			assertEquals(Arrays.asList(3), groups.get("")); // binary ids are left to mongos
+		}
+	}
+
+	@Test
+	public void testConcurrentShardWrites() {
+
+		List<TestAuthor> data = new ArrayList<>();
+
+		for (String id : new String[] { "5835b19a0000000000000000", "5835b19c0000000000000000", "5835b1a10000000000000000", "5835b19a0000000000000001" }) {
+			TestAuthor author = new TestAuthor("first", "last");
+			author.setObjectId(new ObjectId(id));
+			data.add(author);
+		}
+
+		// each shard's insert waits until all three run at the same time
+		CyclicBarrier allShards = new CyclicBarrier(3);
+		Map<String, List<Document>> inserted = new ConcurrentHashMap<>();
+
+		ShardAwareWriter<TestAuthor> writer = new ShardAwareWriter<TestAuthor>(authors, layout, IdStrategy.MONOTONIC, 3) {
+
+			@Override
+			protected void insert(String shard, List<Document> batch) {
+				try {
+					allShards.await(5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new IllegalStateException("Shard batches were not written concurrently", e);
+				}
+				inserted.put(shard, batch);
+			}
+		};
+
+		try {
+			assertTrue(writer.storeAll(data));
+		} finally {
+			writer.close();
+		}
+
+		assertEquals(3, inserted.size());
+		assertEquals(2, inserted.get("shard0").size());
+		assertEquals(new ObjectId("5835b19a0000000000000000"), inserted.get("shard0").get(0).getObjectId("_id"));
+		assertEquals(1, inserted.get("shard2").size());
+		assertFalse(data.get(3).isDirty());
+	}
+
+	@Test
+	public void testIdsOfWrittenBatchesKept() {
+
+		List<TestAuthor> data = new ArrayList<>();
+
+		for (int i = 0; i < 5; i++) {
+			data.add(new TestAuthor("first", "last" + i));
+		}
+
+		// without a layout all documents are one group: the second batch fails, the first one was written and the third one is not attempted
+		ShardAwareWriter<TestAuthor> writer = new ShardAwareWriter<TestAuthor>(authors, null, IdStrategy.MONOTONIC, 1) {
+
+			private int batches = 0;
+
+			@Override
+			protected void insert(String shard, List<Document> batch) {
+				if (++batches == 2)
+					throw new MongoSocketReadException("Prematurely reached end of stream", new ServerAddress());
+			}
+		};
+		writer.setBatchSize(2);
+
+		try {
+			assertFalse(writer.storeAll(data));
+		} finally {
+			writer.close();
+		}
+
+		assertNotNull(data.get(0).getObjectId());
+		assertNotNull(data.get(1).getObjectId());
+		assertFalse(data.get(1).isDirty());
+
+		for (int i = 2; i < 5; i++) {
+			assertNull(data.get(i).getObjectId());
+			assertTrue(data.get(i).isDirty());
+		}
+	}
+}
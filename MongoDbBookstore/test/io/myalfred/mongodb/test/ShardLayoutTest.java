@@ -0,0 +1,124 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.myalfred.mongodb.databases.IdStrategy;
+import io.myalfred.mongodb.databases.ShardLayout;
+
+public class ShardLayoutTest {
+
+	@Test
+	public void testRouting() {
+
+		ObjectId split1 = new ObjectId("5835b19b0000000000000000");
+		ObjectId split2 = new ObjectId("5835b1a00000000000000000");
+
+		ShardLayout layout = new ShardLayout(new Document("_id", 1));
+
+		// added out of order on purpose
+		layout.addChunk(new Document("_id", split2), new Document("_id", new MaxKey()), "shard2");
+		layout.addChunk(new Document("_id", new MinKey()), new Document("_id", split1), "shard0");
+		layout.addChunk(new Document("_id", split1), new Document("_id", split2), "shard1");
+
+		assertEquals(3, layout.getShards().size());
+		assertFalse(layout.isHashed());
+
+		assertEquals("shard0", layout.shardFor(new Document("_id", new ObjectId("5835b19a4e5a9ca2509e437c"))));
+		assertEquals("shard1", layout.shardFor(new Document("_id", split1)));
+		assertEquals("shard1", layout.shardFor(new Document("_id", new ObjectId("5835b19b4e5a9ca2509e4384"))));
+		assertEquals("shard2", layout.shardFor(new Document("_id", split2)));
+		assertEquals("shard2", layout.shardFor(new Document("_id", new ObjectId())));
+
+		// null sorts before ObjectIds
+		assertEquals("shard0", layout.shardFor(new Document("name", "no id")));
+	}
+
+	@Test
+	public void testIncompleteLayout() {
+
+		ShardLayout layout = new ShardLayout(new Document("name", 1).append("_id", 1));
+		layout.addChunk(new Document("name", "a").append("_id", new MinKey()), new Document("name", "m").append("_id", new MinKey()), "shard0");
+
+		assertEquals("shard0", layout.shardFor(new Document("name", "dan")));
+		assertNull(layout.shardFor(new Document("name", "stephen")));
+		assertTrue(new ShardLayout(new Document("_id", "hashed")).isHashed());
+	}
+
+	@Test
+	public void testNumericAndUnsupportedKeys() {
+
+		// 2^53 + 1 and 2^53 are the same double
+		long split = (1L << 53) + 1;
+
+		ShardLayout layout = new ShardLayout(new Document("isbn", 1));
+		layout.addChunk(new Document("isbn", new MinKey()), new Document("isbn", split), "shard0");
+		layout.addChunk(new Document("isbn", split), new Document("isbn", new MaxKey()), "shard1");
+
+		assertEquals("shard0", layout.shardFor(new Document("isbn", 1L << 53)));
+		assertEquals("shard1", layout.shardFor(new Document("isbn", split)));
+		assertEquals("shard0", layout.shardFor(new Document("isbn", 42)));
+		assertEquals("shard1", layout.shardFor(new Document("isbn", 1e16)));
+
+		// not ordered locally, left to mongos instead of failing the batch
+		assertNull(layout.shardFor(new Document("isbn", new Binary(new byte[] { 1 }))));
+		assertNull(layout.shardFor(new Document("isbn", Arrays.asList(1, 2))));
+	}
+
+	@Test
+	public void testStringKeysInUtf8Order() {
+
+		// U+1F600 is a surrogate pair in UTF-16 (0xD83D...), so it sorts before U+FFFD in UTF-16 but after it in UTF-8 (0xF0... > 0xEF...)
+		ShardLayout layout = new ShardLayout(new Document("name", 1));
+		layout.addChunk(new Document("name", new MinKey()), new Document("name", "\ufffd"), "shard0");
+		layout.addChunk(new Document("name", "\ufffd"), new Document("name", new MaxKey()), "shard1");
+
+		assertEquals("shard0", layout.shardFor(new Document("name", "z")));
+		assertEquals("shard1", layout.shardFor(new Document("name", "\ud83d\ude00")));
+	}
+
+	@Test
+	public void testHashedIds() {
+
+		Set<ObjectId> ids = new HashSet<>();
+		Set<Byte> leadingBytes = new HashSet<>();
+
+		for (int i = 0; i < 1000; i++) {
+			ObjectId id = IdStrategy.HASHED.next();
+			ids.add(id);
+			leadingBytes.add(id.toByteArray()[0]);
+		}
+
+		assertEquals(1000, ids.size());
+		assertTrue(leadingBytes.size() > 200);
+	}
+
+	@Test
+	public void testScatteredIds() {
+
+		Set<ObjectId> ids = new HashSet<>();
+		Set<Byte> leadingBytes = new HashSet<>();
+
+		for (int i = 0; i < 1000; i++) {
+			ObjectId id = IdStrategy.SCATTERED.next();
+			ids.add(id);
+			leadingBytes.add(id.toByteArray()[0]);
+		}
+
+		assertEquals(1000, ids.size());
+		assertTrue(leadingBytes.size() > 200); // consecutive ids do not share a prefix
+	}
+}
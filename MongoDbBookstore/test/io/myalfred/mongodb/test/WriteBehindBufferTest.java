@@ -0,0 +1,272 @@
+package io.myalfred.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+import io.myalfred.mongodb.data.TestBook;
+import io.myalfred.mongodb.databases.DatabaseClient;
+import io.myalfred.mongodb.databases.TestBookDatabase;
+import io.myalfred.mongodb.databases.WriteBehindBuffer;
+
+/**
+ * Tests {@link WriteBehindBuffer} without a database: the flush interval is long and the bulk writes are recorded (or fail as configured) instead of being sent.
+ */
+public class WriteBehindBufferTest {
+
+	/**
+	 * Buffer that records the $set documents of its writes, rejects the updates of some ids and fails as a whole while a failure is set.
+	 */
+	private static class RecordingBuffer extends WriteBehindBuffer {
+
+		private final List<Document> written = Collections.synchronizedList(new ArrayList<Document>());
+
+		private final Set<ObjectId> rejected = Collections.synchronizedSet(new HashSet<ObjectId>());
+
+		private volatile RuntimeException failure;
+
+		RecordingBuffer(TestBookDatabase client, int capacity, int flushSize) {
+			super(client, capacity, flushSize, 60000, 200);
+		}
+
+		@Override
+		protected void write(List<WriteModel<Document>> writes) {
+
+			if (failure != null)
+				throw failure;
+
+			List<BulkWriteError> errors = new ArrayList<>();
+
+			for (int i = 0; i < writes.size(); i++) {
+
+				UpdateOneModel<Document> write = (UpdateOneModel<Document>) writes.get(i);
+				ObjectId id = ((Document) write.getFilter()).getObjectId("_id");
+
+				if (rejected.contains(id))
+					errors.add(new BulkWriteError(121, "Document failed validation", new BsonDocument(), i));
+				else
+					written.add((Document) ((Document) write.getUpdate()).get("$set"));
+			}
+
+			if (!errors.isEmpty())
+				throw new MongoBulkWriteException(BulkWriteResult.acknowledged(0, writes.size() - errors.size(), 0, writes.size() - errors.size(),
+						Collections.<BulkWriteUpsert> emptyList()), errors, null, new ServerAddress());
+		}
+	}
+
+	private TestBookDatabase books;
+
+	private RecordingBuffer buffer;
+
+	@Before
+	public void setUp() {
+		books = OfflineClients.books();
+		buffer = new RecordingBuffer(books, 2, 100);
+	}
+
+	@After
+	public void tearDown() {
+		buffer.close();
+		books.close();
+	}
+
+	@Test
+	public void testCoalescing() {
+
+		ObjectId id = new ObjectId();
+
+		buffer.put(id, "title", "First");
+		buffer.put(id, "title", "Second");
+		buffer.put(id, "author", new Document("name", "Old"));
+		buffer.put(id, "author.name", "New");
+
+		assertTrue(buffer.isPending(id));
+		assertFalse(buffer.isPending(new ObjectId()));
+		assertEquals(1, buffer.size());
+		assertEquals(4, buffer.getUpdates());
+		assertEquals(2, buffer.getCoalesced());
+
+		buffer.flush();
+
+		assertEquals(Arrays.asList(new Document("title", "Second").append("author", new Document("name", "New"))), buffer.written);
+	}
+
+	@Test
+	public void testListSubField() {
+
+		ObjectId id = new ObjectId();
+
+		buffer.put(id, "prices", Arrays.asList(10.0, 11.0));
+		buffer.put(id, "prices.0", 9.5);
+		buffer.put(id, "prices.3", 12.0); // $set pads the array with nulls
+
+		assertEquals(1, buffer.size());
+		buffer.flush();
+
+		assertEquals(Arrays.asList(new Document("prices", Arrays.asList(9.5, 11.0, null, 12.0))), buffer.written);
+	}
+
+	@Test
+	public void testNullParentWrittenFirst() {
+
+		ObjectId id = new ObjectId();
+
+		buffer.put(id, "author", null);
+		buffer.put(id, "author.name", "New");
+
+		// the sub-field can not be set within null locally, so the parent was written before it was buffered
+		assertEquals(Arrays.asList(new Document("author", null)), buffer.written);
+
+		buffer.flush();
+		assertEquals(new Document("author.name", "New"), buffer.written.get(1));
+	}
+
+	@Test
+	public void testPendingUpdatesApplied() {
+
+		ObjectId id = new ObjectId();
+		Document stored = new Document("_id", id).append("title", "Old").append("prices", Arrays.asList(10.0, 11.0));
+
+		assertTrue(stored == buffer.applyPending(id, stored));
+
+		buffer.put(id, "title", "New");
+		buffer.put(id, "prices.1", 9.5);
+
+		Document current = buffer.applyPending(id, stored);
+
+		assertEquals(new Document("_id", id).append("title", "New").append("prices", Arrays.asList(10.0, 9.5)), current);
+		assertEquals("Old", stored.getString("title"));
+
+		// the pipeline of books replaces the author id with the author, so author updates can not be applied to results
+		assertTrue(buffer.needsFlush(id, new HashSet<>(Arrays.asList("title"))));
+		assertFalse(buffer.needsFlush(id, new HashSet<String>()));
+		assertFalse(buffer.needsFlush(null, new HashSet<>(Arrays.asList("author"))));
+
+		buffer.put(id, "author", new ObjectId());
+		assertTrue(buffer.needsFlush(null, new HashSet<String>()));
+	}
+
+	@Test
+	public void testRejectedUpdatesDropped() {
+
+		ObjectId bad = new ObjectId();
+		ObjectId good = new ObjectId();
+		List<ObjectId> dropped = new ArrayList<>();
+
+		buffer.setDropListener(new WriteBehindBuffer.DropListener() {
+
+			@Override
+			public void onDropped(ObjectId id, Document fields, int code, String message) {
+				dropped.add(id);
+			}
+		});
+
+		List<ObjectId> updated = new ArrayList<>();
+
+		books.addWriteListener(new DatabaseClient.WriteListener<TestBook>() {
+
+			@Override
+			public void onWritten(TestBook data) {
+			}
+
+			@Override
+			public void onUpdated(ObjectId id, String fieldName, Object value) {
+				updated.add(id);
+			}
+
+			@Override
+			public void onDeleted(ObjectId id) {
+			}
+		});
+
+		buffer.rejected.add(bad);
+		buffer.put(bad, "title", "Invalid");
+		buffer.put(good, "title", "Valid");
+
+		// does not throw, so reads flushing the buffer are not affected by the rejected update
+		buffer.flush();
+
+		assertEquals(0, buffer.size());
+		assertEquals(Arrays.asList(bad), dropped);
+		assertEquals(Arrays.asList(good), updated);
+		assertEquals(1, buffer.getDroppedObjects());
+		assertEquals(Arrays.asList(new Document("title", "Valid")), buffer.written);
+
+		buffer.flush();
+		assertEquals(1, buffer.written.size());
+	}
+
+	@Test
+	public void testTransientFailuresRequeued() {
+
+		ObjectId id = new ObjectId();
+
+		buffer.failure = new MongoSocketReadException("reset", new ServerAddress());
+		buffer.put(id, "title", "A");
+
+		try {
+			buffer.flush();
+			fail("failed flush did not throw");
+		} catch (MongoSocketReadException e) {
+			// the update was put back
+		}
+
+		assertTrue(buffer.isPending(id));
+		assertEquals(0, buffer.getDroppedObjects());
+
+		buffer.failure = null;
+		buffer.flush();
+
+		assertFalse(buffer.isPending(id));
+		assertEquals(Arrays.asList(new Document("title", "A")), buffer.written);
+	}
+
+	@Test
+	public void testBackpressure() {
+
+		buffer.failure = new MongoSocketReadException("reset", new ServerAddress());
+
+		buffer.put(new ObjectId(), "title", "A");
+		buffer.put(new ObjectId(), "title", "B");
+
+		long start = System.nanoTime();
+
+		try {
+			buffer.put(new ObjectId(), "title", "C");
+			fail("full buffer accepted an update");
+		} catch (RejectedExecutionException e) {
+			// the flushes triggered while waiting failed and put the updates back
+		}
+
+		assertTrue(System.nanoTime() - start >= 150000000L);
+		assertEquals(2, buffer.size());
+		assertTrue(buffer.getFailedFlushes() > 0);
+
+		buffer.failure = null;
+	}
+}